@@ -9,11 +9,12 @@ import android.view.TextureView;
 import android.view.View;
 
 import com.bingbing.cameratest.gpuimage.CameraHelper;
-import com.bingbing.cameratest.gpuimage.GPUImageFilter;
+import com.bingbing.cameratest.gpuimage.GPUImageBeautyFilter;
 import com.bingbing.cameratest.gpuimage.GPUImageFilterGroup;
+import com.bingbing.cameratest.gpuimage.GPUImageLookupFilter;
 import com.bingbing.cameratest.gpuimage.GPUImageRenderer;
 import com.bingbing.cameratest.gpuimage.GPUImageRendererWithRecord;
-import com.bingbing.cameratest.gpuimage.GPUImageTwoInputFilter;
+import com.bingbing.cameratest.gpuimage.ProgramCache;
 
 import java.io.File;
 
@@ -39,6 +40,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
 //        mGLSurface = (GLSurfaceView) findViewById(R.id.surface_view);
         mTextureView = (TextureView) findViewById(R.id.surface_view);
 
+        ProgramCache.getInstance().setBinaryCacheDir(new File(getCacheDir(), "programs"));
         mRenderThread = new RenderThread(1000000000 / 60, mGPUImageRender);
         mRenderThread.setName("GL render");
         mRenderThread.start();
@@ -127,8 +129,8 @@ public class MainActivity extends Activity implements View.OnClickListener {
         });
 
 
-        GPUImageFilter filter = new GPUImageFilter(GPUImageFilter.NO_FILTER_VERTEX_SHADER, shader4);
-        GPUImageTwoInputFilter filter1 = new GPUImageTwoInputFilter(shader1);
+        GPUImageBeautyFilter filter = new GPUImageBeautyFilter();
+        GPUImageLookupFilter filter1 = new GPUImageLookupFilter();
         filter1.setBitmap(BitmapFactory.decodeResource(getResources(), R.drawable.nature));
         GPUImageFilterGroup group = new GPUImageFilterGroup();
         group.addFilter(filter);
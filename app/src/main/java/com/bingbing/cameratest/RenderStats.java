@@ -0,0 +1,236 @@
+package com.bingbing.cameratest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Frame timing for the render thread: histograms of how long frames take to draw and to
+ * swap, counts of frames dropped, by reason, and of frames shown late.  Get it with
+ * {@link RenderThread#getRenderStats()} and read it from any thread with
+ * {@link #snapshot(Snapshot)}.
+ * <p>
+ * Recording allocates nothing and never locks; it is a handful of array stores per frame.
+ * The buckets are fixed, so the render thread only ever increments counters.  Readers get a
+ * consistent snapshot through a sequence count: the render thread makes it odd while it
+ * updates and even again after, and a reader retries if the count was odd or changed while
+ * it copied.
+ */
+public class RenderStats {
+    /** The vsync event arrived too late to draw in time; the frame wasn't drawn. */
+    public static final int DROP_LATE_START = 0;
+    /** There was no window surface to draw into. */
+    public static final int DROP_NO_SURFACE = 1;
+    /** eglSwapBuffers failed. */
+    public static final int DROP_SWAP_FAILED = 2;
+    public static final int DROP_REASON_COUNT = 3;
+
+    // Upper bounds of the histogram buckets; the last bucket takes everything above.
+    private static final long[] BUCKET_LIMITS_NANOS = {
+            1000000L, 2000000L, 4000000L, 6000000L, 8000000L, 10000000L, 12000000L,
+            14000000L, 16700000L, 20000000L, 25000000L, 33400000L, 50000000L, 100000000L,
+    };
+    public static final int BUCKET_COUNT = BUCKET_LIMITS_NANOS.length + 1;
+
+    // Layout of mCounters.
+    private static final int FRAME_TIME = 0;
+    private static final int SWAP_TIME = FRAME_TIME + BUCKET_COUNT;
+    private static final int DROPS = SWAP_TIME + BUCKET_COUNT;
+    private static final int FRAMES = DROPS + DROP_REASON_COUNT;
+    private static final int LATE_FRAMES = FRAMES + 1;
+    private static final int FRAME_TIME_TOTAL = LATE_FRAMES + 1;
+    private static final int SWAP_TIME_TOTAL = FRAME_TIME_TOTAL + 1;
+    private static final int FPS_MILLI = SWAP_TIME_TOTAL + 1;
+    private static final int COUNTER_COUNT = FPS_MILLI + 1;
+
+    // Written by the render thread only; atomic so readers see every store in order.
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    private volatile int mSequence;
+
+    /**
+     * A copy of the stats at one moment.  Reuse one to read without allocating.
+     */
+    public static class Snapshot {
+        private final long[] mCounters = new long[COUNTER_COUNT];
+
+        /**
+         * Returns the frames drawn and swapped.
+         */
+        public long getFrames() {
+            return mCounters[FRAMES];
+        }
+
+        /**
+         * Returns the frames drawn and swapped more than a refresh period after their vsync
+         * event.  They were shown, a vsync or more late, so they are counted in getFrames()
+         * and not among the dropped frames.
+         */
+        public long getLateFrames() {
+            return mCounters[LATE_FRAMES];
+        }
+
+        public long getDroppedFrames(int reason) {
+            return mCounters[DROPS + reason];
+        }
+
+        /**
+         * Returns the frames not drawn or not shown, for all reasons.
+         */
+        public long getDroppedFrames() {
+            long total = 0;
+            for (int i = 0; i < DROP_REASON_COUNT; i++) {
+                total += mCounters[DROPS + i];
+            }
+            return total;
+        }
+
+        /**
+         * Returns the frames whose drawing, from the vsync event to the swap, took at most
+         * getBucketLimitNanos(bucket).
+         */
+        public long getFrameTimeCount(int bucket) {
+            return mCounters[FRAME_TIME + bucket];
+        }
+
+        /**
+         * Returns the swaps that took at most getBucketLimitNanos(bucket).  Long swaps mean
+         * the GPU or compositor is behind.
+         */
+        public long getSwapTimeCount(int bucket) {
+            return mCounters[SWAP_TIME + bucket];
+        }
+
+        public long getAverageFrameTimeNanos() {
+            return mCounters[FRAMES] == 0 ? 0 : mCounters[FRAME_TIME_TOTAL] / mCounters[FRAMES];
+        }
+
+        public long getAverageSwapTimeNanos() {
+            return mCounters[FRAMES] == 0 ? 0 : mCounters[SWAP_TIME_TOTAL] / mCounters[FRAMES];
+        }
+
+        /**
+         * Returns the frame time that fraction of frames came in under, e.g. 0.99 for the
+         * 99th percentile, to the resolution of the buckets.  Long.MAX_VALUE if it falls in
+         * the last bucket.
+         */
+        public long getFrameTimePercentileNanos(double fraction) {
+            return percentile(FRAME_TIME, fraction);
+        }
+
+        public long getSwapTimePercentileNanos(double fraction) {
+            return percentile(SWAP_TIME, fraction);
+        }
+
+        private long percentile(int base, double fraction) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += mCounters[base + i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long wanted = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounters[base + i];
+                if (seen >= wanted) {
+                    return getBucketLimitNanos(i);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Returns the frame rate over the last couple of seconds, in thousandths of a frame
+         * per second.
+         */
+        public int getFpsMilli() {
+            return (int) mCounters[FPS_MILLI];
+        }
+    }
+
+
+    /**
+     * Returns the upper bound of a histogram bucket, or Long.MAX_VALUE for the last.
+     */
+    public static long getBucketLimitNanos(int bucket) {
+        return bucket < BUCKET_LIMITS_NANOS.length ? BUCKET_LIMITS_NANOS[bucket] : Long.MAX_VALUE;
+    }
+
+    private static int bucketOf(long nanos) {
+        for (int i = 0; i < BUCKET_LIMITS_NANOS.length; i++) {
+            if (nanos <= BUCKET_LIMITS_NANOS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS_NANOS.length;
+    }
+
+    /**
+     * Copies the current stats into snapshot, and returns it.  Any thread; retries while
+     * the render thread is mid-update, which is a few hundred nanoseconds at most.
+     */
+    public Snapshot snapshot(Snapshot snapshot) {
+        while (true) {
+            int before = mSequence;
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                snapshot.mCounters[i] = mCounters.get(i);
+            }
+            if (mSequence == before) {
+                return snapshot;
+            }
+        }
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(new Snapshot());
+    }
+
+    // ----- render thread -----
+
+    private void beginUpdate() {
+        mSequence++;
+    }
+
+    private void endUpdate() {
+        mSequence++;
+    }
+
+    private void increment(int index, long delta) {
+        mCounters.lazySet(index, mCounters.get(index) + delta);
+    }
+
+    /**
+     * Records a frame drawn and swapped.
+     *
+     * @param frameNanos from the vsync event to the end of the swap
+     * @param swapNanos  the swap alone
+     * @param late       whether it took longer than a refresh period
+     */
+    void recordFrame(long frameNanos, long swapNanos, boolean late) {
+        beginUpdate();
+        increment(FRAMES, 1);
+        if (late) {
+            increment(LATE_FRAMES, 1);
+        }
+        increment(FRAME_TIME + bucketOf(frameNanos), 1);
+        increment(FRAME_TIME_TOTAL, frameNanos);
+        increment(SWAP_TIME + bucketOf(swapNanos), 1);
+        increment(SWAP_TIME_TOTAL, swapNanos);
+        endUpdate();
+    }
+
+    void recordDrop(int reason) {
+        beginUpdate();
+        increment(DROPS + reason, 1);
+        endUpdate();
+    }
+
+    void recordFps(int fpsMilli) {
+        beginUpdate();
+        mCounters.lazySet(FPS_MILLI, fpsMilli);
+        endUpdate();
+    }
+}
@@ -12,6 +12,8 @@ import android.view.SurfaceHolder;
 
 import com.bingbing.cameratest.gpuimage.GPUImageRenderer;
 import com.bingbing.cameratest.gpuimage.GPUImageRendererWithRecord;
+import com.bingbing.cameratest.gpuimage.ProgramCache;
+import com.bingbing.cameratest.gpuimage.RenderTargetPool;
 import com.bingbing.cameratest.record.EglCore;
 import com.bingbing.cameratest.record.GlUtil;
 import com.bingbing.cameratest.record.TextureMovieEncoder2;
@@ -51,6 +53,7 @@ public class RenderThread extends Thread {
     private int mFpsCountFrame;
     private int mDroppedFrames;
     private boolean mPreviousWasDropped;
+    private final RenderStats mStats = new RenderStats();
 
     private GPUImageRenderer mGPUImageRenderer;
 
@@ -86,6 +89,7 @@ public class RenderThread extends Thread {
         Looper.prepare();
         mHandler = new RenderHandler(this);
         mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        ProgramCache.getInstance().setGlVersion(mEglCore.getGlVersion());
         synchronized (mStartLock) {
             mReady = true;
             mStartLock.notify();    // signal waitUntilReady()
@@ -94,6 +98,8 @@ public class RenderThread extends Thread {
         Looper.loop();
 
         Log.d(TAG, "looper quit");
+        ProgramCache.getInstance().clear();
+        RenderTargetPool.getInstance().clear();
         releaseGl();
         mEglCore.release();
 
@@ -125,6 +131,13 @@ public class RenderThread extends Thread {
         Looper.myLooper().quit();
     }
 
+    /**
+     * Returns the frame timing stats.  May be read from any thread.
+     */
+    public RenderStats getRenderStats() {
+        return mStats;
+    }
+
     /**
      * Returns the render thread's Handler.  This may be called from any thread.
      */
@@ -233,9 +246,9 @@ public class RenderThread extends Thread {
         // time gaps, but it's nearly cost-free, so we go ahead and do the computation
         // either way.
         //
-        // We can reduce the overhead of recording, as well as the size of the movie,
-        // by recording at ~30fps instead of the display refresh rate.  As a quick hack
-        // we just record every-other frame, using a "recorded previous" flag.
+        // We reduce the overhead of recording, as well as the size of the movie, by
+        // recording at the encoder's frame rate instead of the display refresh rate.  The
+        // renderer picks frames by timestamp; see FrameDecimator.
 
         update(timeStampNanos);
 
@@ -246,130 +259,33 @@ public class RenderThread extends Thread {
             Log.d(TAG, "diff is " + (diff / 1000000.0) + " ms, max " + (max / 1000000.0) +
                     ", skipping render");
             mDroppedFrames++;
+            mStats.recordDrop(RenderStats.DROP_LATE_START);
+            return;
+        }
+        if (mWindowSurface == null) {
+            // Vsync events can arrive before the surface is created.
+            mStats.recordDrop(RenderStats.DROP_NO_SURFACE);
             return;
         }
 
-        boolean swapResult;
-
-//        if (!mRecordingEnabled) {
-        // Render the scene, swap back to front.
-//            draw();
+        // The renderer feeds the encoder itself while recording; see
+        // GPUImageRendererWithRecord.setRecordMethod().
         mGPUImageRenderer.onDrawFrame(timeStampNanos);
-        swapResult = mWindowSurface.swapBuffers();
-//        } else {
-
-        // recording
-//            if (mRecordMethod == RECMETHOD_DRAW_TWICE) {
-//                //Log.d(TAG, "MODE: draw 2x");
-//
-//                // Draw for display, swap.
-//                draw();
-//                swapResult = mWindowSurface.swapBuffers();
-//
-//                // Draw for recording, swap.
-//                mVideoEncoder.frameAvailableSoon();
-//                mInputWindowSurface.makeCurrent();
-//                // If we don't set the scissor rect, the glClear() we use to draw the
-//                // light-grey background will draw outside the viewport and muck up our
-//                // letterboxing.  Might be better if we disabled the test immediately after
-//                // the glClear().  Of course, if we were clearing the frame background to
-//                // black it wouldn't matter.
-//                //
-//                // We do still need to clear the pixels outside the scissor rect, of course,
-//                // or we'll get garbage at the edges of the recording.  We can either clear
-//                // the whole thing and accept that there will be a lot of overdraw, or we
-//                // can issue multiple scissor/clear calls.  Some GPUs may have a special
-//                // optimization for zeroing out the color buffer.
-//                //
-//                // For now, be lazy and zero the whole thing.  At some point we need to
-//                // examine the performance here.
-//                GLES20.glClearColor(0f, 0f, 0f, 1f);
-//                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-//
-//                GLES20.glViewport(mVideoRect.left, mVideoRect.top,
-//                        mVideoRect.width(), mVideoRect.height());
-//                GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-//                GLES20.glScissor(mVideoRect.left, mVideoRect.top,
-//                        mVideoRect.width(), mVideoRect.height());
-//                draw();
-//                GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
-//                mInputWindowSurface.setPresentationTime(timeStampNanos);
-//                mInputWindowSurface.swapBuffers();
-//
-//                // Restore.
-//                GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
-//                mWindowSurface.makeCurrent();
-//
-//            } else if (mEglCore.getGlVersion() >= 3 &&
-//                    mRecordMethod == RECMETHOD_BLIT_FRAMEBUFFER) {
-//                //Log.d(TAG, "MODE: blitFramebuffer");
-//                // Draw the frame, but don't swap it yet.
-//                draw();
-//
-//                mVideoEncoder.frameAvailableSoon();
-//                mInputWindowSurface.makeCurrentReadFrom(mWindowSurface);
-//                // Clear the pixels we're not going to overwrite with the blit.  Once again,
-//                // this is excessive -- we don't need to clear the entire screen.
-//                GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-//                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-//                GlUtil.checkGlError("before glBlitFramebuffer");
-//                Log.v(TAG, "glBlitFramebuffer: 0,0," + mWindowSurface.getWidth() + "," +
-//                        mWindowSurface.getHeight() + "  " + mVideoRect.left + "," +
-//                        mVideoRect.top + "," + mVideoRect.right + "," + mVideoRect.bottom +
-//                        "  COLOR_BUFFER GL_NEAREST");
-//                GLES30.glBlitFramebuffer(
-//                        0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight(),
-//                        mVideoRect.left, mVideoRect.top, mVideoRect.right, mVideoRect.bottom,
-//                        GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_NEAREST);
-//                int err;
-//                if ((err = GLES30.glGetError()) != GLES30.GL_NO_ERROR) {
-//                    Log.w(TAG, "ERROR: glBlitFramebuffer failed: 0x" +
-//                            Integer.toHexString(err));
-//                }
-//                mInputWindowSurface.setPresentationTime(timeStampNanos);
-//                mInputWindowSurface.swapBuffers();
-//
-//                // Now swap the display buffer.
-//                mWindowSurface.makeCurrent();
-//                swapResult = mWindowSurface.swapBuffers();
-//
-//            } else {
-        //Log.d(TAG, "MODE: offscreen + blit 2x");
-        // Render offscreen.
-//                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
-//                GlUtil.checkGlError("glBindFramebuffer");
-//                draw();
-//
-//                // Blit to display.
-//                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-//                GlUtil.checkGlError("glBindFramebuffer");
-//                mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix);
-//                swapResult = mWindowSurface.swapBuffers();
-//
-//                // Blit to encoder.
-//                mVideoEncoder.frameAvailableSoon();
-//                mInputWindowSurface.makeCurrent();
-//                GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);    // again, only really need to
-//                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);     //  clear pixels outside rect
-//                GLES20.glViewport(mVideoRect.left, mVideoRect.top,
-//                        mVideoRect.width(), mVideoRect.height());
-//                mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix);
-//                mInputWindowSurface.setPresentationTime(timeStampNanos);
-//                mInputWindowSurface.swapBuffers();
-//
-//                // Restore previous values.
-//                GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
-//                mWindowSurface.makeCurrent();
-//            }
-//        }
-
+        long swapStartNanos = System.nanoTime();
+        boolean swapResult = mWindowSurface.swapBuffers();
+        long swapEndNanos = System.nanoTime();
 
         if (!swapResult) {
             // This can happen if the Activity stops without waiting for us to halt.
             Log.w(TAG, "swapBuffers failed, killing renderer thread");
+            mStats.recordDrop(RenderStats.DROP_SWAP_FAILED);
             shutdown();
             return;
         }
+        long frameNanos = swapEndNanos - timeStampNanos;
+        // The swap blocks until a vsync, so a frame past its budget was still shown, late.
+        mStats.recordFrame(frameNanos, swapEndNanos - swapStartNanos,
+                frameNanos > mRefreshPeriodNanos);
 
         // Update the FPS counter.
         //
@@ -385,6 +301,7 @@ public class RenderThread extends Thread {
             if (mFpsCountFrame == NUM_FRAMES) {
                 // compute thousands of frames per second
                 long elapsed = timeStampNanos - mFpsCountStartNanos;
+                mStats.recordFps((int) (NUM_FRAMES * ONE_TRILLION / elapsed));
 //                mActivityHandler.sendFpsUpdate((int)(NUM_FRAMES * ONE_TRILLION / elapsed),
 //                        mDroppedFrames);
 
@@ -422,22 +339,6 @@ public class RenderThread extends Thread {
         mPrevTimeNanos = timeStampNanos;
     }
 
-    /**
-     * Draws the scene.
-     */
-    private void draw() {
-        GlUtil.checkGlError("draw start");
-
-        // Clear to a non-black color to make the content easily differentiable from
-        // the pillar-/letter-boxing.
-        GLES20.glClearColor(0.2f, 0.2f, 0.2f, 1.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-
-
-        GlUtil.checkGlError("draw done");
-    }
-
-
     /**
      * Handler for RenderThread.  Used for messages sent from the UI thread to the render thread.
      * <p/>
@@ -0,0 +1,317 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.bingbing.cameratest.record.Completion;
+import com.bingbing.cameratest.record.FrameReader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A burst of still captures: count frames, intervalMs apart, read back as drawn and written
+ * to numbered JPEG or PNG files, e.g. burst-001.jpg.  Start one with
+ * {@link GPUImageRenderer#captureBurst(BurstCapture)}.
+ * <p>
+ * Frames are read back through a {@link FrameReader} and compressed on a small shared
+ * worker pool.  At most {@link #MAX_FRAMES_IN_FLIGHT} frames are read back or compressing
+ * at a time; a frame that falls due while the workers are all busy is put off to the next
+ * one drawn, so a slow compressor stretches the burst rather than piling up memory.  Bitmaps
+ * are pooled for the length of the burst.
+ * <p>
+ * The latency of each frame, from the render thread asking for it to its file being
+ * complete, is reported to the listener and kept for {@link #getCaptureLatencyNanos(int)}.
+ */
+public class BurstCapture {
+    private static final String TAG = "bingbing_burst";
+
+    /** Frames read back or compressing at once. */
+    public static final int MAX_FRAMES_IN_FLIGHT = 3;
+
+    private static final int WORKERS = Math.max(1,
+            Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    // Shared by all bursts; idle threads are daemons and cost nothing between bursts.
+    private static final ExecutorService sWorkers = Executors.newFixedThreadPool(WORKERS,
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BurstWorker-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Hears about a burst's frames, on the worker threads.
+     */
+    public interface Listener {
+        void onFrameSaved(BurstCapture burst, int index, File file, long latencyNanos);
+
+        void onFrameFailed(BurstCapture burst, int index, Exception e);
+    }
+
+    private final File mDirectory;
+    private final String mPrefix;
+    private final int mCount;
+    private final long mIntervalNanos;
+    private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.JPEG;
+    private int mQuality = 90;
+    private Listener mListener;
+
+    private final Completion mCompletion = new Completion();
+    private final long[] mLatencyNanos;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicInteger mSaved = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final ArrayDeque<Bitmap> mBitmaps = new ArrayDeque<Bitmap>();
+    private volatile boolean mCancelled;
+
+    // ----- render thread -----
+    private int mRequested;
+    private long mNextDueNanos;
+    private volatile int mDeferredFrames;
+
+
+    /**
+     * @param directory  where the files go
+     * @param prefix     file name prefix, followed by the frame number
+     * @param count      frames to capture
+     * @param intervalMs time between frames; 0 captures every frame drawn
+     */
+    public BurstCapture(File directory, String prefix, int count, long intervalMs) {
+        if (count <= 0 || intervalMs < 0) {
+            throw new IllegalArgumentException("bad burst " + count + " x " + intervalMs + "ms");
+        }
+        mDirectory = directory;
+        mPrefix = prefix;
+        mCount = count;
+        mIntervalNanos = intervalMs * 1000000L;
+        mLatencyNanos = new long[count];
+    }
+
+    /**
+     * Sets the file format, JPEG at quality 90 by default.  Set before the burst starts.
+     */
+    public void setFormat(Bitmap.CompressFormat format, int quality) {
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    /**
+     * Set before the burst starts.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Stops capturing further frames.  Frames already captured are still written.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Finishes when every frame is written, or failed, or the burst was cancelled and the
+     * frames captured so far are written.  Fails if any frame did.
+     */
+    public Completion getCompletion() {
+        return mCompletion;
+    }
+
+    /**
+     * Returns how long the frame took from being asked for to being on disk, or 0 if it
+     * hasn't been written (yet).
+     */
+    public long getCaptureLatencyNanos(int index) {
+        synchronized (mLatencyNanos) {
+            return mLatencyNanos[index];
+        }
+    }
+
+    public int getSavedFrames() {
+        return mSaved.get();
+    }
+
+    /**
+     * Returns how often a frame was put off because the workers were all busy.
+     */
+    public int getDeferredFrames() {
+        return mDeferredFrames;
+    }
+
+    public File getFile(int index) {
+        String ext = mFormat == Bitmap.CompressFormat.PNG ? "png" : "jpg";
+        return new File(mDirectory,
+                String.format(Locale.US, "%s-%03d.%s", mPrefix, index + 1, ext));
+    }
+
+    /**
+     * Called by the renderer for every frame drawn while the burst runs, with the frame
+     * still bound for reading.  Reads it back if one is due.  Returns false once the burst
+     * needs no more frames.
+     */
+    boolean onFrameDrawn(FrameReader reader, int width, int height) {
+        if (mCancelled && mRequested < mCount) {
+            finishRequests();
+            return false;
+        }
+        long now = System.nanoTime();
+        if (mRequested > 0 && now - mNextDueNanos < 0) {
+            return true;
+        }
+        if (mInFlight.get() >= MAX_FRAMES_IN_FLIGHT) {
+            mDeferredFrames++;
+            return true;
+        }
+        final int index = mRequested++;
+        // Keep to the schedule, but don't try to catch up after a stall.
+        mNextDueNanos = index == 0 || now - mNextDueNanos > mIntervalNanos
+                ? now + mIntervalNanos : mNextDueNanos + mIntervalNanos;
+        mInFlight.incrementAndGet();
+        final long requestNanos = now;
+        reader.read(width, height, sWorkers, new FrameReader.Callback() {
+            @Override
+            public void onFrameRead(ByteBuffer pixels, int width, int height) {
+                saveFrame(index, pixels, width, height, requestNanos);
+            }
+        });
+        return mRequested < mCount;
+    }
+
+    /**
+     * Worker thread.
+     */
+    private void saveFrame(int index, ByteBuffer pixels, int width, int height,
+                           long requestNanos) {
+        File file = getFile(index);
+        Bitmap bitmap = null;
+        try {
+            flipRows(pixels, width * 4, height);
+            bitmap = acquireBitmap(width, height);
+            bitmap.copyPixelsFromBuffer(pixels);
+            BufferedOutputStream bos = null;
+            try {
+                bos = new BufferedOutputStream(new FileOutputStream(file));
+                if (!bitmap.compress(mFormat, mQuality, bos)) {
+                    throw new IOException("compress failed");
+                }
+            } finally {
+                if (bos != null) bos.close();
+            }
+            long latencyNanos = System.nanoTime() - requestNanos;
+            synchronized (mLatencyNanos) {
+                mLatencyNanos[index] = latencyNanos;
+            }
+            mSaved.incrementAndGet();
+            if (mListener != null) {
+                mListener.onFrameSaved(this, index, file, latencyNanos);
+            }
+        } catch (Exception e) {
+            // Out of memory for a bitmap, the disk full, ...; the burst carries on.
+            Log.w(TAG, "failed to save burst frame " + index, e);
+            mFailed.incrementAndGet();
+            if (mListener != null) {
+                mListener.onFrameFailed(this, index, e);
+            }
+        } finally {
+            if (bitmap != null) {
+                releaseBitmap(bitmap);
+            }
+            mInFlight.decrementAndGet();
+            frameDone();
+        }
+    }
+
+    /**
+     * GL reads bottom row first; images are stored top row first.
+     */
+    private static void flipRows(ByteBuffer pixels, int stride, int height) {
+        byte[] top = new byte[stride];
+        byte[] bottom = new byte[stride];
+        for (int y = 0; y < height / 2; y++) {
+            int topOffset = y * stride;
+            int bottomOffset = (height - 1 - y) * stride;
+            pixels.position(topOffset);
+            pixels.get(top);
+            pixels.position(bottomOffset);
+            pixels.get(bottom);
+            pixels.position(bottomOffset);
+            pixels.put(top);
+            pixels.position(topOffset);
+            pixels.put(bottom);
+        }
+        pixels.position(0);
+    }
+
+    private Bitmap acquireBitmap(int width, int height) {
+        synchronized (mBitmaps) {
+            Bitmap bitmap = mBitmaps.poll();
+            if (bitmap != null && bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                return bitmap;
+            }
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private void releaseBitmap(Bitmap bitmap) {
+        synchronized (mBitmaps) {
+            if (mBitmaps.size() < MAX_FRAMES_IN_FLIGHT) {
+                mBitmaps.add(bitmap);
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Stops counting on frames that will never be asked for.  Render thread.
+     */
+    private void finishRequests() {
+        int skipped = mCount - mRequested;
+        mRequested = mCount;
+        for (int i = 0; i < skipped; i++) {
+            frameDone();
+        }
+    }
+
+    private void frameDone() {
+        if (mDone.incrementAndGet() < mCount) {
+            return;
+        }
+        synchronized (mBitmaps) {
+            for (Bitmap bitmap : mBitmaps) {
+                bitmap.recycle();
+            }
+            mBitmaps.clear();
+        }
+        int failed = mFailed.get();
+        Log.d(TAG, "burst done, " + getSavedFrames() + " of " + mCount + " saved, " +
+                mDeferredFrames + " deferrals");
+        if (failed > 0) {
+            mCompletion.fail(new IOException(failed + " of " + mCount + " frames failed"));
+        } else {
+            mCompletion.complete();
+        }
+    }
+}
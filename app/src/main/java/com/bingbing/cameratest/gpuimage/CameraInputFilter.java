@@ -50,7 +50,7 @@ public class CameraInputFilter extends GPUImageFilter {
     @Override
     public void onInit() {
         super.onInit();
-        mTextureTransformMatrixLocation = GLES20.glGetUniformLocation(mGLProgId, "textureTransform");
+        mTextureTransformMatrixLocation = mGl.glGetUniformLocation(mGLProgId, "textureTransform");
     }
     private long lastTime;
 
@@ -59,38 +59,40 @@ public class CameraInputFilter extends GPUImageFilter {
         Log.d("bingbing_time", "" + (System.currentTimeMillis() - lastTime));
         lastTime = System.currentTimeMillis();
 
-        GLES20.glUseProgram(mGLProgId);
+        mGl.glUseProgram(mGLProgId);
         runPendingOnDrawTasks();
         if (!isInitialized()) {
             return;
         }
 
         mSurfaceTexture.updateTexImage();
+        // updateTexImage() binds the camera texture behind the backend's back.
+        mGl.invalidate();
         float[] matrix = new float[16];
         mSurfaceTexture.getTransformMatrix(matrix);
 
 
         cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribPosition);
+        mGl.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+        mGl.glEnableVertexAttribArray(mGLAttribPosition);
         textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
+        mGl.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
                 textureBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
+        mGl.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
 
-        GLES20.glUniformMatrix4fv(mTextureTransformMatrixLocation, 1, false, matrix, 0);
+        mGl.glUniformMatrix4fv(mTextureTransformMatrixLocation, 1, false, matrix, 0);
 
 
         if (textureId != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
-            GLES20.glUniform1i(mGLUniformTexture, 0);
+            mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+            mGl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+            mGl.glUniform1i(mGLUniformTexture, 0);
         }
         onDrawArraysPre();
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glDisableVertexAttribArray(mGLAttribPosition);
-        GLES20.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        mGl.glDisableVertexAttribArray(mGLAttribPosition);
+        mGl.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
+        mGl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
     }
 
 
@@ -0,0 +1,366 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.bingbing.cameratest.record.FrameReader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands a small copy of every Nth filtered frame, luma or RGBA, to analysis code such as
+ * motion or face detection running on a worker thread.  Install with
+ * {@link GPUImageRenderer#setAnalysisTap(FrameAnalysisTap)}.
+ * <p>
+ * On the render thread the frame is scaled down on the GPU, in the luma case packing four
+ * pixels into each RGBA texel so a quarter of the data comes back, and read back through a
+ * {@link FrameReader}.  The pixels are copied into a pooled direct buffer and queued in an
+ * {@link SpscRing}; when the analyzer falls behind the oldest frame is dropped, so the render
+ * thread never waits for it.  Buffers come back to the render thread through a second ring,
+ * filled by the worker alone; a dropped frame is kept aside and reused by the next tap.
+ * <p>
+ * Frames are bottom row first, like everything read back from GL.
+ */
+public class FrameAnalysisTap {
+    private static final String TAG = "bingbing_tap";
+
+    /** One byte per pixel, BT.601 luma. */
+    public static final int FORMAT_LUMA = 0;
+    /** Four bytes per pixel, RGBA. */
+    public static final int FORMAT_RGBA = 1;
+
+    public static final int DEFAULT_WIDTH = 160;
+    public static final int DEFAULT_HEIGHT = 90;
+    /** Frames queued for the analyzer before the oldest is dropped. */
+    public static final int DEFAULT_QUEUE_SIZE = 3;
+
+    // Packs the luma of four horizontally adjacent output pixels into one texel.
+    private static final String LUMA_PACK_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform highp float lumaStep;\n" +
+            "const lowp vec3 W = vec3(0.299, 0.587, 0.114);\n" +
+            "\n" +
+            "lowp float luma(highp float dx) {\n" +
+            "    return dot(texture2D(inputImageTexture,\n" +
+            "            textureCoordinate + vec2(dx * lumaStep, 0.0)).rgb, W);\n" +
+            "}\n" +
+            "\n" +
+            "void main() {\n" +
+            "    gl_FragColor = vec4(luma(-1.5), luma(-0.5), luma(0.5), luma(1.5));\n" +
+            "}";
+
+    /**
+     * Analyzes frames, on the tap's worker thread.
+     */
+    public interface Analyzer {
+        /**
+         * @param frame only valid until this returns; its buffer is then reused
+         */
+        void analyze(Frame frame);
+    }
+
+    /**
+     * A downscaled frame.
+     */
+    public static class Frame {
+        private final ByteBuffer mData;
+        private long mTimeStampNanos;
+        private long mSequence;
+
+        Frame(int bytes) {
+            mData = ByteBuffer.allocateDirect(bytes);
+            mData.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Returns the pixels, tightly packed, from position 0.
+         */
+        public ByteBuffer getData() {
+            return mData;
+        }
+
+        public long getTimeStampNanos() {
+            return mTimeStampNanos;
+        }
+
+        /**
+         * Returns the frame's number among the frames tapped; gaps are dropped frames.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+    }
+
+    private final Analyzer mAnalyzer;
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mInterval;
+    private final SpscRing<Frame> mQueue;
+    private final SpscRing<Frame> mFreeFrames;
+    private final int mMaxFrames;
+    private volatile int mDroppedFrames;
+    private volatile boolean mRunning;
+    private Thread mThread;
+
+    // ----- render thread -----
+    private GlBackend mGl;
+    private GPUImageFilter mScaleFilter;
+    private RenderTarget mTarget;
+    private RenderTarget mCopyTarget;       // the window's frame, when there's no texture
+    private FrameReader mReader;
+    private int mAllocatedFrames;
+    // A frame dropped from the queue, filled next.  Not handed back through mFreeFrames: the
+    // worker must stay its only producer.
+    private Frame mSpareFrame;
+    private int mFrameCount;
+    private long mNextSequence;
+    private final FloatBuffer mCubeBuffer;
+    private final FloatBuffer mTextureBuffer;
+    // Runs FrameReader callbacks right away on the render thread.
+    private final Executor mDirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+
+    /**
+     * Taps every frame at the default size and queue length.
+     */
+    public FrameAnalysisTap(Analyzer analyzer, int format) {
+        this(analyzer, format, DEFAULT_WIDTH, DEFAULT_HEIGHT, 1, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param width     for FORMAT_LUMA, a multiple of 4
+     * @param interval  taps every interval'th frame drawn
+     * @param queueSize frames waiting for the analyzer before the oldest is dropped
+     */
+    public FrameAnalysisTap(Analyzer analyzer, int format, int width, int height, int interval,
+                            int queueSize) {
+        if (format != FORMAT_LUMA && format != FORMAT_RGBA) {
+            throw new IllegalArgumentException("unknown format " + format);
+        }
+        if (width <= 0 || height <= 0 || (format == FORMAT_LUMA && width % 4 != 0)) {
+            throw new IllegalArgumentException("bad tap size " + width + "x" + height);
+        }
+        if (interval <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("bad interval " + interval + " or queue size " +
+                    queueSize);
+        }
+        mAnalyzer = analyzer;
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mInterval = interval;
+        mQueue = new SpscRing<Frame>(queueSize);
+        // Queued, plus one being filled and one being analyzed.
+        mMaxFrames = queueSize + 2;
+        mFreeFrames = new SpscRing<Frame>(mMaxFrames);
+        mCubeBuffer = ByteBuffer.allocateDirect(GPUImageRenderer.CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mCubeBuffer.put(GPUImageRenderer.CUBE).position(0);
+        mTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mTextureBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the frames dropped because the analyzer was behind.
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private int getFrameBytes() {
+        return mFormat == FORMAT_LUMA ? mWidth * mHeight : mWidth * mHeight * 4;
+    }
+
+    /**
+     * Starts the worker thread.  Called by the renderer on the render thread.
+     */
+    void start(GlBackend gl) {
+        mGl = gl;
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "FrameAnalysis");
+        mThread.start();
+    }
+
+    /**
+     * Taps the frame if it's due.  texture is the chain's output, or NO_TEXTURE if it was
+     * drawn straight to the bound framebuffer, width x height.  Leaves the default
+     * framebuffer bound; the viewport is not restored.
+     */
+    void onFrameDrawn(int texture, int width, int height, long timeStampNanos) {
+        if (mReader == null) {
+            init();
+        }
+        // Deliver earlier reads first, freeing their buffers.
+        mReader.poll();
+        if (mFrameCount++ % mInterval != 0) {
+            return;
+        }
+
+        if (texture == OpenGlUtils.NO_TEXTURE) {
+            if (mCopyTarget == null || mCopyTarget.getWidth() != width
+                    || mCopyTarget.getHeight() != height) {
+                releaseTarget(mCopyTarget);
+                mCopyTarget = RenderTargetPool.getInstance().acquire(mGl, width, height);
+            }
+            mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mCopyTarget.getTexture());
+            mGl.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, 0, 0, width, height);
+            mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            texture = mCopyTarget.getTexture();
+        }
+
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mTarget.getFramebuffer());
+        mGl.glViewport(0, 0, mTarget.getWidth(), mTarget.getHeight());
+        mScaleFilter.onDraw(texture, mCubeBuffer, mTextureBuffer, timeStampNanos);
+        final long sequence = mNextSequence++;
+        final long frameTimeNanos = timeStampNanos;
+        mReader.read(mTarget.getWidth(), mTarget.getHeight(), mDirectExecutor,
+                new FrameReader.Callback() {
+                    @Override
+                    public void onFrameRead(ByteBuffer pixels, int width, int height) {
+                        publish(pixels, sequence, frameTimeNanos);
+                    }
+                });
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    private void init() {
+        if (mFormat == FORMAT_LUMA) {
+            mScaleFilter = new GPUImageFilter(GPUImageFilter.NO_FILTER_VERTEX_SHADER,
+                    LUMA_PACK_FRAGMENT_SHADER) {
+                private int mLumaStepLocation;
+
+                @Override
+                public void onInit() {
+                    super.onInit();
+                    mLumaStepLocation = mGl.glGetUniformLocation(getProgram(), "lumaStep");
+                }
+
+                @Override
+                protected void onDrawArraysPre() {
+                    mGl.glUniform1f(mLumaStepLocation, 1.0f / mWidth);
+                }
+            };
+            mTarget = RenderTargetPool.getInstance().acquire(mGl, mWidth / 4, mHeight);
+        } else {
+            mScaleFilter = new GPUImageFilter();
+            mTarget = RenderTargetPool.getInstance().acquire(mGl, mWidth, mHeight);
+        }
+        mScaleFilter.setGlBackend(mGl);
+        mScaleFilter.init();
+        mScaleFilter.onOutputSizeChanged(mTarget.getWidth(), mTarget.getHeight());
+        mReader = new FrameReader(ProgramCache.getInstance().getGlVersion());
+    }
+
+    /**
+     * Copies read-back pixels into a free frame and queues it.  Render thread.
+     */
+    private void publish(ByteBuffer pixels, long sequence, long timeStampNanos) {
+        Frame frame = mSpareFrame;
+        mSpareFrame = null;
+        if (frame == null) {
+            frame = mFreeFrames.poll();
+        }
+        if (frame == null) {
+            if (mAllocatedFrames == mMaxFrames) {
+                // Can't happen while the analyzer hands frames back; don't grow regardless.
+                mDroppedFrames++;
+                return;
+            }
+            mAllocatedFrames++;
+            frame = new Frame(getFrameBytes());
+        }
+        frame.mData.clear();
+        frame.mData.put(pixels);
+        frame.mData.flip();
+        frame.mSequence = sequence;
+        frame.mTimeStampNanos = timeStampNanos;
+        Frame dropped = mQueue.offer(frame);
+        if (dropped != null) {
+            mDroppedFrames++;
+            mSpareFrame = dropped;
+        }
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Worker thread loop.
+     */
+    private void consume() {
+        while (mRunning) {
+            Frame frame = mQueue.poll();
+            if (frame == null) {
+                // Woken by publish(); the timeout only guards against a missed wakeup.
+                LockSupport.parkNanos(this, 100000000L);
+                continue;
+            }
+            try {
+                frame.mData.position(0);
+                mAnalyzer.analyze(frame);
+            } catch (RuntimeException re) {
+                Log.w(TAG, "analyzer failed on frame " + frame.mSequence, re);
+            } finally {
+                // Room for every frame, so nothing is dropped here.
+                mFreeFrames.offer(frame);
+            }
+        }
+        Log.d(TAG, "analysis thread exiting, " + mDroppedFrames + " frames dropped");
+    }
+
+    /**
+     * Stops the worker and frees the GL resources.  Called by the renderer on the render
+     * thread.  Frames still queued are not analyzed.
+     */
+    void release() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        if (mReader != null) {
+            mReader.release();
+            mReader = null;
+        }
+        if (mScaleFilter != null) {
+            mScaleFilter.destroy();
+            mScaleFilter = null;
+        }
+        releaseTarget(mTarget);
+        releaseTarget(mCopyTarget);
+        mTarget = null;
+        mCopyTarget = null;
+    }
+
+    private void releaseTarget(RenderTarget target) {
+        if (target != null) {
+            RenderTargetPool.getInstance().release(mGl, target);
+        }
+    }
+}
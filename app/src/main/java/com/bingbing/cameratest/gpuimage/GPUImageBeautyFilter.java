@@ -0,0 +1,301 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Skin-smoothing filter, a cheaper replacement for the 13-tap "shader4" beauty shader.
+ * <p>
+ * The blue channel is blurred with two separable Gaussian passes into a reduced-resolution
+ * buffer (half or quarter size), then a full-resolution composite pass takes the high-pass
+ * difference against the blurred buffer and applies the same hard-light / luma-mix math as
+ * shader4.  That is 2 texture fetches per output pixel at full resolution instead of 13.
+ * <p>
+ * Strength and radius are uniforms, and the blur offsets follow the actual output size rather
+ * than assuming 1280x720.  See {@code reference.SeparableBeautyReference} for the CPU version
+ * of this pipeline.
+ * <p>
+ * This group draws its own passes, so a parent group will not flatten it.
+ */
+public class GPUImageBeautyFilter extends GPUImageFilterGroup {
+    /** Default radius, in output pixels.  shader4's outer taps reach ~14px at 1280x720. */
+    public static final float DEFAULT_RADIUS = 12.0f;
+    /** Default strength; 1.0 matches shader4. */
+    public static final float DEFAULT_STRENGTH = 1.0f;
+
+    // 9-tap Gaussian, sigma = 2 taps.  Taps are spaced radius / 4 output pixels apart, so the
+    // kernel reaches radius pixels either way.
+    private static final String BLUR_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform highp vec2 texelStep;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    float sum = texture2D(inputImageTexture, textureCoordinate).b * 0.2042;\n" +
+            "    sum += texture2D(inputImageTexture, textureCoordinate + texelStep).b * 0.1802;\n" +
+            "    sum += texture2D(inputImageTexture, textureCoordinate - texelStep).b * 0.1802;\n" +
+            "    sum += texture2D(inputImageTexture, textureCoordinate + 2.0 * texelStep).b * 0.1238;\n" +
+            "    sum += texture2D(inputImageTexture, textureCoordinate - 2.0 * texelStep).b * 0.1238;\n" +
+            "    sum += texture2D(inputImageTexture, textureCoordinate + 3.0 * texelStep).b * 0.0663;\n" +
+            "    sum += texture2D(inputImageTexture, textureCoordinate - 3.0 * texelStep).b * 0.0663;\n" +
+            "    sum += texture2D(inputImageTexture, textureCoordinate + 4.0 * texelStep).b * 0.0276;\n" +
+            "    sum += texture2D(inputImageTexture, textureCoordinate - 4.0 * texelStep).b * 0.0276;\n" +
+            "    gl_FragColor = vec4(sum, sum, sum, 1.0);\n" +
+            "}";
+
+    // The blurred buffer was rendered in output space, so it is sampled with coordinates
+    // derived from the vertex position rather than the (possibly flipped) input coordinates.
+    private static final String COMPOSITE_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "varying vec2 blurCoordinate;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "    blurCoordinate = position.xy * 0.5 + 0.5;\n" +
+            "}";
+
+    // shader4 weights the center tap 20/32, so its "blur" is mix(ring, center, 0.625).
+    private static final String COMPOSITE_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying highp vec2 blurCoordinate;\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D blurTexture;\n" +
+            "uniform float strength;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec3 centralColor = texture2D(inputImageTexture, textureCoordinate).rgb;\n" +
+            "    float blurred = texture2D(blurTexture, blurCoordinate).b;\n" +
+            "    float sampleColor = mix(blurred, centralColor.b, 0.625);\n" +
+            "    float dis = centralColor.b - sampleColor + 0.5;\n" +
+            "    for (int i = 0; i < 5; i++) {\n" +
+            "        if (dis <= 0.5) {\n" +
+            "            dis = dis * dis * 2.0;\n" +
+            "        } else {\n" +
+            "            dis = 1.0 - ((1.0 - dis) * (1.0 - dis) * 2.0);\n" +
+            "        }\n" +
+            "    }\n" +
+            "    float aa = 1.0 + 0.065 * strength;\n" +
+            "    vec3 smoothColor = centralColor * aa - vec3(dis) * (aa - 1.0);\n" +
+            "    float hue = dot(smoothColor, vec3(0.299, 0.587, 0.114));\n" +
+            "    hue = clamp(hue - 0.3, 0.0, 1.0);\n" +
+            "    vec3 color = mix(centralColor, smoothColor, pow(hue, 0.3));\n" +
+            "    gl_FragColor = vec4((color - vec3(0.8)) * 1.06 + vec3(0.8), 1.0);\n" +
+            "}";
+
+    private final int mDownsample;
+    private final BlurPass mHorizontalPass;
+    private final BlurPass mVerticalPass;
+    private final CompositePass mCompositePass;
+
+    private float mStrength = DEFAULT_STRENGTH;
+    private float mRadius = DEFAULT_RADIUS;
+
+    private int mBlurWidth;
+    private int mBlurHeight;
+    private RenderTarget mHorizontalTarget;
+    private RenderTarget mVerticalTarget;
+    private final int[] mSavedFrameBuffer = new int[1];
+
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+
+    /**
+     * Creates a beauty filter that blurs at half resolution.
+     */
+    public GPUImageBeautyFilter() {
+        this(2);
+    }
+
+    /**
+     * @param downsample Resolution divisor for the blur buffer, usually 2 or 4.
+     */
+    public GPUImageBeautyFilter(int downsample) {
+        if (downsample < 1) {
+            throw new IllegalArgumentException("downsample must be >= 1: " + downsample);
+        }
+        mDownsample = downsample;
+        mHorizontalPass = new BlurPass();
+        mVerticalPass = new BlurPass();
+        mCompositePass = new CompositePass();
+        addFilter(mHorizontalPass);
+        addFilter(mVerticalPass);
+        addFilter(mCompositePass);
+
+        mGLCubeBuffer = ByteBuffer.allocateDirect(GPUImageRenderer.CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(GPUImageRenderer.CUBE).position(0);
+
+        mGLTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setStrength(mStrength);
+        setRadius(mRadius);
+    }
+
+    /**
+     * Sets the smoothing strength.  0 disables smoothing, 1 matches shader4.
+     */
+    public void setStrength(final float strength) {
+        mStrength = strength;
+        if (isInitialized()) {
+            mCompositePass.setFloat(mCompositePass.mStrengthLocation, strength);
+        }
+    }
+
+    public float getStrength() {
+        return mStrength;
+    }
+
+    /**
+     * Sets the blur radius, in output pixels.
+     */
+    public void setRadius(final float radius) {
+        mRadius = radius;
+        updateTexelSteps();
+    }
+
+    public float getRadius() {
+        return mRadius;
+    }
+
+    public int getDownsample() {
+        return mDownsample;
+    }
+
+    @Override
+    protected boolean isMergeable() {
+        return false;
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyBlurFramebuffers();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        mOutputWidth = width;
+        mOutputHeight = height;
+        destroyBlurFramebuffers();
+
+        mBlurWidth = Math.max(1, width / mDownsample);
+        mBlurHeight = Math.max(1, height / mDownsample);
+        mHorizontalPass.onOutputSizeChanged(mBlurWidth, mBlurHeight);
+        mVerticalPass.onOutputSizeChanged(mBlurWidth, mBlurHeight);
+        mCompositePass.onOutputSizeChanged(width, height);
+        updateTexelSteps();
+
+        RenderTargetPool pool = RenderTargetPool.getInstance();
+        mHorizontalTarget = pool.acquire(mGl, mBlurWidth, mBlurHeight);
+        mVerticalTarget = pool.acquire(mGl, mBlurWidth, mBlurHeight);
+    }
+
+    private void destroyBlurFramebuffers() {
+        RenderTargetPool pool = RenderTargetPool.getInstance();
+        pool.release(mGl, mHorizontalTarget);
+        pool.release(mGl, mVerticalTarget);
+        mHorizontalTarget = null;
+        mVerticalTarget = null;
+    }
+
+    private void updateTexelSteps() {
+        if (!isInitialized() || mOutputWidth == 0 || mOutputHeight == 0) {
+            return;
+        }
+        // Offsets are in texture space, so they don't depend on the blur buffer size.
+        float step = mRadius / 4.0f;
+        mHorizontalPass.setFloatVec2(mHorizontalPass.mTexelStepLocation,
+                new float[]{step / mOutputWidth, 0.0f});
+        mVerticalPass.setFloatVec2(mVerticalPass.mTexelStepLocation,
+                new float[]{0.0f, step / mOutputHeight});
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer, long timeStampNanos) {
+        runPendingOnDrawTasks();
+        if (!isInitialized() || mHorizontalTarget == null) {
+            return;
+        }
+
+        // We're drawn into whatever framebuffer the parent bound for us; remember it.
+        mGl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFrameBuffer, 0);
+
+        mGl.glViewport(0, 0, mBlurWidth, mBlurHeight);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mHorizontalTarget.getFramebuffer());
+        mHorizontalPass.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mVerticalTarget.getFramebuffer());
+        mVerticalPass.onDraw(mHorizontalTarget.getTexture(), mGLCubeBuffer, mGLTextureBuffer,
+                timeStampNanos);
+
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFrameBuffer[0]);
+        mGl.glViewport(0, 0, mOutputWidth, mOutputHeight);
+        mCompositePass.mBlurTexture = mVerticalTarget.getTexture();
+        mCompositePass.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+    }
+
+    /**
+     * One direction of the separable Gaussian.
+     */
+    private static class BlurPass extends GPUImageFilter {
+        int mTexelStepLocation;
+
+        BlurPass() {
+            super(NO_FILTER_VERTEX_SHADER, BLUR_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mTexelStepLocation = mGl.glGetUniformLocation(getProgram(), "texelStep");
+        }
+    }
+
+    /**
+     * Full-resolution high-pass and composite.
+     */
+    private static class CompositePass extends GPUImageFilter {
+        int mStrengthLocation;
+        int mBlurTextureLocation;
+        int mBlurTexture = OpenGlUtils.NO_TEXTURE;
+
+        CompositePass() {
+            super(COMPOSITE_VERTEX_SHADER, COMPOSITE_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mStrengthLocation = mGl.glGetUniformLocation(getProgram(), "strength");
+            mBlurTextureLocation = mGl.glGetUniformLocation(getProgram(), "blurTexture");
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            mGl.glActiveTexture(GLES20.GL_TEXTURE3);
+            mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mBlurTexture);
+            mGl.glUniform1i(mBlurTextureLocation, 3);
+            mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
+    }
+}
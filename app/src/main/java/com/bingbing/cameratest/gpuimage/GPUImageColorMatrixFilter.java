@@ -0,0 +1,55 @@
+package com.bingbing.cameratest.gpuimage;
+
+/**
+ * Mixes the color with itself multiplied by a 3x3 matrix, e.g. the saturation boost at the end
+ * of the "shader" beauty variant.  Point-wise, so it fuses with neighbouring color filters.
+ */
+public class GPUImageColorMatrixFilter extends GPUImagePointwiseFilter {
+    /** The saturation matrix of the "shader" beauty variant, column-major. */
+    public static final float[] SATURATE_MATRIX = {
+            1.1102f, -0.0598f, -0.061f,
+            -0.0774f, 1.0826f, -0.1186f,
+            -0.0228f, -0.0228f, 1.1772f,
+    };
+
+    // Row vector times matrix, as in the original shader.
+    private static final String SOURCE = "" +
+            "uniform mat3 $colorMatrix;\n" +
+            "uniform float $intensity;\n" +
+            "\n" +
+            "vec4 $apply(vec4 color)\n" +
+            "{\n" +
+            "    vec3 matrixColor = color.rgb * $colorMatrix;\n" +
+            "    return vec4(mix(color.rgb, matrixColor, $intensity), color.a);\n" +
+            "}\n";
+
+    private final int mColorMatrixUniform;
+    private final int mIntensityUniform;
+
+    /**
+     * Creates the saturation boost of the "shader" beauty variant.
+     */
+    public GPUImageColorMatrixFilter() {
+        this(SATURATE_MATRIX, 0.25f);
+    }
+
+    /**
+     * @param matrix    Column-major 3x3 matrix.
+     * @param intensity How much of the transformed color to use, 0 to 1.
+     */
+    public GPUImageColorMatrixFilter(float[] matrix, float intensity) {
+        super(SOURCE);
+        mColorMatrixUniform = declareUniform("colorMatrix", UNIFORM_MAT3);
+        mIntensityUniform = declareUniform("intensity", UNIFORM_FLOAT);
+        setColorMatrix(matrix);
+        setIntensity(intensity);
+    }
+
+    public void setColorMatrix(float[] matrix) {
+        setUniform(mColorMatrixUniform, matrix);
+    }
+
+    public void setIntensity(float intensity) {
+        setUniform(mIntensityUniform, intensity);
+    }
+}
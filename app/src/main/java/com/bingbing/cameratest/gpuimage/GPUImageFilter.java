@@ -57,6 +57,8 @@ public class GPUImageFilter {
     protected int mOutputWidth;
     protected int mOutputHeight;
     private boolean mIsInitialized;
+    private String mName;
+    protected GlBackend mGl = AndroidGlBackend.getInstance();
 
     public GPUImageFilter() {
         this(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
@@ -75,10 +77,10 @@ public class GPUImageFilter {
     }
 
     public void onInit() {
-        mGLProgId = OpenGlUtils.loadProgram(mVertexShader, mFragmentShader);
-        mGLAttribPosition = GLES20.glGetAttribLocation(mGLProgId, "position");
-        mGLUniformTexture = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
-        mGLAttribTextureCoordinate = GLES20.glGetAttribLocation(mGLProgId,
+        mGLProgId = mGl.loadProgram(mVertexShader, mFragmentShader);
+        mGLAttribPosition = mGl.glGetAttribLocation(mGLProgId, "position");
+        mGLUniformTexture = mGl.glGetUniformLocation(mGLProgId, "inputImageTexture");
+        mGLAttribTextureCoordinate = mGl.glGetAttribLocation(mGLProgId,
                 "inputTextureCoordinate");
         mIsInitialized = true;
     }
@@ -88,7 +90,7 @@ public class GPUImageFilter {
 
     public final void destroy() {
         mIsInitialized = false;
-        GLES20.glDeleteProgram(mGLProgId);
+        mGl.releaseProgram(mGLProgId);
         onDestroy();
     }
 
@@ -102,29 +104,29 @@ public class GPUImageFilter {
 
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer, long timeStampNanos) {
-        GLES20.glUseProgram(mGLProgId);
+        mGl.glUseProgram(mGLProgId);
         runPendingOnDrawTasks();
         if (!mIsInitialized) {
             return;
         }
 
         cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribPosition);
+        mGl.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+        mGl.glEnableVertexAttribArray(mGLAttribPosition);
         textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
+        mGl.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
                 textureBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
+        mGl.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
-            GLES20.glUniform1i(mGLUniformTexture, 0);
+            mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+            mGl.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            mGl.glUniform1i(mGLUniformTexture, 0);
         }
         onDrawArraysPre();
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glDisableVertexAttribArray(mGLAttribPosition);
-        GLES20.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        mGl.glDisableVertexAttribArray(mGLAttribPosition);
+        mGl.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
 
     protected void onDrawArraysPre() {}
@@ -135,6 +137,36 @@ public class GPUImageFilter {
         }
     }
 
+    /**
+     * Sets the GL backend this filter draws through.  Must be called before init().
+     */
+    public void setGlBackend(final GlBackend gl) {
+        mGl = gl;
+    }
+
+    public GlBackend getGlBackend() {
+        return mGl;
+    }
+
+    /**
+     * Names the filter in timings such as {@link PassTimer}'s.  Defaults to the class name.
+     */
+    public void setName(final String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        if (mName == null) {
+            mName = getDefaultName();
+        }
+        return mName;
+    }
+
+    protected String getDefaultName() {
+        String name = getClass().getName();
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
     public boolean isInitialized() {
         return mIsInitialized;
     }
@@ -167,7 +199,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform1i(location, intValue);
+                mGl.glUniform1i(location, intValue);
             }
         });
     }
@@ -176,7 +208,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform1f(location, floatValue);
+                mGl.glUniform1f(location, floatValue);
             }
         });
     }
@@ -185,7 +217,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
+                mGl.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
             }
         });
     }
@@ -194,7 +226,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
+                mGl.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
             }
         });
     }
@@ -203,7 +235,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
+                mGl.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
             }
         });
     }
@@ -212,7 +244,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
+                mGl.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
             }
         });
     }
@@ -225,7 +257,7 @@ public class GPUImageFilter {
                 float[] vec2 = new float[2];
                 vec2[0] = point.x;
                 vec2[1] = point.y;
-                GLES20.glUniform2fv(location, 1, vec2, 0);
+                mGl.glUniform2fv(location, 1, vec2, 0);
             }
         });
     }
@@ -235,7 +267,7 @@ public class GPUImageFilter {
 
             @Override
             public void run() {
-                GLES20.glUniformMatrix3fv(location, 1, false, matrix, 0);
+                mGl.glUniformMatrix3fv(location, 1, false, matrix, 0);
             }
         });
     }
@@ -245,7 +277,7 @@ public class GPUImageFilter {
 
             @Override
             public void run() {
-                GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
+                mGl.glUniformMatrix4fv(location, 1, false, matrix, 0);
             }
         });
     }
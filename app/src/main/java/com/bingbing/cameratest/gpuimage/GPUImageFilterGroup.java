@@ -33,12 +33,25 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
     protected List<GPUImageFilter> mFilters;
     protected List<GPUImageFilter> mMergedFilters;
-    private int[] mFrameBuffers;
-    private int[] mFrameBufferTextures;
+    private RenderTarget[] mTargets;
+    // Index into mTargets of the target each pass but the last renders into.
+    private int[] mPassTargets;
+    private boolean mReuseFramebuffers = true;
+
+    // Generated passes for runs of point-wise filters in mMergedFilters.  Retired ones are
+    // destroyed on the GL thread at the next draw.
+    private boolean mFusePointwiseFilters = true;
+    private final List<GPUImageFusedFilter> mFusedFilters = new ArrayList<GPUImageFusedFilter>();
+    private final List<GPUImageFusedFilter> mRetiredFusedFilters =
+            new ArrayList<GPUImageFusedFilter>();
 
     private final FloatBuffer mGLCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
     private final FloatBuffer mGLTextureFlipBuffer;
+    private final int[] mSavedFrameBuffer = new int[1];
+
+    // Times each merged pass when on; created and released on the GL thread.
+    private volatile PassTimer mPassTimer;
 
     /**
      * Instantiates a new GPUImageFilterGroup with no filters.
@@ -81,10 +94,76 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         if (aFilter == null) {
             return;
         }
+        aFilter.setGlBackend(mGl);
         mFilters.add(aFilter);
         updateMergedFilters();
     }
 
+    /**
+     * Chooses between one framebuffer per intermediate result and a minimal set of ping-pong
+     * framebuffers shared by passes whose results are no longer needed.  Reuse is on by
+     * default; turn it off to inspect every intermediate.  Takes effect at the next
+     * onOutputSizeChanged().
+     */
+    public void setReuseFramebuffers(boolean reuse) {
+        mReuseFramebuffers = reuse;
+    }
+
+    /**
+     * Enables or disables compiling runs of consecutive {@link GPUImagePointwiseFilter}s into a
+     * single pass.  On by default.  Takes effect at the next draw.
+     */
+    public void setFusePointwiseFilters(final boolean fuse) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mFusePointwiseFilters == fuse) {
+                    return;
+                }
+                mFusePointwiseFilters = fuse;
+                updateMergedFilters();
+                // The pass count changed; a sized group needs targets for the new passes.
+                if (mTargets != null) {
+                    destroyFramebuffers();
+                    allocateFramebuffers();
+                }
+            }
+        });
+    }
+
+    /**
+     * Times each pass of the chain from the next draw, by filter name; see {@link PassTimer}.
+     * Off by default.  Don't turn it on for a group drawn inside another timed group: the
+     * GPU timer queries can't nest.
+     */
+    public void setPassTiming(final boolean enabled) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (enabled && mPassTimer == null) {
+                    mPassTimer = new PassTimer(mGl, ProgramCache.getInstance().getGlVersion());
+                } else if (!enabled && mPassTimer != null) {
+                    mPassTimer.release();
+                    mPassTimer = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the pass timings, or null if pass timing is off.  Any thread.
+     */
+    public PassTimer getPassTimer() {
+        return mPassTimer;
+    }
+
+    /**
+     * Returns the number of intermediate framebuffers currently allocated.
+     */
+    public int getFramebufferCount() {
+        return mTargets == null ? 0 : mTargets.length;
+    }
+
     public void removeFilter(GPUImageFilter rFilter) {
         if (rFilter == null) {
             return;
@@ -98,6 +177,21 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         updateMergedFilters();
     }
 
+    /**
+     * Sets the GL backend of this group and all of its filters.  Filters added later inherit
+     * it too.
+     */
+    @Override
+    public void setGlBackend(final GlBackend gl) {
+        super.setGlBackend(gl);
+        for (GPUImageFilter filter : mFilters) {
+            filter.setGlBackend(gl);
+        }
+        for (GPUImageFilter filter : mFusedFilters) {
+            filter.setGlBackend(gl);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see jp.co.cyberagent.android.gpuimage.GPUImageFilter#onInit()
@@ -116,21 +210,39 @@ public class GPUImageFilterGroup extends GPUImageFilter {
      */
     @Override
     public void onDestroy() {
+        if (mPassTimer != null) {
+            mPassTimer.release();
+            mPassTimer = null;
+        }
         destroyFramebuffers();
+        destroyRetiredFusedFilters();
+        for (GPUImageFilter filter : mFusedFilters) {
+            if (filter.isInitialized()) {
+                filter.destroy();
+            }
+        }
         for (GPUImageFilter filter : mFilters) {
             filter.destroy();
         }
         super.onDestroy();
     }
 
-    private void destroyFramebuffers() {
-        if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
-            mFrameBufferTextures = null;
+    private void destroyRetiredFusedFilters() {
+        for (GPUImageFilter filter : mRetiredFusedFilters) {
+            if (filter.isInitialized()) {
+                filter.destroy();
+            }
         }
-        if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
-            mFrameBuffers = null;
+        mRetiredFusedFilters.clear();
+    }
+
+    private void destroyFramebuffers() {
+        if (mTargets != null) {
+            RenderTargetPool pool = RenderTargetPool.getInstance();
+            for (RenderTarget target : mTargets) {
+                pool.release(mGl, target);
+            }
+            mTargets = null;
         }
     }
 
@@ -143,41 +255,28 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onOutputSizeChanged(final int width, final int height) {
         super.onOutputSizeChanged(width, height);
-        if (mFrameBuffers != null) {
-            destroyFramebuffers();
-        }
+        // Hand the old targets back first, so that a same-size call gets them straight back.
+        destroyFramebuffers();
 
         int size = mFilters.size();
         for (int i = 0; i < size; i++) {
             mFilters.get(i).onOutputSizeChanged(width, height);
         }
+        for (GPUImageFilter filter : mFusedFilters) {
+            filter.onOutputSizeChanged(width, height);
+        }
+
+        allocateFramebuffers();
+    }
 
+    private void allocateFramebuffers() {
         if (mMergedFilters != null && mMergedFilters.size() > 0) {
-            size = mMergedFilters.size();
-            mFrameBuffers = new int[size - 1];
-            mFrameBufferTextures = new int[size - 1];
-
-            for (int i = 0; i < size - 1; i++) {
-                GLES20.glGenFramebuffers(1, mFrameBuffers, i);
-                GLES20.glGenTextures(1, mFrameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                        GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            mPassTargets = new int[mMergedFilters.size() - 1];
+            int targets = assignPassTargets(mPassTargets);
+            mTargets = new RenderTarget[targets];
+            RenderTargetPool pool = RenderTargetPool.getInstance();
+            for (int i = 0; i < targets; i++) {
+                mTargets[i] = pool.acquire(mGl, mOutputWidth, mOutputHeight);
             }
         }
     }
@@ -192,20 +291,41 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer, long timeStampNanos) {
         runPendingOnDrawTasks();
-        if (!isInitialized() || mFrameBuffers == null || mFrameBufferTextures == null) {
+        if (!isInitialized() || mTargets == null) {
             return;
         }
+        destroyRetiredFusedFilters();
+        PassTimer timer = mPassTimer;
+        if (timer != null) {
+            timer.beginFrame();
+        }
         if (mMergedFilters != null) {
             int size = mMergedFilters.size();
             int previousTexture = textureId;
+            // The last pass draws into whatever framebuffer the caller bound for us, e.g. the
+            // renderer's offscreen target; remember it.
+            if (size > 1) {
+                mGl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFrameBuffer, 0);
+            }
             for (int i = 0; i < size; i++) {
                 GPUImageFilter filter = mMergedFilters.get(i);
+                if (!filter.isInitialized() && filter instanceof GPUImageFusedFilter) {
+                    // Fused passes are created whenever the chain changes; compile on first use.
+                    filter.init();
+                    filter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+                }
                 boolean isNotLast = i < size - 1;
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                    GLES20.glClearColor(0, 0, 0, 0);
+                    mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,
+                            mTargets[mPassTargets[i]].getFramebuffer());
+                    mGl.glClearColor(0, 0, 0, 0);
+                } else if (size > 1) {
+                    mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFrameBuffer[0]);
                 }
 
+                if (timer != null) {
+                    timer.begin(filter);
+                }
                 if (i == 0) {
                     filter.onDraw(previousTexture, cubeBuffer, textureBuffer, timeStampNanos);
                 } else if (i == size - 1) {
@@ -213,15 +333,55 @@ public class GPUImageFilterGroup extends GPUImageFilter {
                 } else {
                     filter.onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer, timeStampNanos);
                 }
+                if (timer != null) {
+                    timer.end();
+                }
 
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                    previousTexture = mFrameBufferTextures[i];
+                    previousTexture = mTargets[mPassTargets[i]].getTexture();
                 }
             }
         }
      }
 
+    /**
+     * Maps each pass but the last to a render target and returns the number of targets.
+     * <p>
+     * The result of pass i is live from the end of pass i until pass i + 1 has read it.  A
+     * target is handed back to the free list once its result is dead, so with reuse on a
+     * linear chain needs only two targets however long it is, and the allocation follows the
+     * intervals rather than assuming that.
+     */
+    private int assignPassTargets(int[] passTargets) {
+        int passes = passTargets.length;
+        if (!mReuseFramebuffers) {
+            for (int i = 0; i < passes; i++) {
+                passTargets[i] = i;
+            }
+            return passes;
+        }
+
+        // lastUse[i]: the pass that last reads the result of pass i.
+        int[] lastUse = new int[passes];
+        for (int i = 0; i < passes; i++) {
+            lastUse[i] = i + 1;
+        }
+
+        List<Integer> free = new ArrayList<Integer>();
+        int targets = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            // Results last read by an earlier pass are dead; recycle their targets.  The
+            // result this pass reads is still live while it draws.
+            for (int j = 0; j < pass; j++) {
+                if (lastUse[j] == pass - 1) {
+                    free.add(passTargets[j]);
+                }
+            }
+            passTargets[pass] = free.isEmpty() ? targets++ : free.remove(free.size() - 1);
+        }
+        return targets;
+    }
+
     /**
      * Gets the filters.
      *
@@ -235,6 +395,15 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         return mMergedFilters;
     }
 
+    /**
+     * Returns true if a parent group may inline this group's filters into its own chain.
+     * Groups that schedule their own passes in onDraw() return false so that they are drawn
+     * as a single filter.
+     */
+    protected boolean isMergeable() {
+        return true;
+    }
+
     public void updateMergedFilters() {
         if (mFilters == null) {
             return;
@@ -246,17 +415,66 @@ public class GPUImageFilterGroup extends GPUImageFilter {
             mMergedFilters.clear();
         }
 
-        List<GPUImageFilter> filters;
-        for (GPUImageFilter filter : mFilters) {
-            if (filter instanceof GPUImageFilterGroup) {
-                ((GPUImageFilterGroup) filter).updateMergedFilters();
-                filters = ((GPUImageFilterGroup) filter).getMergedFilters();
-                if (filters == null || filters.isEmpty())
-                    continue;
-                mMergedFilters.addAll(filters);
+        List<GPUImageFilter> filters = new ArrayList<GPUImageFilter>();
+        collectMergedFilters(filters);
+
+        List<GPUImageFusedFilter> fused = new ArrayList<GPUImageFusedFilter>();
+        List<GPUImagePointwiseFilter> run = new ArrayList<GPUImagePointwiseFilter>();
+        for (GPUImageFilter filter : filters) {
+            if (mFusePointwiseFilters && filter instanceof GPUImagePointwiseFilter) {
+                run.add((GPUImagePointwiseFilter) filter);
                 continue;
             }
+            addRun(run, fused);
             mMergedFilters.add(filter);
         }
+        addRun(run, fused);
+
+        for (GPUImageFusedFilter filter : mFusedFilters) {
+            if (!fused.contains(filter)) {
+                mRetiredFusedFilters.add(filter);
+            }
+        }
+        mFusedFilters.clear();
+        mFusedFilters.addAll(fused);
+    }
+
+    /**
+     * Appends this group's filters to the list, with mergeable groups expanded in place.
+     */
+    private void collectMergedFilters(List<GPUImageFilter> out) {
+        for (GPUImageFilter filter : mFilters) {
+            if (filter instanceof GPUImageFilterGroup
+                    && ((GPUImageFilterGroup) filter).isMergeable()) {
+                ((GPUImageFilterGroup) filter).collectMergedFilters(out);
+                continue;
+            }
+            out.add(filter);
+        }
+    }
+
+    /**
+     * Appends a run of point-wise filters to mMergedFilters as one fused pass, reusing the
+     * pass from the previous chain if the run is unchanged, and empties the run.
+     */
+    private void addRun(List<GPUImagePointwiseFilter> run, List<GPUImageFusedFilter> fused) {
+        if (run.size() == 1) {
+            mMergedFilters.add(run.get(0));
+        } else if (run.size() > 1) {
+            GPUImageFusedFilter pass = null;
+            for (GPUImageFusedFilter existing : mFusedFilters) {
+                if (existing.getMembers().equals(run)) {
+                    pass = existing;
+                    break;
+                }
+            }
+            if (pass == null) {
+                pass = new GPUImageFusedFilter(run);
+                pass.setGlBackend(mGl);
+            }
+            fused.add(pass);
+            mMergedFilters.add(pass);
+        }
+        run.clear();
     }
 }
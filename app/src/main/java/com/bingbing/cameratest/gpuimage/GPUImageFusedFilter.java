@@ -0,0 +1,73 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A run of point-wise filters compiled into a single pass.  Created by
+ * {@link GPUImageFilterGroup}; the member filters keep their uniform values and textures, this
+ * filter only owns the generated program.
+ */
+public class GPUImageFusedFilter extends GPUImageFilter {
+    private final List<GPUImagePointwiseFilter> mMembers;
+    private final List<GPUImagePointwiseFilter.Binding> mBindings;
+
+    public GPUImageFusedFilter(List<GPUImagePointwiseFilter> members) {
+        super(NO_FILTER_VERTEX_SHADER, GPUImagePointwiseFilter.buildFragmentShader(
+                sourcesOf(members)));
+        mMembers = Collections.unmodifiableList(
+                new ArrayList<GPUImagePointwiseFilter>(members));
+        mBindings = new ArrayList<GPUImagePointwiseFilter.Binding>(members.size());
+        for (int i = 0; i < members.size(); i++) {
+            mBindings.add(new GPUImagePointwiseFilter.Binding(members.get(i),
+                    GPUImagePointwiseFilter.stagePrefix(i)));
+        }
+    }
+
+    private static List<String> sourcesOf(List<GPUImagePointwiseFilter> members) {
+        List<String> sources = new ArrayList<String>(members.size());
+        for (GPUImagePointwiseFilter member : members) {
+            sources.add(member.getPointwiseSource());
+        }
+        return sources;
+    }
+
+    public List<GPUImagePointwiseFilter> getMembers() {
+        return mMembers;
+    }
+
+    /**
+     * Returns the member names joined with '+', e.g. "GPUImageGammaFilter+GPUImageLookupFilter".
+     */
+    @Override
+    protected String getDefaultName() {
+        StringBuilder sb = new StringBuilder();
+        for (GPUImagePointwiseFilter member : mMembers) {
+            if (sb.length() > 0) {
+                sb.append('+');
+            }
+            sb.append(member.getName());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (GPUImagePointwiseFilter.Binding binding : mBindings) {
+            binding.bind(mGl, getProgram());
+        }
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        int unit = 1;
+        for (GPUImagePointwiseFilter.Binding binding : mBindings) {
+            unit = binding.apply(mGl, unit);
+        }
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+}
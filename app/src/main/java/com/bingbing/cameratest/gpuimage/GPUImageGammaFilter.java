@@ -0,0 +1,31 @@
+package com.bingbing.cameratest.gpuimage;
+
+/**
+ * Per-channel power curve, e.g. the pow(c, 0.8) tone curve of the "shader" beauty variant.
+ * Point-wise, so it fuses with neighbouring color filters.
+ */
+public class GPUImageGammaFilter extends GPUImagePointwiseFilter {
+    private static final String SOURCE = "" +
+            "uniform float $gamma;\n" +
+            "\n" +
+            "vec4 $apply(vec4 color)\n" +
+            "{\n" +
+            "    return vec4(clamp(pow(color.rgb, vec3($gamma)), 0.0, 1.0), color.a);\n" +
+            "}\n";
+
+    private final int mGammaUniform;
+
+    public GPUImageGammaFilter() {
+        this(1.0f);
+    }
+
+    public GPUImageGammaFilter(float gamma) {
+        super(SOURCE);
+        mGammaUniform = declareUniform("gamma", UNIFORM_FLOAT);
+        setGamma(gamma);
+    }
+
+    public void setGamma(float gamma) {
+        setUniform(mGammaUniform, gamma);
+    }
+}
@@ -0,0 +1,109 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.graphics.Bitmap;
+
+/**
+ * Color grading through a 64x64 lookup image of 4x4 cells, 16 blue levels, as used by the
+ * "shader1" filter.  Point-wise, so it fuses with neighbouring color filters.
+ */
+public class GPUImageLookupFilter extends GPUImagePointwiseFilter {
+    private static final String SOURCE = "" +
+            "uniform sampler2D $lookupTexture;\n" +
+            "uniform float $intensity;\n" +
+            "\n" +
+            "vec4 $apply(vec4 textureColor)\n" +
+            "{\n" +
+            "    highp float blueColor = textureColor.b * 15.0;\n" +
+            "\n" +
+            "    highp vec2 quad1;\n" +
+            "    quad1.y = floor(floor(blueColor) / 4.0);\n" +
+            "    quad1.x = floor(blueColor) - (quad1.y * 4.0);\n" +
+            "\n" +
+            "    highp vec2 quad2;\n" +
+            "    quad2.y = floor(ceil(blueColor) / 4.0);\n" +
+            "    quad2.x = ceil(blueColor) - (quad2.y * 4.0);\n" +
+            "\n" +
+            "    highp vec2 texPos1;\n" +
+            "    texPos1.x = (quad1.x * 0.25) + 0.5/64.0 + ((0.25 - 1.0/64.0) * textureColor.r);\n" +
+            "    texPos1.y = (quad1.y * 0.25) + 0.5/64.0 + ((0.25 - 1.0/64.0) * textureColor.g);\n" +
+            "\n" +
+            "    highp vec2 texPos2;\n" +
+            "    texPos2.x = (quad2.x * 0.25) + 0.5/64.0 + ((0.25 - 1.0/64.0) * textureColor.r);\n" +
+            "    texPos2.y = (quad2.y * 0.25) + 0.5/64.0 + ((0.25 - 1.0/64.0) * textureColor.g);\n" +
+            "\n" +
+            "    lowp vec4 newColor1 = texture2D($lookupTexture, texPos1);\n" +
+            "    lowp vec4 newColor2 = texture2D($lookupTexture, texPos2);\n" +
+            "\n" +
+            "    lowp vec4 newColor = mix(newColor1, newColor2, fract(blueColor));\n" +
+            "    return mix(textureColor, vec4(newColor.rgb, textureColor.w), $intensity);\n" +
+            "}\n";
+
+    private final int mLookupTextureUniform;
+    private final int mIntensityUniform;
+
+    private Bitmap mBitmap;
+    private boolean mBitmapChanged;
+    private int mLookupTexture = OpenGlUtils.NO_TEXTURE;
+
+    public GPUImageLookupFilter() {
+        this(1.0f);
+    }
+
+    public GPUImageLookupFilter(float intensity) {
+        super(SOURCE);
+        mLookupTextureUniform = declareUniform("lookupTexture", UNIFORM_SAMPLER);
+        mIntensityUniform = declareUniform("intensity", UNIFORM_FLOAT);
+        setIntensity(intensity);
+    }
+
+    /**
+     * Sets how much of the graded color to use, 0 to 1.
+     */
+    public void setIntensity(float intensity) {
+        setUniform(mIntensityUniform, intensity);
+    }
+
+    /**
+     * Sets the lookup image.  It is uploaded on the next draw, and again if the filter is
+     * re-initialized, so it must not be recycled while the filter is in use.
+     */
+    public void setBitmap(Bitmap bitmap) {
+        synchronized (this) {
+            mBitmap = bitmap;
+            mBitmapChanged = true;
+        }
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    @Override
+    protected void onPrepare() {
+        Bitmap bitmap;
+        synchronized (this) {
+            if (!mBitmapChanged) {
+                return;
+            }
+            bitmap = mBitmap;
+            mBitmapChanged = false;
+        }
+        if (bitmap != null && !bitmap.isRecycled()) {
+            mLookupTexture = mGl.loadTexture(bitmap, mLookupTexture, false);
+            setUniformTexture(mLookupTextureUniform, mLookupTexture);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mLookupTexture != OpenGlUtils.NO_TEXTURE) {
+            mGl.glDeleteTextures(1, new int[]{mLookupTexture}, 0);
+            mLookupTexture = OpenGlUtils.NO_TEXTURE;
+            setUniformTexture(mLookupTextureUniform, OpenGlUtils.NO_TEXTURE);
+        }
+        synchronized (this) {
+            mBitmapChanged = mBitmap != null;
+        }
+    }
+}
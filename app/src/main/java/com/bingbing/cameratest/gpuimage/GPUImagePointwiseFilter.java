@@ -0,0 +1,234 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A filter whose output pixel depends only on the input pixel at the same position, such as a
+ * color matrix, tone curve or LUT lookup.
+ * <p>
+ * Instead of a whole fragment shader, a point-wise filter supplies a GLSL snippet that defines
+ * {@code vec4 $apply(vec4 color)}, plus any uniforms it needs.  Every global name in the snippet
+ * starts with {@code $}, which is replaced by a unique prefix, so that
+ * {@link GPUImageFilterGroup} can paste a run of point-wise filters into one generated program
+ * ({@link GPUImageFusedFilter}) and save a full-screen framebuffer write and read per filter.
+ * Drawn on its own, the filter wraps its snippet in a one-stage program.
+ * <p>
+ * Uniforms are declared with {@link #declareUniform(String, int)} and set with the setUniform
+ * methods.  Values are kept here rather than in a program, because the filter may be drawn as
+ * part of a program it does not own.  Textures are bound to units from 1 up; unit 0 is the
+ * input.
+ */
+public abstract class GPUImagePointwiseFilter extends GPUImageFilter {
+    /** Replaced with a per-stage prefix in snippets. */
+    public static final String PREFIX_TOKEN = "$";
+
+    public static final int UNIFORM_FLOAT = 1;
+    public static final int UNIFORM_VEC2 = 2;
+    public static final int UNIFORM_VEC3 = 3;
+    public static final int UNIFORM_VEC4 = 4;
+    public static final int UNIFORM_MAT3 = 9;
+    public static final int UNIFORM_SAMPLER = -1;
+
+    private final String mSource;
+    private final List<Uniform> mUniforms = new ArrayList<Uniform>();
+    // Bumped on every uniform change so that bindings know when to upload.
+    private int mVersion;
+    private Binding mBinding;
+
+    /**
+     * @param source GLSL snippet defining {@code vec4 $apply(vec4 color)}.
+     */
+    protected GPUImagePointwiseFilter(String source) {
+        super(NO_FILTER_VERTEX_SHADER, buildFragmentShader(Collections.singletonList(source)));
+        mSource = source;
+    }
+
+    public String getPointwiseSource() {
+        return mSource;
+    }
+
+    /**
+     * Declares a uniform of the snippet, by its name without the prefix token.  Call from the
+     * constructor.
+     *
+     * @param type One of the UNIFORM_ constants.
+     * @return The index to pass to the setUniform methods.
+     */
+    protected final int declareUniform(String name, int type) {
+        synchronized (mUniforms) {
+            mUniforms.add(new Uniform(name, type));
+            return mUniforms.size() - 1;
+        }
+    }
+
+    /**
+     * Sets a float, vec or mat3 uniform.  May be called from any thread.
+     */
+    protected final void setUniform(int index, float... values) {
+        synchronized (mUniforms) {
+            Uniform uniform = mUniforms.get(index);
+            if (values.length != uniform.type) {
+                throw new IllegalArgumentException(uniform.name + " takes " + uniform.type +
+                        " values, got " + values.length);
+            }
+            uniform.values = values.clone();
+            mVersion++;
+        }
+    }
+
+    /**
+     * Sets the texture of a sampler uniform.  GL thread only, e.g. from {@link #onPrepare()}.
+     */
+    protected final void setUniformTexture(int index, int texture) {
+        synchronized (mUniforms) {
+            mUniforms.get(index).texture = texture;
+        }
+    }
+
+    /**
+     * Called on the GL thread before every draw of a program containing this filter, with a
+     * spare texture unit active.  Upload textures here.
+     */
+    protected void onPrepare() {
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mBinding = new Binding(this, stagePrefix(0));
+        mBinding.bind(mGl, getProgram());
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        mBinding.apply(mGl, 1);
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+
+    static String stagePrefix(int stage) {
+        return "f" + stage + "_";
+    }
+
+    /**
+     * Builds a fragment shader that samples the input once and runs it through the given
+     * snippets in order.
+     */
+    static String buildFragmentShader(List<String> sources) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("precision highp float;\n");
+        sb.append("varying highp vec2 textureCoordinate;\n");
+        sb.append("uniform sampler2D inputImageTexture;\n");
+        for (int i = 0; i < sources.size(); i++) {
+            sb.append(sources.get(i).replace(PREFIX_TOKEN, stagePrefix(i))).append('\n');
+        }
+        sb.append("void main()\n");
+        sb.append("{\n");
+        sb.append("    vec4 color = texture2D(inputImageTexture, textureCoordinate);\n");
+        for (int i = 0; i < sources.size(); i++) {
+            sb.append("    color = ").append(stagePrefix(i)).append("apply(color);\n");
+        }
+        sb.append("    gl_FragColor = color;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static class Uniform {
+        final String name;
+        final int type;
+        float[] values;
+        int texture = OpenGlUtils.NO_TEXTURE;
+
+        Uniform(String name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /**
+     * The uniforms of one filter in one program: their locations, and the values last
+     * uploaded.
+     */
+    static class Binding {
+        private final GPUImagePointwiseFilter mFilter;
+        private final String mPrefix;
+        private int[] mLocations;
+        private int mUploadedVersion = -1;
+
+        Binding(GPUImagePointwiseFilter filter, String prefix) {
+            mFilter = filter;
+            mPrefix = prefix;
+        }
+
+        GPUImagePointwiseFilter getFilter() {
+            return mFilter;
+        }
+
+        void bind(GlBackend gl, int program) {
+            synchronized (mFilter.mUniforms) {
+                mLocations = new int[mFilter.mUniforms.size()];
+                for (int i = 0; i < mLocations.length; i++) {
+                    mLocations[i] = gl.glGetUniformLocation(program,
+                            mPrefix + mFilter.mUniforms.get(i).name);
+                }
+            }
+            mUploadedVersion = -1;
+        }
+
+        /**
+         * Lets the filter prepare, binds its textures from firstUnit up and uploads changed
+         * values.  The program must be current.
+         *
+         * @return The first unit left free.
+         */
+        int apply(GlBackend gl, int firstUnit) {
+            gl.glActiveTexture(GLES20.GL_TEXTURE0 + firstUnit);
+            mFilter.onPrepare();
+
+            int unit = firstUnit;
+            synchronized (mFilter.mUniforms) {
+                boolean upload = mUploadedVersion != mFilter.mVersion;
+                for (int i = 0; i < mLocations.length; i++) {
+                    Uniform uniform = mFilter.mUniforms.get(i);
+                    int location = mLocations[i];
+                    if (uniform.type == UNIFORM_SAMPLER) {
+                        gl.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+                        gl.glBindTexture(GLES20.GL_TEXTURE_2D,
+                                uniform.texture == OpenGlUtils.NO_TEXTURE ? 0 : uniform.texture);
+                        gl.glUniform1i(location, unit);
+                        unit++;
+                    } else if (upload && uniform.values != null) {
+                        upload(gl, location, uniform);
+                    }
+                }
+                mUploadedVersion = mFilter.mVersion;
+            }
+            return unit;
+        }
+
+        private static void upload(GlBackend gl, int location, Uniform uniform) {
+            float[] v = uniform.values;
+            switch (uniform.type) {
+                case UNIFORM_FLOAT:
+                    gl.glUniform1f(location, v[0]);
+                    break;
+                case UNIFORM_VEC2:
+                    gl.glUniform2fv(location, 1, v, 0);
+                    break;
+                case UNIFORM_VEC3:
+                    gl.glUniform3fv(location, 1, FloatBuffer.wrap(v));
+                    break;
+                case UNIFORM_VEC4:
+                    gl.glUniform4fv(location, 1, FloatBuffer.wrap(v));
+                    break;
+                case UNIFORM_MAT3:
+                    gl.glUniformMatrix3fv(location, 1, false, v, 0);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A filter made of other filters wired as a directed acyclic graph, for pipelines that
+ * {@link GPUImageFilterGroup}'s linear chain cannot express, such as blending the original
+ * frame with a blurred branch of itself:
+ * <pre>
+ * GPUImageRenderGraph graph = new GPUImageRenderGraph();
+ * GPUImageRenderGraph.Node blur = graph.addNode(new GPUImageBeautyFilter(), graph.getInput());
+ * GPUImageRenderGraph.Node blend = graph.addNode(new GPUImageTwoInputFilter(BLEND_SHADER),
+ *         graph.getInput(), blur);
+ * graph.setOutput(blend);
+ * </pre>
+ * A node reads the output of any earlier node, or the graph's input, without copy passes.
+ * Nodes with two inputs must be {@link GPUImageTwoInputFilter}s; the second input is bound
+ * with {@link GPUImageTwoInputFilter#setSecondInputTexture(int, FloatBuffer)}.
+ * <p>
+ * Passes are scheduled in topological order, and nodes the output does not depend on are
+ * skipped.  Each intermediate result is held only until its last consumer has drawn, after
+ * which its render target is reused by a later pass, so a graph needs as many targets as it
+ * has results alive at once rather than one per node.  The output node draws into whatever
+ * framebuffer was bound by the caller.
+ * <p>
+ * Change the graph before init() or on the GL thread; the schedule is rebuilt on the next
+ * draw.
+ */
+public class GPUImageRenderGraph extends GPUImageFilter {
+    private static final int NO_TARGET = -1;
+
+    private final Node mInput = new Node(null, Collections.<Node>emptyList());
+    private final List<Node> mNodes = new ArrayList<Node>();
+    private Node mOutput = mInput;
+
+    // The schedule: the nodes to draw, in order, and for each the index into mTargets of the
+    // target it renders into.  The last one renders into the caller's framebuffer.
+    private final List<Node> mSchedule = new ArrayList<Node>();
+    private int[] mPassTargets;
+    private RenderTarget[] mTargets;
+    private boolean mScheduleDirty = true;
+
+    private final int[] mSavedFrameBuffer = new int[1];
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureFlipBuffer;
+
+    public GPUImageRenderGraph() {
+        mGLCubeBuffer = ByteBuffer.allocateDirect(GPUImageRenderer.CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(GPUImageRenderer.CUBE).position(0);
+
+        float[] flipTexture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureFlipBuffer = ByteBuffer.allocateDirect(flipTexture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureFlipBuffer.put(flipTexture).position(0);
+    }
+
+    /**
+     * Returns the node standing for the texture this graph is drawn with.
+     */
+    public Node getInput() {
+        return mInput;
+    }
+
+    /**
+     * Adds a filter reading the given nodes, which must already belong to this graph.  The
+     * first input is drawn as the filter's main texture.
+     */
+    public Node addNode(GPUImageFilter filter, Node... inputs) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter must not be null");
+        }
+        if (inputs.length == 0 || inputs.length > 2) {
+            throw new IllegalArgumentException("a node takes one or two inputs, got " +
+                    inputs.length);
+        }
+        if (inputs.length == 2 && !(filter instanceof GPUImageTwoInputFilter)) {
+            throw new IllegalArgumentException("a node with two inputs needs a " +
+                    "GPUImageTwoInputFilter, got " + filter.getClass().getSimpleName());
+        }
+        for (Node input : inputs) {
+            if (input != mInput && !mNodes.contains(input)) {
+                throw new IllegalArgumentException("input does not belong to this graph");
+            }
+        }
+        // Inputs must exist before the node, so the graph cannot have a cycle.
+        Node node = new Node(filter, new ArrayList<Node>(Arrays.asList(inputs)));
+        filter.setGlBackend(mGl);
+        mNodes.add(node);
+        mScheduleDirty = true;
+        return node;
+    }
+
+    /**
+     * Removes a node that no other node reads.  Like
+     * {@link GPUImageFilterGroup#removeFilter(GPUImageFilter)}, this does not destroy its
+     * filter.
+     */
+    public void removeNode(Node node) {
+        if (!mNodes.contains(node)) {
+            return;
+        }
+        for (Node other : mNodes) {
+            if (other.mInputs.contains(node)) {
+                throw new IllegalStateException("node is still read by " + other);
+            }
+        }
+        mNodes.remove(node);
+        if (mOutput == node) {
+            mOutput = mInput;
+        }
+        mScheduleDirty = true;
+    }
+
+    /**
+     * Chooses the node whose result this graph draws.  Defaults to the input.
+     */
+    public void setOutput(Node node) {
+        if (node != mInput && !mNodes.contains(node)) {
+            throw new IllegalArgumentException("node does not belong to this graph");
+        }
+        mOutput = node;
+        mScheduleDirty = true;
+    }
+
+    public Node getOutput() {
+        return mOutput;
+    }
+
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(mNodes);
+    }
+
+    /**
+     * Returns the number of intermediate render targets currently held.
+     */
+    public int getFramebufferCount() {
+        return mTargets == null ? 0 : mTargets.length;
+    }
+
+    /**
+     * Returns the number of passes drawn per frame.
+     */
+    public int getPassCount() {
+        return mSchedule.size();
+    }
+
+    @Override
+    public void setGlBackend(final GlBackend gl) {
+        super.setGlBackend(gl);
+        for (Node node : mNodes) {
+            node.mFilter.setGlBackend(gl);
+        }
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (Node node : mNodes) {
+            node.mFilter.init();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        releaseTargets();
+        for (Node node : mNodes) {
+            if (node.mFilter.isInitialized()) {
+                node.mFilter.destroy();
+            }
+        }
+        mScheduleDirty = true;
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        for (Node node : mNodes) {
+            node.mFilter.onOutputSizeChanged(width, height);
+        }
+        mScheduleDirty = true;
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer, long timeStampNanos) {
+        runPendingOnDrawTasks();
+        if (!isInitialized()) {
+            return;
+        }
+        if (mOutput == mInput) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+            return;
+        }
+        // Read before scheduling: the output node draws into whatever the caller bound.
+        mGl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFrameBuffer, 0);
+        if (mScheduleDirty) {
+            schedule();
+        }
+
+        int size = mSchedule.size();
+        for (int i = 0; i < size; i++) {
+            Node node = mSchedule.get(i);
+            boolean isLast = i == size - 1;
+            mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, isLast ? mSavedFrameBuffer[0]
+                    : mTargets[mPassTargets[i]].getFramebuffer());
+
+            // The graph's input is sampled the way the caller asked.  Drawing CUBE into a
+            // target stores the image upside down relative to it, so intermediate results are
+            // sampled flipped; every node then sees its inputs the same way up.
+            if (node.mInputs.size() == 2) {
+                Node second = node.mInputs.get(1);
+                ((GPUImageTwoInputFilter) node.mFilter).setSecondInputTexture(
+                        textureOf(second, textureId),
+                        second == mInput ? textureBuffer : mGLTextureFlipBuffer);
+            }
+            Node first = node.mInputs.get(0);
+            if (first == mInput) {
+                node.mFilter.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+            } else {
+                node.mFilter.onDraw(textureOf(first, textureId), mGLCubeBuffer,
+                        mGLTextureFlipBuffer, timeStampNanos);
+            }
+        }
+    }
+
+    private int textureOf(Node node, int inputTexture) {
+        return node == mInput ? inputTexture : mTargets[node.mTarget].getTexture();
+    }
+
+    /**
+     * Orders the nodes the output depends on, assigns each intermediate result a render
+     * target that is free from the pass that writes it until its last consumer has drawn, and
+     * acquires the targets.
+     */
+    private void schedule() {
+        releaseTargets();
+        mSchedule.clear();
+        mScheduleDirty = false;
+
+        // Only nodes the output depends on are drawn.
+        List<Node> live = new ArrayList<Node>();
+        LinkedList<Node> pending = new LinkedList<Node>();
+        pending.add(mOutput);
+        while (!pending.isEmpty()) {
+            Node node = pending.removeFirst();
+            if (node == mInput || live.contains(node)) {
+                continue;
+            }
+            live.add(node);
+            pending.addAll(node.mInputs);
+        }
+
+        // Kahn's algorithm, taking ready nodes in the order they were added.
+        for (Node node : live) {
+            node.mPendingInputs = 0;
+            for (Node input : node.mInputs) {
+                if (input != mInput) {
+                    node.mPendingInputs++;
+                }
+            }
+        }
+        LinkedList<Node> ready = new LinkedList<Node>();
+        for (Node node : mNodes) {
+            if (live.contains(node) && node.mPendingInputs == 0) {
+                ready.add(node);
+            }
+        }
+        while (!ready.isEmpty()) {
+            Node node = ready.removeFirst();
+            mSchedule.add(node);
+            for (Node consumer : mNodes) {
+                if (!live.contains(consumer)) {
+                    continue;
+                }
+                for (Node input : consumer.mInputs) {
+                    if (input == node && --consumer.mPendingInputs == 0) {
+                        ready.add(consumer);
+                    }
+                }
+            }
+        }
+
+        // lastUse[i]: the last pass that reads the result of pass i.
+        int passes = mSchedule.size();
+        int[] lastUse = new int[passes];
+        for (int i = 0; i < passes; i++) {
+            for (int j = i + 1; j < passes; j++) {
+                if (mSchedule.get(j).mInputs.contains(mSchedule.get(i))) {
+                    lastUse[i] = j;
+                }
+            }
+        }
+
+        // The same free-list allocation as GPUImageFilterGroup: a target is recycled once the
+        // result in it is dead, but not while the pass reading it is drawing.
+        mPassTargets = new int[passes];
+        List<Integer> free = new ArrayList<Integer>();
+        int targets = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            for (int j = 0; j < pass; j++) {
+                if (lastUse[j] == pass - 1 && mPassTargets[j] != NO_TARGET) {
+                    free.add(mPassTargets[j]);
+                }
+            }
+            if (pass == passes - 1) {
+                mPassTargets[pass] = NO_TARGET;
+            } else {
+                mPassTargets[pass] = free.isEmpty() ? targets++ : free.remove(free.size() - 1);
+            }
+            mSchedule.get(pass).mTarget = mPassTargets[pass];
+        }
+
+        mTargets = new RenderTarget[targets];
+        RenderTargetPool pool = RenderTargetPool.getInstance();
+        for (int i = 0; i < targets; i++) {
+            mTargets[i] = pool.acquire(mGl, mOutputWidth, mOutputHeight);
+        }
+
+        // Filters added since init() are compiled here.
+        for (Node node : mSchedule) {
+            if (!node.mFilter.isInitialized()) {
+                node.mFilter.init();
+                node.mFilter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+            }
+        }
+    }
+
+    private void releaseTargets() {
+        if (mTargets != null) {
+            RenderTargetPool pool = RenderTargetPool.getInstance();
+            for (RenderTarget target : mTargets) {
+                pool.release(mGl, target);
+            }
+            mTargets = null;
+        }
+    }
+
+    /**
+     * A filter in the graph and the nodes it reads.
+     */
+    public static class Node {
+        private final GPUImageFilter mFilter;
+        private final List<Node> mInputs;
+        // Scratch state of schedule().
+        private int mPendingInputs;
+        private int mTarget = NO_TARGET;
+
+        private Node(GPUImageFilter filter, List<Node> inputs) {
+            mFilter = filter;
+            mInputs = inputs;
+        }
+
+        public GPUImageFilter getFilter() {
+            return mFilter;
+        }
+
+        public List<Node> getInputs() {
+            return Collections.unmodifiableList(mInputs);
+        }
+
+        @Override
+        public String toString() {
+            return mFilter == null ? "Node[input]"
+                    : "Node[" + mFilter.getClass().getSimpleName() + "]";
+        }
+    }
+}
@@ -24,7 +24,9 @@ import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 
 import com.bingbing.cameratest.RenderThread;
+import com.bingbing.cameratest.record.FrameReader;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -58,10 +60,23 @@ public class GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener
 
     protected int mOutputWidth;
     protected int mOutputHeight;
+    // Size the filter chain renders at, or 0 to render straight into the window.
+    private int mRenderWidth;
+    private int mRenderHeight;
+    // The chain's output when it renders at mRenderWidth x mRenderHeight; scaled from here to
+    // the window, and by subclasses to other outputs.
+    private RenderTarget mMasterTarget;
+    private final GPUImageFilter mScaleFilter = new GPUImageFilter();
+    private final FloatBuffer mDisplayTextureBuffer;
+    private final FloatBuffer mTextureBufferIdentity;
     protected int mImageWidth;
     protected int mImageHeight;
     private int mAddedPadding;
 
+    // Reads frames back for snapshots and bursts; created on first use.
+    private FrameReader mFrameReader;
+    private BurstCapture mBurst;
+    private FrameAnalysisTap mAnalysisTap;
     private final Queue<Runnable> mRunOnDraw;
     private final Queue<Runnable> mRunOnDrawEnd;
     private Rotation mRotation;
@@ -77,6 +92,7 @@ public class GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener
     protected CameraInputFilter mCameraInputFilter;
 //    protected GLSurfaceView mGlSurfaceView;
     protected RenderThread.RenderHandler mRenderHandler;
+    protected GlBackend mGl = new StateCachingGlBackend(AndroidGlBackend.getInstance());
 
     public GPUImageRenderer() {
         mRunOnDraw = new LinkedList<Runnable>();
@@ -92,8 +108,19 @@ public class GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener
                 .asFloatBuffer();
         setRotation(Rotation.NORMAL, false, false);
 
+        mDisplayTextureBuffer = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mDisplayTextureBuffer.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
+        mTextureBufferIdentity = ByteBuffer.allocateDirect(TextureRotationUtil.TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mTextureBufferIdentity.put(TextureRotationUtil.TEXTURE_NO_ROTATION).position(0);
+        mScaleFilter.setGlBackend(mGl);
+
         mCameraInputFilter = new CameraInputFilter();
         mFilters = new GPUImageFilterGroup();
+        mFilters.setGlBackend(mGl);
         mFilters.addFilter(mCameraInputFilter);
     }
 
@@ -116,13 +143,28 @@ public class GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener
         mRenderHandler = renderHandler;
     }
 
+    /**
+     * Sets the GL backend used by the renderer and its filters.  Must be called before
+     * onSurfaceCreated().
+     */
+    public void setGlBackend(GlBackend gl) {
+        mGl = gl;
+        mFilters.setGlBackend(gl);
+        mScaleFilter.setGlBackend(gl);
+    }
+
+    public GlBackend getGlBackend() {
+        return mGl;
+    }
+
     public void onSurfaceCreated() {
         mRenderHandler.post(new Runnable() {
             @Override
             public void run() {
-                GLES20.glClearColor(mBackgroundRed, mBackgroundGreen, mBackgroundBlue, 1);
-                GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+                mGl.glClearColor(mBackgroundRed, mBackgroundGreen, mBackgroundBlue, 1);
+                mGl.glDisable(GLES20.GL_DEPTH_TEST);
                 mFilters.init();
+                mScaleFilter.init();
             }
         });
 
@@ -134,10 +176,9 @@ public class GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener
             public void run() {
                 mOutputWidth = width;
                 mOutputHeight = height;
-                GLES20.glViewport(0, 0, width, height);
-                GLES20.glUseProgram(mFilters.getProgram());
-                mFilters.onOutputSizeChanged(width, height);
-                adjustImageScaling();
+                mGl.glViewport(0, 0, width, height);
+                mGl.glUseProgram(mFilters.getProgram());
+                updateRenderSize();
                 synchronized (mSurfaceChangedWaiter) {
                     mSurfaceChangedWaiter.notifyAll();
                 }
@@ -147,10 +188,194 @@ public class GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener
     }
 
     public void onDrawFrame(long timeStampNanos) {
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        mGl.beginFrame();
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
         runAll(mRunOnDraw);
-        mFilters.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer, timeStampNanos);
+        if (mMasterTarget == null) {
+            mFilters.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer, timeStampNanos);
+            if (mAnalysisTap != null) {
+                mAnalysisTap.onFrameDrawn(OpenGlUtils.NO_TEXTURE, mOutputWidth, mOutputHeight,
+                        timeStampNanos);
+                mGl.glViewport(0, 0, mOutputWidth, mOutputHeight);
+            }
+        } else {
+            // Render the chain once, then scale the result to each output.
+            mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mMasterTarget.getFramebuffer());
+            mGl.glViewport(0, 0, mRenderWidth, mRenderHeight);
+            mFilters.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer, timeStampNanos);
+            mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            if (mAnalysisTap != null) {
+                mAnalysisTap.onFrameDrawn(mMasterTarget.getTexture(), mRenderWidth,
+                        mRenderHeight, timeStampNanos);
+            }
+            onMasterFrameAvailable(mMasterTarget.getTexture(), timeStampNanos);
+            mGl.glViewport(0, 0, mOutputWidth, mOutputHeight);
+            mScaleFilter.onDraw(mMasterTarget.getTexture(), mGLCubeBuffer,
+                    mDisplayTextureBuffer, timeStampNanos);
+        }
         runAll(mRunOnDrawEnd);
+        if (mBurst != null
+                && !mBurst.onFrameDrawn(getFrameReader(), mOutputWidth, mOutputHeight)) {
+            mBurst = null;
+        }
+        if (mFrameReader != null) {
+            // Hands over reads from earlier frames once the GPU is done with them.
+            mFrameReader.poll();
+        }
+        mGl.endFrame();
+    }
+
+    /**
+     * Returns the reader for frames read back at the end of a frame.  Render thread.
+     */
+    protected FrameReader getFrameReader() {
+        if (mFrameReader == null) {
+            mFrameReader = new FrameReader(ProgramCache.getInstance().getGlVersion());
+        }
+        return mFrameReader;
+    }
+
+    /**
+     * Captures count frames as shown, intervalMs apart, to JPEG files in the directory,
+     * named burst-001.jpg and so on.  See {@link BurstCapture}.
+     */
+    public BurstCapture captureBurst(int count, long intervalMs, File directory) {
+        BurstCapture burst = new BurstCapture(directory, "burst", count, intervalMs);
+        captureBurst(burst);
+        return burst;
+    }
+
+    /**
+     * Starts a burst at the next frame.  A burst already running is cancelled.
+     */
+    public void captureBurst(final BurstCapture burst) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mBurst != null) {
+                    mBurst.cancel();
+                    mBurst.onFrameDrawn(getFrameReader(), mOutputWidth, mOutputHeight);
+                }
+                mBurst = burst;
+            }
+        });
+    }
+
+    /**
+     * Times each pass of the filter chain by filter name; see
+     * {@link GPUImageFilterGroup#setPassTiming(boolean)}.
+     */
+    public void setPassTiming(boolean enabled) {
+        mFilters.setPassTiming(enabled);
+    }
+
+    /**
+     * Returns the filter chain's pass timings, or null if pass timing is off.
+     */
+    public PassTimer getPassTimer() {
+        return mFilters.getPassTimer();
+    }
+
+    /**
+     * Hands a small copy of every filtered frame, or every Nth, to the tap's analyzer; null
+     * removes the tap.  A tap replaced or removed is stopped.  See {@link FrameAnalysisTap}.
+     */
+    public void setAnalysisTap(final FrameAnalysisTap tap) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mAnalysisTap != null) {
+                    mAnalysisTap.release();
+                }
+                mAnalysisTap = tap;
+                if (tap != null) {
+                    tap.start(mGl);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the resolution the filter chain renders at, independent of the window.  The chain
+     * renders once into an offscreen target of this size, which is then scaled to the window
+     * (center-cropped) and, by subclasses, to other outputs such as an encoder.  Use it to
+     * keep heavy filters at, say, 720p on a 1440p display.  0 x 0, the default, renders straight
+     * into the window at its size.
+     */
+    public void setRenderSize(final int width, final int height) {
+        if (width < 0 || height < 0 || (width == 0) != (height == 0)) {
+            throw new IllegalArgumentException("bad render size " + width + "x" + height);
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mRenderWidth = width;
+                mRenderHeight = height;
+                if (mOutputWidth != 0 && mOutputHeight != 0) {
+                    updateRenderSize();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if the chain renders offscreen at a size set with setRenderSize().
+     */
+    protected boolean hasMasterTarget() {
+        return mMasterTarget != null;
+    }
+
+    /**
+     * Called after the chain has rendered into the offscreen target, before it is scaled to
+     * the window, with the default framebuffer bound.  Only called when a render size is set.
+     *
+     * @param texture the chain's output, getFrameWidth() x getFrameHeight()
+     */
+    protected void onMasterFrameAvailable(int texture, long timeStampNanos) {
+    }
+
+    /**
+     * Draws a frame-sized texture into the current framebuffer with a single scale pass.  The
+     * caller sets the viewport.
+     */
+    protected void drawScaled(int texture, long timeStampNanos) {
+        mScaleFilter.onDraw(texture, mGLCubeBuffer, mTextureBufferIdentity, timeStampNanos);
+    }
+
+    private void updateRenderSize() {
+        RenderTargetPool pool = RenderTargetPool.getInstance();
+        pool.release(mGl, mMasterTarget);
+        mMasterTarget = null;
+        if (mRenderWidth != 0 && (mRenderWidth != mOutputWidth
+                || mRenderHeight != mOutputHeight)) {
+            mMasterTarget = pool.acquire(mGl, mRenderWidth, mRenderHeight);
+            updateDisplayCrop();
+        }
+        mFilters.onOutputSizeChanged(getFrameWidth(), getFrameHeight());
+        adjustImageScaling();
+    }
+
+    /**
+     * Crops the master frame to the window's aspect ratio.
+     */
+    private void updateDisplayCrop() {
+        float renderAspect = (float) mRenderWidth / mRenderHeight;
+        float windowAspect = (float) mOutputWidth / mOutputHeight;
+        float distHorizontal = 0;
+        float distVertical = 0;
+        if (renderAspect > windowAspect) {
+            distHorizontal = (1 - windowAspect / renderAspect) / 2;
+        } else {
+            distVertical = (1 - renderAspect / windowAspect) / 2;
+        }
+        float[] coords = TextureRotationUtil.TEXTURE_NO_ROTATION;
+        float[] cropped = new float[coords.length];
+        for (int i = 0; i < coords.length; i += 2) {
+            cropped[i] = addDistance(coords[i], distHorizontal);
+            cropped[i + 1] = addDistance(coords[i + 1], distVertical);
+        }
+        mDisplayTextureBuffer.clear();
+        mDisplayTextureBuffer.put(cropped).position(0);
     }
 
     /**
@@ -212,15 +437,15 @@ public class GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener
                 adjustImageScaling();
 
                 int[] textures = new int[1];
-                GLES20.glGenTextures(1, textures, 0);
-                GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
-                GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                mGl.glGenTextures(1, textures, 0);
+                mGl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+                mGl.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                         GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-                GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                mGl.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                         GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-                GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                mGl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                         GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                mGl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                         GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
 
                 mSurfaceTexture = new SurfaceTexture(textures[0]);
@@ -247,29 +472,34 @@ public class GPUImageRenderer implements SurfaceTexture.OnFrameAvailableListener
                     mFilters.removeFilter(oldFilter);
                     oldFilter.destroy();
                 }
+                filter.setGlBackend(mGl);
                 mOldFilter = filter;
                 mOldFilter.init();
                 mFilters.addFilter(filter);
-                GLES20.glUseProgram(filter.getProgram());
-                mFilters.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+                mGl.glUseProgram(filter.getProgram());
+                mFilters.onOutputSizeChanged(getFrameWidth(), getFrameHeight());
             }
         });
     }
 
+    /**
+     * Returns the width the filter chain renders at: the render size if one is set, the
+     * window's otherwise.
+     */
     protected int getFrameWidth() {
-        return mOutputWidth;
+        return mMasterTarget != null ? mRenderWidth : mOutputWidth;
     }
 
     protected int getFrameHeight() {
-        return mOutputHeight;
+        return mMasterTarget != null ? mRenderHeight : mOutputHeight;
     }
 
     protected void adjustImageScaling() {
-        float outputWidth = mOutputWidth;
-        float outputHeight = mOutputHeight;
+        float outputWidth = getFrameWidth();
+        float outputHeight = getFrameHeight();
         if (mRotation == Rotation.ROTATION_270 || mRotation == Rotation.ROTATION_90) {
-            outputWidth = mOutputHeight;
-            outputHeight = mOutputWidth;
+            outputWidth = getFrameHeight();
+            outputHeight = getFrameWidth();
         }
 
         float ratio1 = outputWidth / mImageWidth;
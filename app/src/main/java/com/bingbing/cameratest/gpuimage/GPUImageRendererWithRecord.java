@@ -19,25 +19,110 @@ package com.bingbing.cameratest.gpuimage;
 import android.annotation.TargetApi;
 import android.graphics.Rect;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.util.Log;
 
+import com.bingbing.cameratest.record.AnnexBSink;
+import com.bingbing.cameratest.record.AudioEncoderCore;
+import com.bingbing.cameratest.record.Completion;
 import com.bingbing.cameratest.record.EglCore;
+import com.bingbing.cameratest.record.EncodedFrameRing;
+import com.bingbing.cameratest.record.FragmentedMp4Sink;
+import com.bingbing.cameratest.record.FrameReader;
+import com.bingbing.cameratest.record.FrameDecimator;
+import com.bingbing.cameratest.record.MediaMuxerSink;
+import com.bingbing.cameratest.record.MicrophoneSource;
+import com.bingbing.cameratest.record.MuxerSink;
+import com.bingbing.cameratest.record.SharedMuxer;
 import com.bingbing.cameratest.record.TextureMovieEncoder2;
+import com.bingbing.cameratest.record.VideoEncoderConfig;
 import com.bingbing.cameratest.record.VideoEncoderCore;
 import com.bingbing.cameratest.record.WindowSurface;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.FloatBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @TargetApi(11)
 public class GPUImageRendererWithRecord extends GPUImageRenderer {
     private static final String TAG = "bingbing_render_record";
 
+    /**
+     * Draws the last pass twice, once into the encoder surface and once for the display.
+     * Works everywhere.
+     */
+    public static final int RECORD_METHOD_DRAW_TWICE = 0;
+    /**
+     * Draws the last pass once for the display, then copies the window's back buffer into the
+     * encoder surface with glBlitFramebuffer.  Needs a GLES 3 context.
+     */
+    public static final int RECORD_METHOD_BLIT_FRAMEBUFFER = 1;
+    /**
+     * RECORD_METHOD_BLIT_FRAMEBUFFER if the context is GLES 3, RECORD_METHOD_DRAW_TWICE
+     * otherwise.
+     */
+    public static final int RECORD_METHOD_AUTO = 2;
+
+    /** MP4 through MediaMuxer; playable once the recording stops. */
+    public static final int OUTPUT_FORMAT_MP4 = 0;
+    /** Fragmented MP4, playable while it is being recorded.  AVC and AAC only. */
+    public static final int OUTPUT_FORMAT_FRAGMENTED_MP4 = 1;
+    /** Raw Annex-B video elementary stream, no audio. */
+    public static final int OUTPUT_FORMAT_ANNEX_B = 2;
+
+    /** Default encoder size; the encoder may explode on widths that aren't a multiple of 16. */
+    public static final int DEFAULT_VIDEO_WIDTH = 720;
+    public static final int DEFAULT_VIDEO_HEIGHT = 1280;
+    /** Bitrate of the always-on pre-roll encode. */
+    public static final int PRE_ROLL_BIT_RATE = 1500000;
+    /** How long a stopping encoder may hold up the next one. */
+    public static final long STOP_TIMEOUT_MS = 5000;
+
     private boolean mRecordingEnabled;
+    private boolean mAudioEnabled = true;
+    private int mOutputFormat = OUTPUT_FORMAT_MP4;
+    // 0 for no limit; both 0 records a single file.
+    private int mMaxSegmentSeconds;
+    private int mMaxSegmentMegabytes;
+    // While not recording, the last mPreRollSeconds are kept encoded in mFrameRing.
+    private int mPreRollSeconds;
+    private EncodedFrameRing mFrameRing;
+    private VideoEncoderConfig mVideoConfig = createDefaultVideoConfig();
+    private int mRecordMethod = RECORD_METHOD_AUTO;
+    // What mRecordMethod resolved to for the current recording.
+    private int mActiveRecordMethod = RECORD_METHOD_DRAW_TWICE;
+    // The first blit of a recording is checked for errors; a failure falls back to drawing
+    // twice.  glGetError() can stall, so later blits are not checked.
+    private boolean mBlitChecked;
     private File mOutputFile;
     private WindowSurface mInputWindowSurface;
+    // Set once the current session is attached; frames go to it.
     private TextureMovieEncoder2 mVideoEncoder;
+    // The current session, from start until stop, attached or not.
+    private EncoderSession mSession;
+    // Encoders are set up and torn down here, one session at a time, so the render thread
+    // never waits on a codec and a new session never starts before the last file is done.
+    private final ExecutorService mEncoderControl = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EncoderControl");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // Thins rendered frames down to the encoder's frame rate.
+    private FrameDecimator mFrameDecimator;
+    private int mMaxFramesInFlight = TextureMovieEncoder2.DEFAULT_MAX_FRAMES_IN_FLIGHT;
+    // Frames of the current or last recording skipped because the encoder was behind.
+    private volatile int mEncoderSkippedFrames;
     private Rect mVideoRect;
 
     private EglCore mEglCore;
@@ -71,115 +156,649 @@ public class GPUImageRendererWithRecord extends GPUImageRenderer {
                     mFilters.removeFilter(oldFilter);
                     oldFilter.destroy();
                 }
+                filter.setGlBackend(mGl);
                 filter.init();
                 mFilters.addFilter(filter);
-                GLES20.glUseProgram(filter.getProgram());
+                mGl.glUseProgram(filter.getProgram());
                 mFilters.addFilter(mRecordFilter);
-                mFilters.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+                mFilters.onOutputSizeChanged(getFrameWidth(), getFrameHeight());
                 mOldFilter = filter;
             }
         });
     }
 
     /**
-     * Updates the recording state.  Stops or starts recording as needed.
+     * Updates the recording state.  Stops or starts recording as needed, without waiting:
+     * a recording started right after another one begins once the previous file is
+     * complete, or after {@link #STOP_TIMEOUT_MS}.
+     *
+     * @return finishes when frames are being recorded, or when stopping, when the file is
+     *         complete
      */
-    public void setRecordingEnabled(final boolean enabled) {
+    public Completion setRecordingEnabled(final boolean enabled) {
+        final Completion result = new Completion();
         runOnDraw(new Runnable() {
             @Override
             public void run() {
                 if (enabled == mRecordingEnabled) {
+                    result.complete();
                     return;
                 }
+                // Recording takes the encoder over from the pre-roll, and hands it back.
+                Completion stopped = stopEncoder();
+                mRecordingEnabled = enabled;
                 if (enabled) {
-                    startEncoder();
+                    result.completeWith(startEncoder());
                 } else {
-                    stopEncoder();
+                    result.completeWith(stopped);
+                    if (mPreRollSeconds > 0) {
+                        startPreRoll();
+                    }
                 }
-                mRecordingEnabled = enabled;
             }
         });
-
+        return result;
     }
 
     public boolean getRecordingEnabled() {
         return mRecordingEnabled;
     }
 
-    private void startEncoder() {
-        // Record at 1280x720, regardless of the window dimensions.  The encoder may
-        // explode if given "strange" dimensions, e.g. a width that is not a multiple
-        // of 16.  We can box it as needed to preserve dimensions.
-        final int BIT_RATE = 4000000;   // 4Mbps
-        final int VIDEO_WIDTH = 720;
-        final int VIDEO_HEIGHT = 1280;
-        int windowWidth = mWindowSurface.getWidth();
-        int windowHeight = mWindowSurface.getHeight();
-        float windowAspect = (float) windowHeight / (float) windowWidth;
+    /**
+     * Keeps the last few seconds encoded at a low bitrate whenever we're not recording, so
+     * they can be saved after the fact with {@link #savePreRoll(File)}.  0, the default,
+     * turns it off.
+     */
+    public void setPreRollSeconds(final int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("bad pre-roll " + seconds + "s");
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (seconds != mPreRollSeconds) {
+                    mFrameRing = null;
+                }
+                mPreRollSeconds = seconds;
+                if (!mRecordingEnabled) {
+                    stopEncoder();
+                    if (seconds > 0) {
+                        startPreRoll();
+                    }
+                }
+            }
+        });
+    }
+
+    public int getPreRollSeconds() {
+        return mPreRollSeconds;
+    }
+
+    /**
+     * Saves the next frame as shown to a PNG file.  The pixels are read back without
+     * stalling the render thread where the GPU allows, and encoded on the executor.
+     */
+    public void takeSnapshot(final File file, final Executor executor) {
+        runOnDrawEnd(new Runnable() {
+            @Override
+            public void run() {
+                mWindowSurface.saveFrame(file, getFrameReader(), executor);
+            }
+        });
+    }
+
+    /**
+     * Reads the next frame as shown back from the GPU, and hands it to the callback on the
+     * executor.
+     */
+    public void readFrame(final Executor executor, final FrameReader.Callback callback) {
+        runOnDrawEnd(new Runnable() {
+            @Override
+            public void run() {
+                getFrameReader().read(mWindowSurface.getWidth(), mWindowSurface.getHeight(),
+                        executor, callback);
+            }
+        });
+    }
+
+    /**
+     * Writes the pre-roll to a file, on a thread of its own.  The encoder keeps filling the
+     * buffer meanwhile.
+     */
+    public void savePreRoll(final File outputFile) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                final EncodedFrameRing ring = mFrameRing;
+                if (ring == null) {
+                    Log.w(TAG, "no pre-roll to save");
+                    return;
+                }
+                final long durationUsec = mPreRollSeconds * 1000000L;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ring.save(outputFile, durationUsec);
+                        } catch (IOException ioe) {
+                            Log.w(TAG, "saving pre-roll failed", ioe);
+                        }
+                    }
+                }, "PreRollSaver").start();
+            }
+        });
+    }
+
+    /**
+     * Records a microphone track along with the video, the default.  Takes effect at the
+     * next recording.
+     */
+    public void setAudioEnabled(final boolean enabled) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mAudioEnabled = enabled;
+            }
+        });
+    }
+
+    public boolean getAudioEnabled() {
+        return mAudioEnabled;
+    }
+
+    /**
+     * Chooses the container, one of the OUTPUT_FORMAT_ constants.  Takes effect at the next
+     * recording.
+     */
+    public void setOutputFormat(final int format) {
+        if (format != OUTPUT_FORMAT_MP4 && format != OUTPUT_FORMAT_FRAGMENTED_MP4
+                && format != OUTPUT_FORMAT_ANNEX_B) {
+            throw new IllegalArgumentException("unknown output format " + format);
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mOutputFormat = format;
+            }
+        });
+    }
+
+    public int getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    /**
+     * Splits recordings into files of at most about the given length or size, whichever is
+     * reached first, cut at video sync frames.  0 leaves a limit off; the default is a single
+     * file.  Segment files are numbered after the output file, see
+     * {@link SharedMuxer#getSegmentFile(File, int)}.  Takes effect at the next recording.
+     */
+    public void setSegmentLimits(final int seconds, final int megabytes) {
+        if (seconds < 0 || megabytes < 0) {
+            throw new IllegalArgumentException("bad segment limits " + seconds + "s " +
+                    megabytes + "MB");
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mMaxSegmentSeconds = seconds;
+                mMaxSegmentMegabytes = megabytes;
+            }
+        });
+    }
+
+    /**
+     * 720x1280 AVC at 4Mbps, adapting between 1.5 and 8Mbps with the content.
+     */
+    private static VideoEncoderConfig createDefaultVideoConfig() {
+        VideoEncoderConfig config = new VideoEncoderConfig(DEFAULT_VIDEO_WIDTH,
+                DEFAULT_VIDEO_HEIGHT);
+        config.setAdaptiveBitRate(1500000, 8000000);
+        return config;
+    }
+
+    /**
+     * Sets the encoder's frame size.  The rendered frame is letterboxed into it.  Takes effect
+     * at the next recording.
+     */
+    public void setVideoSize(final int width, final int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad video size " + width + "x" + height);
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mVideoConfig.setSize(width, height);
+            }
+        });
+    }
+
+    /**
+     * Sets codec, rate control, frame rate, GOP and frame size for the next recording.  The
+     * config is copied.
+     */
+    public void setVideoEncoderConfig(VideoEncoderConfig config) {
+        final VideoEncoderConfig copy = new VideoEncoderConfig(config);
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mVideoConfig = copy;
+            }
+        });
+    }
+
+    /**
+     * Chooses how frames get into the encoder, one of the RECORD_METHOD_ constants.  Takes
+     * effect at the next frame.  Not used while a render size is set; the encoder then gets
+     * its own scale pass from the offscreen frame.
+     */
+    public void setRecordMethod(final int method) {
+        if (method != RECORD_METHOD_DRAW_TWICE && method != RECORD_METHOD_BLIT_FRAMEBUFFER
+                && method != RECORD_METHOD_AUTO) {
+            throw new IllegalArgumentException("unknown record method " + method);
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mRecordMethod = method;
+                if (mVideoEncoder != null) {
+                    resolveRecordMethod();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets how many frames may be queued in the encoder before further frames are skipped
+     * rather than block the render thread, and the preview with it.  Lower means less lag
+     * behind a slow encoder, higher means fewer frames lost to hiccups.  Takes effect at the
+     * next frame.
+     */
+    public void setMaxEncoderFramesInFlight(final int maxFrames) {
+        if (maxFrames <= 0) {
+            throw new IllegalArgumentException("bad in-flight limit " + maxFrames);
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mMaxFramesInFlight = maxFrames;
+                if (mVideoEncoder != null) {
+                    mVideoEncoder.setMaxFramesInFlight(maxFrames);
+                }
+            }
+        });
+    }
+
+    public int getMaxEncoderFramesInFlight() {
+        return mMaxFramesInFlight;
+    }
+
+    /**
+     * Returns the frames of the current, or else the last, recording that were not encoded
+     * because the encoder was behind.
+     */
+    public int getEncoderSkippedFrames() {
+        return mEncoderSkippedFrames;
+    }
+
+    public int getRecordMethod() {
+        return mRecordMethod;
+    }
+
+    /**
+     * Returns the method in use, never RECORD_METHOD_AUTO.
+     */
+    public int getActiveRecordMethod() {
+        return mActiveRecordMethod;
+    }
+
+    private void resolveRecordMethod() {
+        boolean canBlit = mEglCore.getGlVersion() >= 3;
+        if (mRecordMethod == RECORD_METHOD_BLIT_FRAMEBUFFER && !canBlit) {
+            Log.w(TAG, "glBlitFramebuffer needs GLES 3, drawing twice instead");
+        }
+        mActiveRecordMethod = mRecordMethod != RECORD_METHOD_DRAW_TWICE && canBlit
+                ? RECORD_METHOD_BLIT_FRAMEBUFFER : RECORD_METHOD_DRAW_TWICE;
+        mBlitChecked = false;
+        Log.d(TAG, "record method " + mActiveRecordMethod);
+    }
+
+    /**
+     * One run of the encoder, recording or pre-roll.  Built on the control thread, then
+     * attached on the render thread; torn down on the control thread.
+     */
+    private static class EncoderSession {
+        final Completion mStarted = new Completion();
+        // Set on the render thread when the session is stopped.
+        volatile boolean mCancelled;
+        // Set on the control thread, and seen by the render thread through runOnDraw().
+        VideoEncoderCore mCore;
+        TextureMovieEncoder2 mVideoEncoder;
+        AudioEncoderCore mAudioEncoder;
+    }
+
+    /**
+     * Creates the encoders of a session.  Runs on the control thread, so it may block.
+     */
+    private interface SessionBuilder {
+        void build(EncoderSession session) throws IOException;
+    }
+
+    private Completion startEncoder() {
+        final boolean audio = mAudioEnabled && mOutputFormat != OUTPUT_FORMAT_ANNEX_B;
+        final boolean segmented = mMaxSegmentSeconds > 0 || mMaxSegmentMegabytes > 0;
+        final MuxerSink.Factory factory = createSinkFactory(mOutputFormat, mOutputFile,
+                segmented);
+        final long maxSegmentUsec = mMaxSegmentSeconds * 1000000L;
+        final long maxSegmentBytes = mMaxSegmentMegabytes * 1024L * 1024L;
+        final VideoEncoderConfig config = new VideoEncoderConfig(mVideoConfig);
+        return startSession(new SessionBuilder() {
+            @Override
+            public void build(EncoderSession session) throws IOException {
+                SharedMuxer muxer = new SharedMuxer(factory, audio ? 2 : 1, maxSegmentUsec,
+                        maxSegmentBytes);
+                if (audio) {
+                    try {
+                        session.mAudioEncoder = new AudioEncoderCore(new MicrophoneSource(),
+                                muxer);
+                    } catch (IOException ioe) {
+                        Log.w(TAG, "no audio encoder, recording without sound", ioe);
+                        muxer.releaseTrack(-1);
+                    }
+                }
+                try {
+                    session.mCore = new VideoEncoderCore(config, muxer);
+                } catch (IOException ioe) {
+                    muxer.releaseTrack(-1);
+                    throw ioe;
+                }
+                if (session.mAudioEncoder != null) {
+                    // Capture runs on the audio encoder's own thread.
+                    session.mAudioEncoder.start();
+                }
+            }
+        });
+    }
+
+    private static MuxerSink.Factory createSinkFactory(final int format, final File outputFile,
+                                                       final boolean segmented) {
+        return new MuxerSink.Factory() {
+            @Override
+            public MuxerSink create(int segment) throws IOException {
+                File file = segmented ? SharedMuxer.getSegmentFile(outputFile, segment)
+                        : outputFile;
+                switch (format) {
+                    case OUTPUT_FORMAT_FRAGMENTED_MP4:
+                        return new FragmentedMp4Sink(file);
+                    case OUTPUT_FORMAT_ANNEX_B:
+                        return new AnnexBSink(file);
+                    default:
+                        return new MediaMuxerSink(file);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts the low-bitrate encode into mFrameRing.  Video only.
+     */
+    private void startPreRoll() {
+        final VideoEncoderConfig config = new VideoEncoderConfig(mVideoConfig);
+        config.setBitRate(PRE_ROLL_BIT_RATE);
+        config.setAdaptiveBitRate(0, 0);
+        // Short GOPs, since the buffer is trimmed and saved a GOP at a time.
+        config.setIFrameInterval(1);
+        if (mFrameRing == null) {
+            mFrameRing = EncodedFrameRing.create(config, mPreRollSeconds);
+        }
+        final EncodedFrameRing ring = mFrameRing;
+        startSession(new SessionBuilder() {
+            @Override
+            public void build(EncoderSession session) throws IOException {
+                session.mCore = new VideoEncoderCore(config, ring);
+            }
+        });
+    }
+
+    /**
+     * Builds a session on the control thread and attaches it once it's ready.  Frames
+     * rendered meanwhile aren't encoded.
+     *
+     * @return finishes when the encoder takes frames; fails if it couldn't be set up or was
+     *         stopped first
+     */
+    private Completion startSession(final SessionBuilder builder) {
+        final EncoderSession session = new EncoderSession();
+        mSession = session;
+        mEncoderControl.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (session.mCancelled) {
+                    session.mStarted.fail(new CancellationException("stopped before starting"));
+                    return;
+                }
+                try {
+                    builder.build(session);
+                    session.mVideoEncoder = new TextureMovieEncoder2(session.mCore);
+                } catch (Exception e) {
+                    Log.e(TAG, "failed to start encoder", e);
+                    releaseUnattached(session);
+                    session.mStarted.fail(e);
+                    return;
+                }
+                runOnDraw(new Runnable() {
+                    @Override
+                    public void run() {
+                        // If it was stopped meanwhile, its teardown is already queued.
+                        if (session == mSession) {
+                            attachSession(session);
+                            session.mStarted.complete();
+                        }
+                    }
+                });
+            }
+        });
+        return session.mStarted;
+    }
+
+    /**
+     * Releases what a failed build left behind.  Control thread.
+     */
+    private static void releaseUnattached(EncoderSession session) {
+        if (session.mAudioEncoder != null) {
+            session.mAudioEncoder.stop();
+            session.mAudioEncoder = null;
+        }
+        if (session.mCore != null) {
+            session.mCore.release();
+            session.mCore = null;
+        }
+    }
+
+    private void attachSession(EncoderSession session) {
+        // Letterbox the rendered frame into the encoder, preserving its aspect ratio.
+        VideoEncoderConfig config = session.mCore.getConfig();
+        final int VIDEO_WIDTH = config.getWidth();
+        final int VIDEO_HEIGHT = config.getHeight();
+        int frameWidth = getFrameWidth();
+        int frameHeight = getFrameHeight();
+        float frameAspect = (float) frameHeight / (float) frameWidth;
         int outWidth, outHeight;
-        if (VIDEO_HEIGHT > VIDEO_WIDTH * windowAspect) {
+        if (VIDEO_HEIGHT > VIDEO_WIDTH * frameAspect) {
             // limited by narrow width; reduce height
             outWidth = VIDEO_WIDTH;
-            outHeight = (int) (VIDEO_WIDTH * windowAspect);
+            outHeight = (int) (VIDEO_WIDTH * frameAspect);
         } else {
             // limited by short height; restrict width
             outHeight = VIDEO_HEIGHT;
-            outWidth = (int) (VIDEO_HEIGHT / windowAspect);
+            outWidth = (int) (VIDEO_HEIGHT / frameAspect);
         }
         int offX = (VIDEO_WIDTH - outWidth) / 2;
         int offY = (VIDEO_HEIGHT - outHeight) / 2;
         mVideoRect.set(offX, offY, offX + outWidth, offY + outHeight);
-        Log.d(TAG, "Adjusting window " + windowWidth + "x" + windowHeight +
+        Log.d(TAG, "Adjusting frame " + frameWidth + "x" + frameHeight +
                 " to +" + offX + ",+" + offY + " " +
                 mVideoRect.width() + "x" + mVideoRect.height());
 
-        VideoEncoderCore encoderCore;
-        try {
-            encoderCore = new VideoEncoderCore(VIDEO_WIDTH, VIDEO_HEIGHT,
-                    BIT_RATE, mOutputFile);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
-        }
-        mInputWindowSurface = new WindowSurface(mEglCore, encoderCore.getInputSurface(), true);
-        mVideoEncoder = new TextureMovieEncoder2(encoderCore);
+        mInputWindowSurface = new WindowSurface(mEglCore, session.mCore.getInputSurface(),
+                true);
+        mVideoEncoder = session.mVideoEncoder;
+        mVideoEncoder.setMaxFramesInFlight(mMaxFramesInFlight);
+        mEncoderSkippedFrames = 0;
+        mFrameDecimator = new FrameDecimator(config.getFrameRate());
+        resolveRecordMethod();
     }
 
     /**
-     * Stops the video encoder if it's running.
+     * Stops the current session, pending or running.  The surface is let go of right away;
+     * the encoders finish on the control thread, where the next session waits for them.
+     *
+     * @return finishes when the file is complete; fails if that took over STOP_TIMEOUT_MS
      */
-    private void stopEncoder() {
+    private Completion stopEncoder() {
+        final EncoderSession session = mSession;
+        if (session == null) {
+            return Completion.completed();
+        }
+        mSession = null;
+        session.mCancelled = true;
         if (mVideoEncoder != null) {
             Log.d(TAG, "stopping recorder, mVideoEncoder=" + mVideoEncoder);
-            mVideoEncoder.stopRecording();
-            // TODO: wait (briefly) until it finishes shutting down so we know file is
-            //       complete, or have a callback that updates the UI
+            Log.d(TAG, "recorded " + mFrameDecimator.getAcceptedFrames() + " frames, skipped " +
+                    mFrameDecimator.getDroppedFrames() + ", " + mEncoderSkippedFrames +
+                    " more with the encoder behind");
             mVideoEncoder = null;
         }
         if (mInputWindowSurface != null) {
             mInputWindowSurface.release();
             mInputWindowSurface = null;
         }
+
+        final Completion stopped = new Completion();
+        mEncoderControl.execute(new Runnable() {
+            @Override
+            public void run() {
+                session.mStarted.fail(new CancellationException("stopped before starting"));
+                Completion audio = session.mAudioEncoder != null
+                        ? session.mAudioEncoder.stop() : Completion.completed();
+                Completion video = session.mVideoEncoder != null
+                        ? session.mVideoEncoder.stopRecording() : Completion.completed();
+                long deadline = System.nanoTime() + STOP_TIMEOUT_MS * 1000000L;
+                if (!video.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        || !audio.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    // Don't hold up the next recording forever on a wedged codec.
+                    Log.w(TAG, "encoder still stopping after " + STOP_TIMEOUT_MS +
+                            "ms, moving on");
+                    stopped.fail(new TimeoutException("encoder didn't stop in " +
+                            STOP_TIMEOUT_MS + "ms"));
+                    return;
+                }
+                Throwable error = video.getError() != null ? video.getError()
+                        : audio.getError();
+                if (error != null) {
+                    stopped.fail(error);
+                } else {
+                    stopped.complete();
+                }
+            }
+        });
+        return stopped;
+    }
+
+    @Override
+    protected void onMasterFrameAvailable(int texture, long timeStampNanos) {
+        if (mVideoEncoder == null || !acceptEncoderFrame(timeStampNanos)) {
+            return;
+        }
+        mVideoEncoder.frameAvailableSoon();
+        mInputWindowSurface.makeCurrent();
+        mGl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);    // again, only really need to
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT);     //  clear pixels outside rect
+        mGl.glViewport(mVideoRect.left, mVideoRect.top,
+                mVideoRect.width(), mVideoRect.height());
+        drawScaled(texture, timeStampNanos);
+        mInputWindowSurface.setPresentationTime(timeStampNanos);
+        mInputWindowSurface.swapBuffers();
+        mWindowSurface.makeCurrent();
+    }
+
+    /**
+     * Returns true if a frame should go to the encoder: due at the encoder's frame rate, and
+     * with the encoder keeping up well enough to take it without blocking.
+     */
+    private boolean acceptEncoderFrame(long timeStampNanos) {
+        if (!mFrameDecimator.accept(timeStampNanos)) {
+            return false;
+        }
+        if (!mVideoEncoder.tryBeginFrame(timeStampNanos)) {
+            mEncoderSkippedFrames = mVideoEncoder.getSkippedFrames();
+            return false;
+        }
+        return true;
     }
 
     private class RecordFilter extends GPUImageFilter {
 
         @Override
         public void onDraw(int textureId, FloatBuffer cubeBuffer, FloatBuffer textureBuffer, long timeStampNanos) {
-            if (mRecordingEnabled) {
-                mVideoEncoder.frameAvailableSoon();
-                mInputWindowSurface.makeCurrent();
-                GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);    // again, only really need to
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);     //  clear pixels outside rect
-                GLES20.glViewport(mVideoRect.left, mVideoRect.top,
-                        mVideoRect.width(), mVideoRect.height());
+            if (mVideoEncoder == null || hasMasterTarget()
+                    || !acceptEncoderFrame(timeStampNanos)) {
+                // With a master target, onMasterFrameAvailable() feeds the encoder.  Frames
+                // the decimator skips, or the encoder can't take yet, are only drawn for the
+                // display.
+                super.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+            } else if (mActiveRecordMethod == RECORD_METHOD_BLIT_FRAMEBUFFER) {
+                // Draw the frame, but don't swap it yet; RenderThread does that.
+                super.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+                blitToEncoder(timeStampNanos);
+            } else {
+                drawToEncoder(textureId, cubeBuffer, textureBuffer, timeStampNanos);
                 super.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
-                mInputWindowSurface.setPresentationTime(timeStampNanos);
-                mInputWindowSurface.swapBuffers();
-                GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
-                mWindowSurface.makeCurrent();
-
             }
+        }
+
+        private void drawToEncoder(int textureId, FloatBuffer cubeBuffer,
+                                   FloatBuffer textureBuffer, long timeStampNanos) {
+            mVideoEncoder.frameAvailableSoon();
+            mInputWindowSurface.makeCurrent();
+            mGl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);    // again, only really need to
+            mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT);     //  clear pixels outside rect
+            mGl.glViewport(mVideoRect.left, mVideoRect.top,
+                    mVideoRect.width(), mVideoRect.height());
             super.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+            mInputWindowSurface.setPresentationTime(timeStampNanos);
+            mInputWindowSurface.swapBuffers();
+            mGl.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
+            mWindowSurface.makeCurrent();
+        }
+
+        private void blitToEncoder(long timeStampNanos) {
+            mVideoEncoder.frameAvailableSoon();
+            mInputWindowSurface.makeCurrentReadFrom(mWindowSurface);
+            // Clear the letterbox; the blit overwrites the rest.
+            mGl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+            mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            if (!mBlitChecked) {
+                // Drain errors left by earlier calls, so only the blit's own is checked.
+                while (mGl.glGetError() != GLES20.GL_NO_ERROR) {
+                }
+            }
+            mGl.glBlitFramebuffer(
+                    0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight(),
+                    mVideoRect.left, mVideoRect.top, mVideoRect.right, mVideoRect.bottom,
+                    GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_LINEAR);
+            if (!mBlitChecked) {
+                mBlitChecked = true;
+                int err = mGl.glGetError();
+                if (err != GLES20.GL_NO_ERROR) {
+                    Log.w(TAG, "glBlitFramebuffer failed: 0x" + Integer.toHexString(err) +
+                            ", drawing twice instead");
+                    mActiveRecordMethod = RECORD_METHOD_DRAW_TWICE;
+                }
+            }
+            mInputWindowSurface.setPresentationTime(timeStampNanos);
+            mInputWindowSurface.swapBuffers();
+            mWindowSurface.makeCurrent();
         }
     }
 
@@ -19,6 +19,7 @@ package com.bingbing.cameratest.gpuimage;
 import android.graphics.Bitmap;
 import android.opengl.GLES20;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -41,7 +42,9 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     public int mFilterSecondTextureCoordinateAttribute;
     public int mFilterInputTextureUniform2;
     public int mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
-    private ByteBuffer mTexture2CoordinatesBuffer;
+    // False while the second input is a texture set with setSecondInputTexture().
+    private boolean mOwnsSourceTexture2 = true;
+    private Buffer mTexture2CoordinatesBuffer;
     private Bitmap mBitmap;
 
     public GPUImageTwoInputFilter(String fragmentShader) {
@@ -57,9 +60,9 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     public void onInit() {
         super.onInit();
 
-        mFilterSecondTextureCoordinateAttribute = GLES20.glGetAttribLocation(getProgram(), "inputTextureCoordinate2");
-        mFilterInputTextureUniform2 = GLES20.glGetUniformLocation(getProgram(), "inputImageTexture2"); // This does assume a name of "inputImageTexture2" for second input texture in the fragment shader
-        GLES20.glEnableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
+        mFilterSecondTextureCoordinateAttribute = mGl.glGetAttribLocation(getProgram(), "inputTextureCoordinate2");
+        mFilterInputTextureUniform2 = mGl.glGetUniformLocation(getProgram(), "inputImageTexture2"); // This does assume a name of "inputImageTexture2" for second input texture in the fragment shader
+        mGl.glEnableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
 
         if (mBitmap != null&&!mBitmap.isRecycled()) {
             setBitmap(mBitmap);
@@ -80,13 +83,26 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
                     if (bitmap == null || bitmap.isRecycled()) {
                         return;
                     }
-                    GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-                    mFilterSourceTexture2 = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
+                    mGl.glActiveTexture(GLES20.GL_TEXTURE3);
+                    mFilterSourceTexture2 = mGl.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
+                    mOwnsSourceTexture2 = true;
                 }
             }
         });
     }
 
+    /**
+     * Uses a texture owned by someone else, such as another filter's output, as the second
+     * input in place of the bitmap.  The texture is sampled with the given coordinates and is
+     * never deleted by this filter.  GL thread only.
+     */
+    public void setSecondInputTexture(final int texture, final FloatBuffer textureBuffer) {
+        releaseSourceTexture2();
+        mFilterSourceTexture2 = texture;
+        mOwnsSourceTexture2 = false;
+        mTexture2CoordinatesBuffer = textureBuffer;
+    }
+
     public Bitmap getBitmap() {
         return mBitmap;
     }
@@ -100,21 +116,28 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
     public void onDestroy() {
         super.onDestroy();
-        GLES20.glDeleteTextures(1, new int[]{
-                mFilterSourceTexture2
-        }, 0);
+        releaseSourceTexture2();
+    }
+
+    private void releaseSourceTexture2() {
+        if (mOwnsSourceTexture2 && mFilterSourceTexture2 != OpenGlUtils.NO_TEXTURE) {
+            mGl.glDeleteTextures(1, new int[]{
+                    mFilterSourceTexture2
+            }, 0);
+        }
         mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
+        mOwnsSourceTexture2 = true;
     }
 
     @Override
     protected void onDrawArraysPre() {
-        GLES20.glEnableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFilterSourceTexture2);
-        GLES20.glUniform1i(mFilterInputTextureUniform2, 3);
+        mGl.glEnableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
+        mGl.glActiveTexture(GLES20.GL_TEXTURE3);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mFilterSourceTexture2);
+        mGl.glUniform1i(mFilterInputTextureUniform2, 3);
 
         mTexture2CoordinatesBuffer.position(0);
-        GLES20.glVertexAttribPointer(mFilterSecondTextureCoordinateAttribute, 2, GLES20.GL_FLOAT, false, 0, mTexture2CoordinatesBuffer);
+        mGl.glVertexAttribPointer(mFilterSecondTextureCoordinateAttribute, 2, GLES20.GL_FLOAT, false, 0, mTexture2CoordinatesBuffer);
     }
 
     public void setRotation(final Rotation rotation, final boolean flipHorizontal, final boolean flipVertical) {
@@ -0,0 +1,164 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.graphics.Bitmap;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The GL entry points used by the filter render path.
+ * <p>
+ * Filters, groups and renderers call through a GlBackend instead of the GLES20 statics, so
+ * the whole chain can run against {@link RecordingGlBackend} on a desktop JVM.  Method names
+ * and arguments mirror GLES20.  {@link AndroidGlBackend} is the real thing.
+ * <p>
+ * Like the GL context itself, a backend must only be used from the render thread.
+ */
+public interface GlBackend {
+
+    /**
+     * Marks the start of a frame.  Backends that keep per-frame statistics reset them here.
+     */
+    void beginFrame();
+
+    /**
+     * Marks the end of a frame.
+     */
+    void endFrame();
+
+    /**
+     * Tells the backend that GL state was changed by code that does not go through it, e.g.
+     * SurfaceTexture.updateTexImage() binding the camera texture.  Backends that cache state
+     * must forget it here.
+     */
+    void invalidate();
+
+    // ----- programs -----
+
+    /**
+     * Returns a linked program for the sources, or 0 on failure.  See OpenGlUtils.loadProgram.
+     */
+    int loadProgram(String vertexSource, String fragmentSource);
+
+    /**
+     * Releases a program obtained from {@link #loadProgram(String, String)}.
+     */
+    void releaseProgram(int program);
+
+    void glUseProgram(int program);
+
+    int glGetAttribLocation(int program, String name);
+
+    int glGetUniformLocation(int program, String name);
+
+    // ----- uniforms -----
+
+    void glUniform1i(int location, int x);
+
+    void glUniform1f(int location, float x);
+
+    void glUniform2fv(int location, int count, FloatBuffer v);
+
+    void glUniform2fv(int location, int count, float[] v, int offset);
+
+    void glUniform3fv(int location, int count, FloatBuffer v);
+
+    void glUniform4fv(int location, int count, FloatBuffer v);
+
+    void glUniform1fv(int location, int count, FloatBuffer v);
+
+    void glUniformMatrix3fv(int location, int count, boolean transpose, float[] value,
+                            int offset);
+
+    void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+                            int offset);
+
+    // ----- vertex attributes and drawing -----
+
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+                               Buffer ptr);
+
+    void glEnableVertexAttribArray(int index);
+
+    void glDisableVertexAttribArray(int index);
+
+    void glDrawArrays(int mode, int first, int count);
+
+    // ----- textures -----
+
+    void glActiveTexture(int texture);
+
+    void glBindTexture(int target, int texture);
+
+    void glGenTextures(int n, int[] textures, int offset);
+
+    void glDeleteTextures(int n, int[] textures, int offset);
+
+    void glTexImage2D(int target, int level, int internalformat, int width, int height,
+                      int border, int format, int type, Buffer pixels);
+
+    /**
+     * Copies from the framebuffer bound for reading into the bound texture.
+     */
+    void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x, int y,
+                             int width, int height);
+
+    void glTexParameterf(int target, int pname, float param);
+
+    void glTexParameteri(int target, int pname, int param);
+
+    /**
+     * Uploads a Bitmap to a new or existing texture.  See OpenGlUtils.loadTexture.
+     */
+    int loadTexture(Bitmap bitmap, int usedTexId, boolean recycle);
+
+    // ----- framebuffers -----
+
+    void glGenFramebuffers(int n, int[] framebuffers, int offset);
+
+    void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+
+    void glBindFramebuffer(int target, int framebuffer);
+
+    void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+                                int level);
+
+    // ----- fixed-function state -----
+
+    void glViewport(int x, int y, int width, int height);
+
+    void glClearColor(float red, float green, float blue, float alpha);
+
+    void glClear(int mask);
+
+    void glEnable(int cap);
+
+    void glDisable(int cap);
+
+    void glGetIntegerv(int pname, int[] params, int offset);
+
+    int glGetError();
+
+    String glGetString(int name);
+
+    // ----- GLES 3.0 -----
+
+    /**
+     * GLES30.glBlitFramebuffer.  Only valid on a GLES 3 context.
+     */
+    void glBlitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0, int dstY0,
+                           int dstX1, int dstY1, int mask, int filter);
+
+    /**
+     * Query objects, e.g. for GL_EXT_disjoint_timer_query.  Only valid on a GLES 3 context.
+     */
+    void glGenQueries(int n, int[] ids, int offset);
+
+    void glDeleteQueries(int n, int[] ids, int offset);
+
+    void glBeginQuery(int target, int id);
+
+    void glEndQuery(int target);
+
+    void glGetQueryObjectuiv(int id, int pname, int[] params, int offset);
+}
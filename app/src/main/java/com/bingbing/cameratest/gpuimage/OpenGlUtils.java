@@ -101,11 +101,21 @@ public class OpenGlUtils {
         return iShader;
     }
 
+    /**
+     * Returns a linked program for the given sources, reusing one from {@link ProgramCache}
+     * when possible.  Hand it back with {@link #releaseProgram(int)} rather than deleting it.
+     */
     public static int loadProgram(final String strVSource, final String strFSource) {
         int iVShader;
         int iFShader;
         int iProgId;
         int[] link = new int[1];
+        ProgramCache cache = ProgramCache.getInstance();
+        iProgId = cache.acquire(strVSource, strFSource);
+        if (iProgId != 0) {
+            return iProgId;
+        }
+
         iVShader = loadShader(strVSource, GLES20.GL_VERTEX_SHADER);
         if (iVShader == 0) {
             Log.d("Load Program", "Vertex Shader Failed");
@@ -122,6 +132,7 @@ public class OpenGlUtils {
         GLES20.glAttachShader(iProgId, iVShader);
         GLES20.glAttachShader(iProgId, iFShader);
 
+        cache.prepareForLink(iProgId);
         GLES20.glLinkProgram(iProgId);
 
         GLES20.glGetProgramiv(iProgId, GLES20.GL_LINK_STATUS, link, 0);
@@ -131,9 +142,17 @@ public class OpenGlUtils {
         }
         GLES20.glDeleteShader(iVShader);
         GLES20.glDeleteShader(iFShader);
+        cache.put(strVSource, strFSource, iProgId);
         return iProgId;
     }
 
+    /**
+     * Releases a program obtained from {@link #loadProgram(String, String)}.
+     */
+    public static void releaseProgram(final int programId) {
+        ProgramCache.getInstance().release(programId);
+    }
+
     public static float rnd(final float min, final float max) {
         float fRandNum = (float) Math.random();
         return min + (max - min) * fRandNum;
@@ -0,0 +1,295 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times the passes of a filter chain and keeps a moving average per filter name, so you can
+ * see which pass eats the frame budget on a device.  Turn it on with
+ * {@link GPUImageFilterGroup#setPassTiming(boolean)}.
+ * <p>
+ * On GLES 3 with GL_EXT_disjoint_timer_query each pass is wrapped in a GL_TIME_ELAPSED_EXT
+ * query, which measures the GPU time itself.  Results are collected
+ * {@link #LATENCY_FRAMES} frames later so the render thread never waits on the GPU; frames
+ * whose queries aren't done by then, or during which the GPU reported a disjoint event such
+ * as a clock change, are thrown away.  Elsewhere the CPU time to submit each pass is measured
+ * instead, which shows expensive state changes and uploads but not shader cost; see
+ * {@link #isGpuTiming()}.
+ * <p>
+ * Passes with the same name in one frame are added together.  Everything but the getters
+ * runs on the GL thread; the getters may be called from any thread.
+ */
+public class PassTimer {
+    private static final String TAG = "bingbing_PassTimer";
+
+    // GL_EXT_disjoint_timer_query.
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    /** Frames between a pass being timed and its time being collected. */
+    public static final int LATENCY_FRAMES = 3;
+    // Weight of each new frame in the moving averages.
+    private static final float SMOOTHING = 1 / 16f;
+
+    /**
+     * The timings of passes with one name.
+     */
+    public static class PassStats {
+        private final String mName;
+        private volatile long mAverageNanos;
+        private volatile long mLastNanos;
+        private volatile long mSamples;
+        // Time in the frame being collected.  GL thread.
+        private long mPendingNanos;
+        private boolean mPending;
+
+        PassStats(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the exponential moving average per frame.
+         */
+        public long getAverageNanos() {
+            return mAverageNanos;
+        }
+
+        public long getLastNanos() {
+            return mLastNanos;
+        }
+
+        public long getSampleCount() {
+            return mSamples;
+        }
+
+        private void addSample(long nanos) {
+            long samples = mSamples;
+            mAverageNanos = samples == 0 ? nanos
+                    : mAverageNanos + (long) ((nanos - mAverageNanos) * SMOOTHING);
+            mLastNanos = nanos;
+            mSamples = samples + 1;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + (mAverageNanos / 1000) + "us";
+        }
+    }
+
+    private final GlBackend mGl;
+    private final boolean mGpuTiming;
+    private final ConcurrentHashMap<String, PassStats> mStats =
+            new ConcurrentHashMap<String, PassStats>();
+
+    // One entry per frame in flight, indexed by mSlot.  The arrays grow to the longest
+    // chain seen.
+    private final int[][] mQueries = new int[LATENCY_FRAMES][];
+    private final long[][] mCpuNanos = new long[LATENCY_FRAMES][];
+    private final PassStats[][] mPasses = new PassStats[LATENCY_FRAMES][];
+    private final int[] mPassCounts = new int[LATENCY_FRAMES];
+    private int mSlot;
+    private long mPassStartNanos;
+    private boolean mInPass;
+    private final int[] mResult = new int[1];
+    private volatile int mLostFrames;
+
+
+    /**
+     * GL thread, with the context current.
+     *
+     * @param glVersion the context's major version, see {@link ProgramCache#getGlVersion()}
+     */
+    public PassTimer(GlBackend gl, int glVersion) {
+        mGl = gl;
+        String extensions = glVersion >= 3 ? gl.glGetString(GLES20.GL_EXTENSIONS) : null;
+        mGpuTiming = extensions != null
+                && extensions.contains("GL_EXT_disjoint_timer_query");
+        for (int i = 0; i < LATENCY_FRAMES; i++) {
+            mQueries[i] = new int[0];
+            mCpuNanos[i] = new long[0];
+            mPasses[i] = new PassStats[0];
+        }
+        if (mGpuTiming) {
+            // Clear a disjoint event from before we started.
+            gl.glGetIntegerv(GL_GPU_DISJOINT_EXT, mResult, 0);
+        }
+        Log.d(TAG, "timing passes on the " + (mGpuTiming ? "GPU" : "CPU, submission only"));
+    }
+
+    /**
+     * Returns true if passes are timed on the GPU, false if only their submission is.
+     */
+    public boolean isGpuTiming() {
+        return mGpuTiming;
+    }
+
+    /**
+     * Returns the stats for a filter name, or null if no pass of that name has been timed.
+     */
+    public PassStats getStats(String name) {
+        return mStats.get(name);
+    }
+
+    /**
+     * Returns the average time of a filter name's passes per frame, or 0 if none timed yet.
+     */
+    public long getAverageNanos(String name) {
+        PassStats stats = mStats.get(name);
+        return stats == null ? 0 : stats.getAverageNanos();
+    }
+
+    /**
+     * Returns the stats of every name timed so far, in no particular order.
+     */
+    public Collection<PassStats> getAllStats() {
+        return mStats.values();
+    }
+
+    /**
+     * Returns the frames whose GPU times were thrown away as late or disjoint.
+     */
+    public int getLostFrames() {
+        return mLostFrames;
+    }
+
+    /**
+     * Starts a frame.  Collects the frame timed LATENCY_FRAMES ago, whose slot this one
+     * reuses.
+     */
+    public void beginFrame() {
+        mSlot = (mSlot + 1) % LATENCY_FRAMES;
+        if (mPassCounts[mSlot] > 0) {
+            collect(mSlot);
+        }
+        mPassCounts[mSlot] = 0;
+    }
+
+    /**
+     * Starts timing a pass drawing the filter.  Passes can't nest.
+     */
+    public void begin(GPUImageFilter filter) {
+        if (mInPass) {
+            throw new IllegalStateException("begin() inside a pass");
+        }
+        int index = mPassCounts[mSlot];
+        if (index == mPasses[mSlot].length) {
+            grow(mSlot);
+        }
+        String name = filter.getName();
+        PassStats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new PassStats(name);
+            mStats.put(name, stats);
+        }
+        mPasses[mSlot][index] = stats;
+        mInPass = true;
+        if (mGpuTiming) {
+            mGl.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mSlot][index]);
+        } else {
+            mPassStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Ends the pass started by begin().
+     */
+    public void end() {
+        if (!mInPass) {
+            throw new IllegalStateException("end() without begin()");
+        }
+        int index = mPassCounts[mSlot]++;
+        mInPass = false;
+        if (mGpuTiming) {
+            mGl.glEndQuery(GL_TIME_ELAPSED_EXT);
+        } else {
+            mCpuNanos[mSlot][index] = System.nanoTime() - mPassStartNanos;
+        }
+    }
+
+    private void grow(int slot) {
+        int oldLength = mPasses[slot].length;
+        int length = Math.max(4, oldLength * 2);
+        PassStats[] passes = new PassStats[length];
+        System.arraycopy(mPasses[slot], 0, passes, 0, oldLength);
+        mPasses[slot] = passes;
+        long[] cpuNanos = new long[length];
+        System.arraycopy(mCpuNanos[slot], 0, cpuNanos, 0, oldLength);
+        mCpuNanos[slot] = cpuNanos;
+        if (mGpuTiming) {
+            int[] queries = new int[length];
+            System.arraycopy(mQueries[slot], 0, queries, 0, oldLength);
+            mGl.glGenQueries(length - oldLength, queries, oldLength);
+            mQueries[slot] = queries;
+        }
+    }
+
+    /**
+     * Adds a finished frame's pass times to the averages.
+     */
+    private void collect(int slot) {
+        int count = mPassCounts[slot];
+        if (mGpuTiming) {
+            mGl.glGetIntegerv(GL_GPU_DISJOINT_EXT, mResult, 0);
+            if (mResult[0] != 0) {
+                // The timer was disrupted at some point; none of the times can be trusted.
+                mLostFrames++;
+                return;
+            }
+            // Queries finish in order, so the last one being ready means all are.
+            mGl.glGetQueryObjectuiv(mQueries[slot][count - 1], GLES30.GL_QUERY_RESULT_AVAILABLE,
+                    mResult, 0);
+            if (mResult[0] == 0) {
+                mLostFrames++;
+                return;
+            }
+        }
+        PassStats[] passes = mPasses[slot];
+        for (int i = 0; i < count; i++) {
+            long nanos;
+            if (mGpuTiming) {
+                mGl.glGetQueryObjectuiv(mQueries[slot][i], GLES30.GL_QUERY_RESULT, mResult, 0);
+                nanos = mResult[0] & 0xffffffffL;
+            } else {
+                nanos = mCpuNanos[slot][i];
+            }
+            passes[i].mPendingNanos += nanos;
+            passes[i].mPending = true;
+        }
+        for (int i = 0; i < count; i++) {
+            PassStats stats = passes[i];
+            if (stats.mPending) {
+                stats.addSample(stats.mPendingNanos);
+                stats.mPendingNanos = 0;
+                stats.mPending = false;
+            }
+        }
+    }
+
+    /**
+     * Frees the queries.  GL thread, with the context current.
+     */
+    public void release() {
+        if (mInPass) {
+            end();
+        }
+        if (mGpuTiming) {
+            for (int i = 0; i < LATENCY_FRAMES; i++) {
+                if (mQueries[i].length > 0) {
+                    mGl.glDeleteQueries(mQueries[i].length, mQueries[i], 0);
+                    mQueries[i] = new int[0];
+                }
+            }
+        }
+        for (int i = 0; i < LATENCY_FRAMES; i++) {
+            mPassCounts[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cache of linked GL programs, keyed by a hash of their shader sources.
+ * <p>
+ * In-process, programs released by a filter are parked instead of deleted, and handed to the
+ * next filter that asks for the same sources (e.g. after setFilter() or a surface recreate).
+ * A parked program is only ever owned by one filter at a time, because filters keep their
+ * uniform values in the program object.
+ * <p>
+ * On GLES3 contexts, with a cache directory set, linked programs are also written to disk with
+ * glGetProgramBinary() and loaded back with glProgramBinary() on the next launch.  Binaries are
+ * keyed by the GL renderer and version too, so a driver update simply misses.
+ * <p>
+ * Must only be used from the thread that owns the GL context.
+ */
+public class ProgramCache {
+    private static final String TAG = "ProgramCache";
+    private static final boolean VERBOSE = false;
+
+    private static final int MAX_IDLE_PROGRAMS = 16;
+    private static final int BINARY_MAGIC = 0x50524f47;    // "PROG"
+
+    private static final ProgramCache sInstance = new ProgramCache();
+
+    private final LinkedList<IdleProgram> mIdle = new LinkedList<IdleProgram>();
+    private final Map<Integer, String> mLive = new HashMap<Integer, String>();
+    private final Set<String> mPersisted = new HashSet<String>();
+    private final Executor mDiskExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ProgramCacheDisk");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private int mGlVersion = 2;
+    private File mBinaryDir;
+    private String mDriverId;
+
+    private int mHits;
+    private int mBinaryHits;
+    private int mMisses;
+
+    public static ProgramCache getInstance() {
+        return sInstance;
+    }
+
+    private ProgramCache() {}
+
+    /**
+     * Sets the GLES version of the current context, from EglCore.getGlVersion().  Program
+     * binaries are only used on 3 and up.
+     */
+    public void setGlVersion(int glVersion) {
+        mGlVersion = glVersion;
+    }
+
+    public int getGlVersion() {
+        return mGlVersion;
+    }
+
+    /**
+     * Sets the directory for persisted program binaries, or null to disable them.
+     */
+    public void setBinaryCacheDir(File dir) {
+        mBinaryDir = dir;
+    }
+
+    private boolean isBinaryCacheEnabled() {
+        return mGlVersion >= 3 && mBinaryDir != null;
+    }
+
+    /**
+     * Returns a program for the given sources that is not in use by anyone else, or 0 if one
+     * has to be compiled.  On a hit the caller owns the program and must hand it back with
+     * {@link #release(int)}.
+     */
+    public int acquire(String vertexSource, String fragmentSource) {
+        String key = key(vertexSource, fragmentSource);
+
+        for (Iterator<IdleProgram> it = mIdle.iterator(); it.hasNext(); ) {
+            IdleProgram idle = it.next();
+            if (idle.key.equals(key)) {
+                it.remove();
+                mLive.put(idle.program, key);
+                mHits++;
+                return idle.program;
+            }
+        }
+
+        if (isBinaryCacheEnabled()) {
+            int program = loadBinary(key);
+            if (program != 0) {
+                mLive.put(program, key);
+                mPersisted.add(key);
+                mBinaryHits++;
+                return program;
+            }
+        }
+        mMisses++;
+        return 0;
+    }
+
+    /**
+     * Call between glCreateProgram() and glLinkProgram() for programs that will be put().
+     */
+    public void prepareForLink(int program) {
+        if (isBinaryCacheEnabled()) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                    GLES20.GL_TRUE);
+        }
+    }
+
+    /**
+     * Registers a freshly linked program.  The caller owns it, as if it had been returned by
+     * {@link #acquire(String, String)}.
+     */
+    public void put(String vertexSource, String fragmentSource, int program) {
+        String key = key(vertexSource, fragmentSource);
+        mLive.put(program, key);
+        if (isBinaryCacheEnabled() && !mPersisted.contains(key)) {
+            saveBinary(key, program);
+            mPersisted.add(key);
+        }
+    }
+
+    /**
+     * Hands a program back.  Programs the cache knows about are parked for reuse; anything
+     * else is deleted.
+     */
+    public void release(int program) {
+        if (program == 0) {
+            return;
+        }
+        String key = mLive.remove(program);
+        if (key == null) {
+            GLES20.glDeleteProgram(program);
+            return;
+        }
+        mIdle.addLast(new IdleProgram(key, program));
+        while (mIdle.size() > MAX_IDLE_PROGRAMS) {
+            GLES20.glDeleteProgram(mIdle.removeFirst().program);
+        }
+    }
+
+    /**
+     * Forgets every program without deleting it.  Call when the EGL context that owns them is
+     * going away; its programs go with it.
+     */
+    public void clear() {
+        Log.d(TAG, "clear: hits=" + mHits + " binaryHits=" + mBinaryHits +
+                " misses=" + mMisses);
+        mIdle.clear();
+        mLive.clear();
+        mDriverId = null;
+    }
+
+    public int getHitCount() {
+        return mHits;
+    }
+
+    public int getBinaryHitCount() {
+        return mBinaryHits;
+    }
+
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    private String key(String vertexSource, String fragmentSource) {
+        if (mDriverId == null) {
+            mDriverId = GLES20.glGetString(GLES20.GL_RENDERER) + "/" +
+                    GLES20.glGetString(GLES20.GL_VERSION);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(vertexSource.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(fragmentSource.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(mDriverId.getBytes("UTF-8"));
+            byte[] hash = digest.digest();
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File binaryFile(String key) {
+        return new File(mBinaryDir, key + ".bin");
+    }
+
+    /**
+     * Loads a program binary from disk.  Returns 0 if there is none or the driver rejects it.
+     */
+    private int loadBinary(String key) {
+        File file = binaryFile(key);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        int format;
+        ByteBuffer binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != BINARY_MAGIC) {
+                throw new IOException("bad magic");
+            }
+            format = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            binary = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+            binary.put(bytes).position(0);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read " + file + ": " + e);
+            file.delete();
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, binary, binary.capacity());
+        int[] link = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, link, 0);
+        if (link[0] != GLES20.GL_TRUE) {
+            // Stale or incompatible; recompile and overwrite it.
+            Log.w(TAG, "program binary rejected, recompiling");
+            GLES20.glDeleteProgram(program);
+            file.delete();
+            return 0;
+        }
+        if (VERBOSE) Log.d(TAG, "loaded program binary " + key);
+        return program;
+    }
+
+    /**
+     * Fetches the binary of a linked program and writes it to disk off the GL thread.
+     */
+    private void saveBinary(final String key, int program) {
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        // Drain errors left by earlier calls, so only the binary fetch's own is checked.
+        while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+        }
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "glGetProgramBinary failed");
+            return;
+        }
+        final byte[] bytes = new byte[length[0]];
+        binary.position(0);
+        binary.get(bytes);
+        final int binaryFormat = format[0];
+        final File file = binaryFile(key);
+
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File dir = file.getParentFile();
+                if (!dir.exists() && !dir.mkdirs()) {
+                    Log.w(TAG, "unable to create " + dir);
+                    return;
+                }
+                // Write to a temp file and rename, so a crash can't leave a torn binary.
+                File tmp = new File(dir, file.getName() + ".tmp");
+                DataOutputStream out = null;
+                try {
+                    out = new DataOutputStream(new FileOutputStream(tmp));
+                    out.writeInt(BINARY_MAGIC);
+                    out.writeInt(binaryFormat);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    out.close();
+                    out = null;
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("rename failed");
+                    }
+                    if (VERBOSE) Log.d(TAG, "saved program binary " + key);
+                } catch (IOException e) {
+                    Log.w(TAG, "unable to write " + file + ": " + e);
+                    tmp.delete();
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static class IdleProgram {
+        final String key;
+        final int program;
+
+        IdleProgram(String key, int program) {
+            this.key = key;
+            this.program = program;
+        }
+    }
+}
@@ -0,0 +1,520 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link GlBackend} that does no rendering, for running the filter chain on a desktop JVM.
+ * <p>
+ * Every call is counted into a {@link FrameStats} for the current frame; at
+ * {@link #endFrame()} the counts are moved to {@link #getLastFrameStats()}, so tests can
+ * assert a per-frame GL call budget.  With {@link #setRecordCalls(boolean)} each call is also
+ * logged by name and arguments.
+ * <p>
+ * Object names are handed out from a counter, attribute and uniform locations are stable per
+ * program and name, and the framebuffer and viewport bindings are tracked so that
+ * glGetIntegerv() answers the way a driver would.  Only GLES20 constants are referenced, so
+ * no native code is needed.
+ */
+public class RecordingGlBackend implements GlBackend {
+
+    /**
+     * Call counts for one frame.
+     */
+    public static class FrameStats {
+        /** glDrawArrays() and glBlitFramebuffer() calls. */
+        public int drawCalls;
+        /** glClear() calls. */
+        public int clears;
+        /** glUseProgram() calls. */
+        public int programBinds;
+        /** glBindTexture() calls, including unbinds. */
+        public int textureBinds;
+        /** glBindFramebuffer() calls, including binds of the default framebuffer. */
+        public int framebufferBinds;
+        /** glUniform*() calls. */
+        public int uniformUpdates;
+        /** Everything else that changes context state: attribs, viewport, active unit, etc. */
+        public int stateChanges;
+        /** Object creation, deletion and uploads. */
+        public int resourceCalls;
+        /** Every call, including queries. */
+        public int totalCalls;
+
+        public void reset() {
+            drawCalls = 0;
+            clears = 0;
+            programBinds = 0;
+            textureBinds = 0;
+            framebufferBinds = 0;
+            uniformUpdates = 0;
+            stateChanges = 0;
+            resourceCalls = 0;
+            totalCalls = 0;
+        }
+
+        public void set(FrameStats other) {
+            drawCalls = other.drawCalls;
+            clears = other.clears;
+            programBinds = other.programBinds;
+            textureBinds = other.textureBinds;
+            framebufferBinds = other.framebufferBinds;
+            uniformUpdates = other.uniformUpdates;
+            stateChanges = other.stateChanges;
+            resourceCalls = other.resourceCalls;
+            totalCalls = other.totalCalls;
+        }
+
+        @Override
+        public String toString() {
+            return "FrameStats[draws=" + drawCalls + " clears=" + clears +
+                    " programs=" + programBinds + " textures=" + textureBinds +
+                    " framebuffers=" + framebufferBinds + " uniforms=" + uniformUpdates +
+                    " state=" + stateChanges + " resources=" + resourceCalls +
+                    " total=" + totalCalls + "]";
+        }
+    }
+
+    private final FrameStats mCurrent = new FrameStats();
+    private final FrameStats mLast = new FrameStats();
+    private int mFrameCount;
+
+    private boolean mRecordCalls;
+    private final List<String> mCalls = new ArrayList<String>();
+
+    private final Map<String, Integer> mLocations = new HashMap<String, Integer>();
+    private final Map<Integer, Integer> mLocationCounts = new HashMap<Integer, Integer>();
+    private int mNextName = 1;
+    private int mLivePrograms;
+    private int mCurrentProgram;
+    private int mCurrentFramebuffer;
+    private int mActiveUnit;
+    // GL_TEXTURE_2D bindings by unit.
+    private final int[] mTextures2D = new int[32];
+    private final int[] mViewport = new int[4];
+
+    public RecordingGlBackend() {}
+
+    /**
+     * Enables or disables logging of individual calls, see {@link #getCalls()}.
+     */
+    public void setRecordCalls(boolean recordCalls) {
+        mRecordCalls = recordCalls;
+    }
+
+    /**
+     * Returns the calls logged since the last {@link #beginFrame()}, e.g.
+     * {@code "glBindTexture(3553, 4)"}.
+     */
+    public List<String> getCalls() {
+        return mCalls;
+    }
+
+    /**
+     * Returns the counts of the frame in progress.
+     */
+    public FrameStats getCurrentStats() {
+        return mCurrent;
+    }
+
+    /**
+     * Returns the counts of the last frame closed with {@link #endFrame()}.
+     */
+    public FrameStats getLastFrameStats() {
+        return mLast;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of programs loaded and not yet released.
+     */
+    public int getLiveProgramCount() {
+        return mLivePrograms;
+    }
+
+    public int getCurrentProgram() {
+        return mCurrentProgram;
+    }
+
+    public int getCurrentFramebuffer() {
+        return mCurrentFramebuffer;
+    }
+
+    private void record(String name, Object... args) {
+        mCurrent.totalCalls++;
+        if (!mRecordCalls) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(name).append('(');
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(args[i]);
+        }
+        mCalls.add(sb.append(')').toString());
+    }
+
+    private int location(int program, String name) {
+        String key = program + "/" + name;
+        Integer location = mLocations.get(key);
+        if (location == null) {
+            // Number them per program, like a driver would.
+            Integer count = mLocationCounts.get(program);
+            location = count == null ? 0 : count;
+            mLocationCounts.put(program, location + 1);
+            mLocations.put(key, location);
+        }
+        return location;
+    }
+
+    @Override
+    public void beginFrame() {
+        mCurrent.reset();
+        mCalls.clear();
+    }
+
+    @Override
+    public void endFrame() {
+        mLast.set(mCurrent);
+        mFrameCount++;
+    }
+
+    @Override
+    public void invalidate() {
+        record("invalidate");
+    }
+
+    @Override
+    public int loadProgram(String vertexSource, String fragmentSource) {
+        record("loadProgram");
+        mCurrent.resourceCalls++;
+        mLivePrograms++;
+        return mNextName++;
+    }
+
+    @Override
+    public void releaseProgram(int program) {
+        record("releaseProgram", program);
+        if (program != 0) {
+            mCurrent.resourceCalls++;
+            mLivePrograms--;
+        }
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        record("glUseProgram", program);
+        mCurrent.programBinds++;
+        mCurrentProgram = program;
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        record("glGetAttribLocation", program, name);
+        return location(program, name);
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        record("glGetUniformLocation", program, name);
+        return location(program, name);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        record("glUniform1i", location, x);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        record("glUniform1f", location, x);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glUniform2fv(int location, int count, FloatBuffer v) {
+        record("glUniform2fv", location, count);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glUniform2fv(int location, int count, float[] v, int offset) {
+        record("glUniform2fv", location, count);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glUniform3fv(int location, int count, FloatBuffer v) {
+        record("glUniform3fv", location, count);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, FloatBuffer v) {
+        record("glUniform4fv", location, count);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glUniform1fv(int location, int count, FloatBuffer v) {
+        record("glUniform1fv", location, count);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glUniformMatrix3fv(int location, int count, boolean transpose, float[] value,
+                                   int offset) {
+        record("glUniformMatrix3fv", location, count);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+                                   int offset) {
+        record("glUniformMatrix4fv", location, count);
+        mCurrent.uniformUpdates++;
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                                      int stride, Buffer ptr) {
+        record("glVertexAttribPointer", index, size);
+        mCurrent.stateChanges++;
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        record("glEnableVertexAttribArray", index);
+        mCurrent.stateChanges++;
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        record("glDisableVertexAttribArray", index);
+        mCurrent.stateChanges++;
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        record("glDrawArrays", mode, first, count);
+        mCurrent.drawCalls++;
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        record("glActiveTexture", texture - GLES20.GL_TEXTURE0);
+        mCurrent.stateChanges++;
+        mActiveUnit = texture - GLES20.GL_TEXTURE0;
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        record("glBindTexture", target, texture);
+        mCurrent.textureBinds++;
+        if (target == GLES20.GL_TEXTURE_2D) {
+            mTextures2D[mActiveUnit] = texture;
+        }
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        record("glGenTextures", n);
+        mCurrent.resourceCalls++;
+        for (int i = 0; i < n; i++) {
+            textures[offset + i] = mNextName++;
+        }
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        record("glDeleteTextures", n);
+        mCurrent.resourceCalls++;
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+                             int border, int format, int type, Buffer pixels) {
+        record("glTexImage2D", target, width, height);
+        mCurrent.resourceCalls++;
+    }
+
+    @Override
+    public void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x,
+                                    int y, int width, int height) {
+        record("glCopyTexSubImage2D", target, width, height);
+        mCurrent.resourceCalls++;
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        record("glTexParameterf", target, pname, param);
+        mCurrent.stateChanges++;
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        record("glTexParameteri", target, pname, param);
+        mCurrent.stateChanges++;
+    }
+
+    @Override
+    public int loadTexture(Bitmap bitmap, int usedTexId, boolean recycle) {
+        record("loadTexture", usedTexId);
+        mCurrent.resourceCalls++;
+        return usedTexId == OpenGlUtils.NO_TEXTURE ? mNextName++ : usedTexId;
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        record("glGenFramebuffers", n);
+        mCurrent.resourceCalls++;
+        for (int i = 0; i < n; i++) {
+            framebuffers[offset + i] = mNextName++;
+        }
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        record("glDeleteFramebuffers", n);
+        mCurrent.resourceCalls++;
+        for (int i = 0; i < n; i++) {
+            if (framebuffers[offset + i] == mCurrentFramebuffer) {
+                mCurrentFramebuffer = 0;
+            }
+        }
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        record("glBindFramebuffer", framebuffer);
+        mCurrent.framebufferBinds++;
+        mCurrentFramebuffer = framebuffer;
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+                                       int level) {
+        record("glFramebufferTexture2D", texture);
+        mCurrent.resourceCalls++;
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        record("glViewport", x, y, width, height);
+        mCurrent.stateChanges++;
+        mViewport[0] = x;
+        mViewport[1] = y;
+        mViewport[2] = width;
+        mViewport[3] = height;
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        record("glClearColor", red, green, blue, alpha);
+        mCurrent.stateChanges++;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        record("glClear", mask);
+        mCurrent.clears++;
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        record("glEnable", cap);
+        mCurrent.stateChanges++;
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        record("glDisable", cap);
+        mCurrent.stateChanges++;
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        record("glGetIntegerv", pname);
+        switch (pname) {
+            case GLES20.GL_FRAMEBUFFER_BINDING:
+                params[offset] = mCurrentFramebuffer;
+                break;
+            case GLES20.GL_CURRENT_PROGRAM:
+                params[offset] = mCurrentProgram;
+                break;
+            case GLES20.GL_TEXTURE_BINDING_2D:
+                params[offset] = mTextures2D[mActiveUnit];
+                break;
+            case GLES20.GL_VIEWPORT:
+                System.arraycopy(mViewport, 0, params, offset, 4);
+                break;
+            default:
+                params[offset] = 0;
+                break;
+        }
+    }
+
+    @Override
+    public int glGetError() {
+        record("glGetError");
+        return GLES20.GL_NO_ERROR;
+    }
+
+    @Override
+    public String glGetString(int name) {
+        record("glGetString", name);
+        // No extensions, so callers take their GLES 2 paths.
+        return name == GLES20.GL_EXTENSIONS ? "" : "RecordingGlBackend";
+    }
+
+    @Override
+    public void glBlitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0,
+                                  int dstY0, int dstX1, int dstY1, int mask, int filter) {
+        record("glBlitFramebuffer", srcX0, srcY0, srcX1, srcY1, dstX0, dstY0, dstX1, dstY1);
+        mCurrent.drawCalls++;
+    }
+
+    @Override
+    public void glGenQueries(int n, int[] ids, int offset) {
+        record("glGenQueries", n);
+        for (int i = 0; i < n; i++) {
+            ids[offset + i] = mNextName++;
+        }
+        mCurrent.resourceCalls++;
+    }
+
+    @Override
+    public void glDeleteQueries(int n, int[] ids, int offset) {
+        record("glDeleteQueries", n);
+        mCurrent.resourceCalls++;
+    }
+
+    @Override
+    public void glBeginQuery(int target, int id) {
+        record("glBeginQuery", target, id);
+    }
+
+    @Override
+    public void glEndQuery(int target) {
+        record("glEndQuery", target);
+    }
+
+    @Override
+    public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {
+        record("glGetQueryObjectuiv", id, pname);
+        // Never available; there is no GPU to measure.
+        params[offset] = 0;
+    }
+}
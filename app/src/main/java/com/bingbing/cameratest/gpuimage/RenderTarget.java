@@ -0,0 +1,87 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+/**
+ * A framebuffer with a texture as its color attachment, handed out by
+ * {@link RenderTargetPool}.
+ */
+public class RenderTarget {
+    private final int mFramebuffer;
+    private final int mTexture;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final int mType;
+
+    RenderTarget(int framebuffer, int texture, int width, int height, int format, int type) {
+        mFramebuffer = framebuffer;
+        mTexture = texture;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mType = type;
+    }
+
+    public int getFramebuffer() {
+        return mFramebuffer;
+    }
+
+    public int getTexture() {
+        return mTexture;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Returns true if this target can stand in for one of the given size and format.
+     */
+    boolean matches(int width, int height, int format, int type) {
+        return mWidth == width && mHeight == height && mFormat == format && mType == type;
+    }
+
+    /**
+     * Returns the approximate GPU memory held by the color attachment.
+     */
+    public long getByteSize() {
+        return (long) mWidth * mHeight * bytesPerPixel(mFormat, mType);
+    }
+
+    static int bytesPerPixel(int format, int type) {
+        if (type == GLES20.GL_UNSIGNED_SHORT_5_6_5 || type == GLES20.GL_UNSIGNED_SHORT_4_4_4_4
+                || type == GLES20.GL_UNSIGNED_SHORT_5_5_5_1) {
+            return 2;
+        }
+        switch (format) {
+            case GLES20.GL_RGB:
+                return 3;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+            case GLES20.GL_LUMINANCE:
+            case GLES20.GL_ALPHA:
+                return 1;
+            default:
+                return 4;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RenderTarget[fb=" + mFramebuffer + " tex=" + mTexture + " " + mWidth + "x" +
+                mHeight + "]";
+    }
+}
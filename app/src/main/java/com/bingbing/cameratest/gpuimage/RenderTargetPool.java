@@ -0,0 +1,182 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Pool of framebuffer-backed textures, keyed by size and format.
+ * <p>
+ * Groups, the beauty filter and the recording path acquire their intermediate targets here
+ * and hand them back instead of deleting them, so a resize, rotation or setFilter() that comes
+ * back to a size seen before reuses the old allocations rather than stalling the driver.
+ * Idle targets are kept in least-recently-released order and evicted once their total size
+ * exceeds the byte budget.  Targets in use do not count against the budget.
+ * <p>
+ * Must only be used from the thread that owns the GL context.
+ */
+public class RenderTargetPool {
+    private static final String TAG = "RenderTargetPool";
+    private static final boolean VERBOSE = false;
+
+    /** Room for two idle 1080p RGBA targets and then some. */
+    public static final long DEFAULT_BUDGET_BYTES = 24L * 1024 * 1024;
+
+    private static final RenderTargetPool sInstance = new RenderTargetPool();
+
+    // Most recently released last.
+    private final LinkedList<RenderTarget> mIdle = new LinkedList<RenderTarget>();
+    private long mIdleBytes;
+    private long mBudgetBytes = DEFAULT_BUDGET_BYTES;
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    public static RenderTargetPool getInstance() {
+        return sInstance;
+    }
+
+    private RenderTargetPool() {}
+
+    /**
+     * Sets the most memory idle targets may hold.  Excess targets are deleted the next time
+     * one is released, or right away with {@link #trim(GlBackend)}.
+     */
+    public void setBudget(long bytes) {
+        mBudgetBytes = bytes;
+    }
+
+    public long getBudget() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Returns the memory held by idle targets.
+     */
+    public long getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    public int getIdleCount() {
+        return mIdle.size();
+    }
+
+    public int getHitCount() {
+        return mHits;
+    }
+
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    public int getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * Acquires an RGBA8 target.
+     */
+    public RenderTarget acquire(GlBackend gl, int width, int height) {
+        return acquire(gl, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE);
+    }
+
+    /**
+     * Returns an idle target of the given size and format, or creates one.  The caller owns
+     * it until it is handed back with {@link #release(GlBackend, RenderTarget)}.  Its contents
+     * are undefined.  The framebuffer and 2D texture bindings are left as they were, so this
+     * can be called while drawing.
+     */
+    public RenderTarget acquire(GlBackend gl, int width, int height, int format, int type) {
+        // Prefer the most recently released match; it is the likeliest to still be resident.
+        for (Iterator<RenderTarget> it = mIdle.descendingIterator(); it.hasNext(); ) {
+            RenderTarget target = it.next();
+            if (target.matches(width, height, format, type)) {
+                it.remove();
+                mIdleBytes -= target.getByteSize();
+                mHits++;
+                return target;
+            }
+        }
+        mMisses++;
+        return create(gl, width, height, format, type);
+    }
+
+    /**
+     * Hands a target back for reuse.  Null is ignored.
+     */
+    public void release(GlBackend gl, RenderTarget target) {
+        if (target == null) {
+            return;
+        }
+        mIdle.addLast(target);
+        mIdleBytes += target.getByteSize();
+        trim(gl);
+    }
+
+    /**
+     * Deletes idle targets, oldest first, until they fit in the budget.
+     */
+    public void trim(GlBackend gl) {
+        while (mIdleBytes > mBudgetBytes && !mIdle.isEmpty()) {
+            RenderTarget target = mIdle.removeFirst();
+            mIdleBytes -= target.getByteSize();
+            mEvictions++;
+            if (VERBOSE) Log.d(TAG, "evicting " + target);
+            delete(gl, target);
+        }
+    }
+
+    /**
+     * Forgets every idle target without deleting it.  Call when the EGL context that owns them
+     * is going away; its objects go with it.
+     */
+    public void clear() {
+        Log.d(TAG, "clear: hits=" + mHits + " misses=" + mMisses + " evictions=" +
+                mEvictions);
+        mIdle.clear();
+        mIdleBytes = 0;
+    }
+
+    private static RenderTarget create(GlBackend gl, int width, int height, int format,
+                                       int type) {
+        // acquire() may be called in the middle of a draw; put the caller's bindings back.
+        int[] saved = new int[2];
+        gl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, saved, 0);
+        gl.glGetIntegerv(GLES20.GL_TEXTURE_BINDING_2D, saved, 1);
+        int[] framebuffer = new int[1];
+        int[] texture = new int[1];
+        gl.glGenFramebuffers(1, framebuffer, 0);
+        gl.glGenTextures(1, texture, 0);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, type, null);
+        gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+        gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture[0], 0);
+
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, saved[1]);
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, saved[0]);
+
+        RenderTarget target = new RenderTarget(framebuffer[0], texture[0], width, height,
+                format, type);
+        if (VERBOSE) Log.d(TAG, "created " + target);
+        return target;
+    }
+
+    private static void delete(GlBackend gl, RenderTarget target) {
+        gl.glDeleteTextures(1, new int[]{target.getTexture()}, 0);
+        gl.glDeleteFramebuffers(1, new int[]{target.getFramebuffer()}, 0);
+    }
+}
@@ -0,0 +1,86 @@
+package com.bingbing.cameratest.gpuimage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded single-producer, single-consumer queue that drops its oldest element instead of
+ * blocking or refusing when full.  Lock-free: neither side ever waits for the other.
+ * <p>
+ * Elements n live in slot n % capacity.  The producer alone moves the tail.  The head is
+ * moved by the consumer when it takes an element and by the producer when it drops one, so
+ * both claim it with a compare-and-set; whoever wins owns the element.  A slot is only
+ * reused once the head has passed it, so the consumer never sees a half-replaced slot: if
+ * its claim fails it reads again.
+ */
+public class SpscRing<T> {
+    private final AtomicReferenceArray<T> mSlots;
+    private final int mCapacity;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    public SpscRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("bad capacity " + capacity);
+        }
+        mCapacity = capacity;
+        mSlots = new AtomicReferenceArray<T>(capacity);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Adds an element.  Producer thread only.
+     *
+     * @return the oldest element if it had to be dropped to make room, else null
+     */
+    public T offer(T element) {
+        if (element == null) {
+            throw new NullPointerException("element");
+        }
+        long tail = mTail.get();
+        T dropped = null;
+        while (true) {
+            long head = mHead.get();
+            if (tail - head < mCapacity) {
+                break;
+            }
+            T oldest = mSlots.get((int) (head % mCapacity));
+            if (mHead.compareAndSet(head, head + 1)) {
+                dropped = oldest;
+                break;
+            }
+            // The consumer took it first; there's room now.
+        }
+        mSlots.set((int) (tail % mCapacity), element);
+        mTail.lazySet(tail + 1);
+        return dropped;
+    }
+
+    /**
+     * Takes the oldest element, or returns null if there is none.  Consumer thread only.
+     */
+    public T poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head == mTail.get()) {
+                return null;
+            }
+            T element = mSlots.get((int) (head % mCapacity));
+            if (mHead.compareAndSet(head, head + 1)) {
+                return element;
+            }
+            // The producer dropped it meanwhile; try the next one.
+        }
+    }
+
+    /**
+     * Returns the number of elements waiting.  Approximate while the other side is busy.
+     */
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+}
@@ -0,0 +1,568 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link GlBackend} decorator that keeps a shadow copy of the GL state and drops calls that
+ * would not change it.
+ * <p>
+ * Each filter pass binds its program, enables its attributes, binds its input on unit 0, sets
+ * its sampler uniform, draws, then disables and unbinds everything again; the next pass does
+ * the same.  This class removes the churn:
+ * <ul>
+ * <li>glUseProgram(), glBindFramebuffer() and glViewport() are skipped when unchanged.</li>
+ * <li>glUniform1i() values are remembered per program, so sampler uniforms are set once.</li>
+ * <li>Attribute enables, glActiveTexture() and glBindTexture() are deferred to the next draw
+ * or texture upload, and only the difference is sent.  A disable followed by an enable of the
+ * same array costs nothing.</li>
+ * <li>glGetIntegerv(GL_FRAMEBUFFER_BINDING) and glGetIntegerv(GL_TEXTURE_BINDING_2D) are
+ * answered from the shadow state.</li>
+ * </ul>
+ * The net number of calls saved in the last frame is available from
+ * {@link #getLastFrameElidedCalls()}.
+ * <p>
+ * Code that changes GL state without going through the backend must call
+ * {@link #invalidate()} afterwards.  The viewport is forgotten at every {@link #beginFrame()},
+ * since EGL surface setup sets it directly.  The framebuffer binding is kept across frames:
+ * eglMakeCurrent() leaves it alone, and reading it back each frame would stall threaded
+ * drivers.  Deferred attribute state is flushed at {@link #endFrame()}.
+ */
+public class StateCachingGlBackend implements GlBackend {
+    private static final int UNKNOWN = -1;
+
+    // GL_TEXTURE0 + 31 is the highest unit enum; attribute indices beyond MAX_ATTRIBS are
+    // passed straight through.
+    private static final int MAX_UNITS = 32;
+    private static final int MAX_ATTRIBS = 16;
+    private static final int MAX_CACHED_UNIFORM_LOCATION = 64;
+
+    private static final int TARGET_2D = 0;
+    private static final int TARGET_EXTERNAL = 1;
+    private static final int TARGET_COUNT = 2;
+
+    private final GlBackend mGl;
+
+    private int mProgram = UNKNOWN;
+    private UniformValues mProgramUniforms;
+    private final Map<Integer, UniformValues> mUniforms = new HashMap<Integer, UniformValues>();
+
+    private int mFramebuffer = UNKNOWN;
+    private final int[] mViewport = new int[4];
+    private boolean mViewportKnown;
+
+    // Requested and actual texture state.  Bindings are indexed [unit * TARGET_COUNT + target].
+    private int mActiveUnit;
+    private int mRealActiveUnit = UNKNOWN;
+    private final int[] mBindings = new int[MAX_UNITS * TARGET_COUNT];
+    private final int[] mRealBindings = new int[MAX_UNITS * TARGET_COUNT];
+
+    // Requested and actual attribute array enables, one bit per index.  Indices outside
+    // mKnownAttribs are in an unknown state.
+    private int mAttribs;
+    private int mRealAttribs;
+    private int mKnownAttribs;
+
+    private int mElidedCalls;
+    private int mLastFrameElidedCalls;
+
+    public StateCachingGlBackend(GlBackend gl) {
+        mGl = gl;
+        forgetTextures();
+    }
+
+    public GlBackend getDelegate() {
+        return mGl;
+    }
+
+    /**
+     * Returns the number of calls saved so far in the frame in progress: calls dropped or
+     * deferred, less the calls sent when deferred state was flushed.
+     */
+    public int getElidedCalls() {
+        return mElidedCalls;
+    }
+
+    /**
+     * Returns the number of calls saved in the last frame closed with {@link #endFrame()}.
+     */
+    public int getLastFrameElidedCalls() {
+        return mLastFrameElidedCalls;
+    }
+
+    @Override
+    public void beginFrame() {
+        mElidedCalls = 0;
+        mViewportKnown = false;
+        mGl.beginFrame();
+    }
+
+    @Override
+    public void endFrame() {
+        flushAttribs();
+        mLastFrameElidedCalls = mElidedCalls;
+        mGl.endFrame();
+    }
+
+    /**
+     * Forgets everything except uniform values, which live in the program objects and can
+     * only be changed through this class.
+     */
+    @Override
+    public void invalidate() {
+        flushAttribs();
+        mKnownAttribs = 0;
+        mProgram = UNKNOWN;
+        mProgramUniforms = null;
+        mFramebuffer = UNKNOWN;
+        mViewportKnown = false;
+        forgetTextures();
+        mGl.invalidate();
+    }
+
+    private void forgetTextures() {
+        mRealActiveUnit = UNKNOWN;
+        for (int i = 0; i < mRealBindings.length; i++) {
+            mRealBindings[i] = UNKNOWN;
+        }
+    }
+
+    private static int targetIndex(int target) {
+        switch (target) {
+            case GLES20.GL_TEXTURE_2D:
+                return TARGET_2D;
+            case GLES11Ext.GL_TEXTURE_EXTERNAL_OES:
+                return TARGET_EXTERNAL;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static int target(int targetIndex) {
+        return targetIndex == TARGET_2D ? GLES20.GL_TEXTURE_2D
+                : GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+    }
+
+    private void setRealActiveUnit(int unit) {
+        if (mRealActiveUnit != unit) {
+            mGl.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            mRealActiveUnit = unit;
+            mElidedCalls--;
+        }
+    }
+
+    /**
+     * Sends deferred texture bindings.  When the active unit matters to the next call, e.g.
+     * glTexImage2D(), it is brought up to date as well.
+     */
+    private void flushTextures(boolean activeUnitMatters) {
+        for (int i = 0; i < mBindings.length; i++) {
+            // As with attributes, an unknown binding only matters if we want something bound.
+            if (mBindings[i] != mRealBindings[i]
+                    && (mRealBindings[i] != UNKNOWN || mBindings[i] != 0)) {
+                setRealActiveUnit(i / TARGET_COUNT);
+                mGl.glBindTexture(target(i % TARGET_COUNT), mBindings[i]);
+                mRealBindings[i] = mBindings[i];
+                mElidedCalls--;
+            }
+        }
+        if (activeUnitMatters) {
+            setRealActiveUnit(mActiveUnit);
+        }
+    }
+
+    private void flushAttribs() {
+        // Unknown arrays that we want disabled are left alone; only ours need to be off.
+        int dirty = ((mAttribs ^ mRealAttribs) & mKnownAttribs) | (mAttribs & ~mKnownAttribs);
+        if (dirty == 0) {
+            return;
+        }
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            int bit = 1 << i;
+            if ((dirty & bit) == 0) {
+                continue;
+            }
+            if ((mAttribs & bit) != 0) {
+                mGl.glEnableVertexAttribArray(i);
+            } else {
+                mGl.glDisableVertexAttribArray(i);
+            }
+            mElidedCalls--;
+        }
+        mRealAttribs = (mRealAttribs & ~dirty) | (mAttribs & dirty);
+        mKnownAttribs |= dirty;
+    }
+
+    private void forgetUniforms(int program) {
+        mUniforms.remove(program);
+        if (program == mProgram) {
+            mProgramUniforms = null;
+        }
+    }
+
+    @Override
+    public int loadProgram(String vertexSource, String fragmentSource) {
+        int program = mGl.loadProgram(vertexSource, fragmentSource);
+        // The name may be a recycled one; whatever we knew about it is stale.
+        forgetUniforms(program);
+        return program;
+    }
+
+    @Override
+    public void releaseProgram(int program) {
+        forgetUniforms(program);
+        if (program == mProgram) {
+            // If the program is deleted it stays current, and a new program may get its name.
+            mProgram = UNKNOWN;
+        }
+        mGl.releaseProgram(program);
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        if (program == mProgram) {
+            mElidedCalls++;
+            return;
+        }
+        mGl.glUseProgram(program);
+        mProgram = program;
+        mProgramUniforms = mUniforms.get(program);
+        if (mProgramUniforms == null) {
+            mProgramUniforms = new UniformValues();
+            mUniforms.put(program, mProgramUniforms);
+        }
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        return mGl.glGetAttribLocation(program, name);
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        return mGl.glGetUniformLocation(program, name);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        if (mProgramUniforms != null && location >= 0
+                && location < MAX_CACHED_UNIFORM_LOCATION) {
+            if (mProgramUniforms.isSet(location, x)) {
+                mElidedCalls++;
+                return;
+            }
+            mProgramUniforms.set(location, x);
+        }
+        mGl.glUniform1i(location, x);
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        mGl.glUniform1f(location, x);
+    }
+
+    @Override
+    public void glUniform2fv(int location, int count, FloatBuffer v) {
+        mGl.glUniform2fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform2fv(int location, int count, float[] v, int offset) {
+        mGl.glUniform2fv(location, count, v, offset);
+    }
+
+    @Override
+    public void glUniform3fv(int location, int count, FloatBuffer v) {
+        mGl.glUniform3fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, FloatBuffer v) {
+        mGl.glUniform4fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform1fv(int location, int count, FloatBuffer v) {
+        mGl.glUniform1fv(location, count, v);
+    }
+
+    @Override
+    public void glUniformMatrix3fv(int location, int count, boolean transpose, float[] value,
+                                   int offset) {
+        mGl.glUniformMatrix3fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+                                   int offset) {
+        mGl.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                                      int stride, Buffer ptr) {
+        // Client-side arrays may have new contents; always send.
+        mGl.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        if (index < 0 || index >= MAX_ATTRIBS) {
+            mGl.glEnableVertexAttribArray(index);
+            return;
+        }
+        mAttribs |= 1 << index;
+        mElidedCalls++;
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        if (index < 0 || index >= MAX_ATTRIBS) {
+            mGl.glDisableVertexAttribArray(index);
+            return;
+        }
+        mAttribs &= ~(1 << index);
+        mElidedCalls++;
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        flushAttribs();
+        flushTextures(false);
+        mGl.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        int unit = texture - GLES20.GL_TEXTURE0;
+        if (unit < 0 || unit >= MAX_UNITS) {
+            // Not a unit; let the driver raise the error.
+            mGl.glActiveTexture(texture);
+            return;
+        }
+        mActiveUnit = unit;
+        mElidedCalls++;
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        int targetIndex = targetIndex(target);
+        if (targetIndex == UNKNOWN) {
+            setRealActiveUnit(mActiveUnit);
+            mGl.glBindTexture(target, texture);
+            return;
+        }
+        mBindings[mActiveUnit * TARGET_COUNT + targetIndex] = texture;
+        mElidedCalls++;
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        mGl.glGenTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        mGl.glDeleteTextures(n, textures, offset);
+        // Deleting a bound texture reverts the binding to 0.
+        for (int i = 0; i < n; i++) {
+            int texture = textures[offset + i];
+            for (int j = 0; j < mBindings.length; j++) {
+                if (mBindings[j] == texture) {
+                    mBindings[j] = 0;
+                }
+                if (mRealBindings[j] == texture) {
+                    mRealBindings[j] = 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+                             int border, int format, int type, Buffer pixels) {
+        flushTextures(true);
+        mGl.glTexImage2D(target, level, internalformat, width, height, border, format, type,
+                pixels);
+    }
+
+    @Override
+    public void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x,
+                                    int y, int width, int height) {
+        flushTextures(true);
+        mGl.glCopyTexSubImage2D(target, level, xoffset, yoffset, x, y, width, height);
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        flushTextures(true);
+        mGl.glTexParameterf(target, pname, param);
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        flushTextures(true);
+        mGl.glTexParameteri(target, pname, param);
+    }
+
+    @Override
+    public int loadTexture(Bitmap bitmap, int usedTexId, boolean recycle) {
+        flushTextures(true);
+        int texture = mGl.loadTexture(bitmap, usedTexId, recycle);
+        // The upload leaves the texture bound on the active unit.
+        int slot = mActiveUnit * TARGET_COUNT + TARGET_2D;
+        mBindings[slot] = texture;
+        mRealBindings[slot] = texture;
+        return texture;
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        mGl.glGenFramebuffers(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        mGl.glDeleteFramebuffers(n, framebuffers, offset);
+        for (int i = 0; i < n; i++) {
+            if (framebuffers[offset + i] == mFramebuffer) {
+                mFramebuffer = 0;
+            }
+        }
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        if (target == GLES20.GL_FRAMEBUFFER && framebuffer == mFramebuffer) {
+            mElidedCalls++;
+            return;
+        }
+        mGl.glBindFramebuffer(target, framebuffer);
+        mFramebuffer = target == GLES20.GL_FRAMEBUFFER ? framebuffer : UNKNOWN;
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+                                       int level) {
+        mGl.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        if (mViewportKnown && mViewport[0] == x && mViewport[1] == y
+                && mViewport[2] == width && mViewport[3] == height) {
+            mElidedCalls++;
+            return;
+        }
+        mGl.glViewport(x, y, width, height);
+        mViewport[0] = x;
+        mViewport[1] = y;
+        mViewport[2] = width;
+        mViewport[3] = height;
+        mViewportKnown = true;
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        mGl.glClearColor(red, green, blue, alpha);
+    }
+
+    @Override
+    public void glClear(int mask) {
+        mGl.glClear(mask);
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        mGl.glEnable(cap);
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        mGl.glDisable(cap);
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        if (pname == GLES20.GL_FRAMEBUFFER_BINDING && mFramebuffer != UNKNOWN) {
+            params[offset] = mFramebuffer;
+            mElidedCalls++;
+            return;
+        }
+        if (pname == GLES20.GL_TEXTURE_BINDING_2D) {
+            // Binds are deferred, so the driver may not have seen the latest yet.
+            params[offset] = mBindings[mActiveUnit * TARGET_COUNT + TARGET_2D];
+            mElidedCalls++;
+            return;
+        }
+        mGl.glGetIntegerv(pname, params, offset);
+        if (pname == GLES20.GL_FRAMEBUFFER_BINDING) {
+            mFramebuffer = params[offset];
+        }
+    }
+
+    @Override
+    public int glGetError() {
+        return mGl.glGetError();
+    }
+
+    @Override
+    public String glGetString(int name) {
+        return mGl.glGetString(name);
+    }
+
+    @Override
+    public void glBlitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0,
+                                  int dstY0, int dstX1, int dstY1, int mask, int filter) {
+        mGl.glBlitFramebuffer(srcX0, srcY0, srcX1, srcY1, dstX0, dstY0, dstX1, dstY1, mask,
+                filter);
+    }
+
+    @Override
+    public void glGenQueries(int n, int[] ids, int offset) {
+        mGl.glGenQueries(n, ids, offset);
+    }
+
+    @Override
+    public void glDeleteQueries(int n, int[] ids, int offset) {
+        mGl.glDeleteQueries(n, ids, offset);
+    }
+
+    @Override
+    public void glBeginQuery(int target, int id) {
+        mGl.glBeginQuery(target, id);
+    }
+
+    @Override
+    public void glEndQuery(int target) {
+        mGl.glEndQuery(target);
+    }
+
+    @Override
+    public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {
+        mGl.glGetQueryObjectuiv(id, pname, params, offset);
+    }
+
+    /**
+     * glUniform1i() values of one program, by location.
+     */
+    private static class UniformValues {
+        final int[] values = new int[MAX_CACHED_UNIFORM_LOCATION];
+        long known;
+
+        boolean isSet(int location, int value) {
+            return (known & (1L << location)) != 0 && values[location] == value;
+        }
+
+        void set(int location, int value) {
+            values[location] = value;
+            known |= 1L << location;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.bingbing.cameratest.gpuimage.reference;
+
+/**
+ * CPU reference of the skin-smoothing fragment shader used by MainActivity ("shader4").
+ * <p>
+ * Frames are tightly packed RGBA bytes, bottom row first, i.e. what glReadPixels() hands back.
+ * Texture fetches are emulated with GL_LINEAR filtering and GL_CLAMP_TO_EDGE wrapping, and
+ * the result is quantized the way GL writes to an RGBA8 target.  Like the shader, the tap
+ * offsets are expressed in texture space relative to a 1280x720 frame, so they scale with the
+ * frame size.
+ * <p>
+ * Pure Java so it can run on the desktop JVM (see the benchmarks module).  Not thread-safe;
+ * use one instance per thread.
+ */
+public class BeautyShaderReference {
+    // Blur taps, in units of "mul" texels of a 1280x720 frame.
+    private static final float[] TAPS_X = {
+            5.0f, 8.0f, 8.0f, 5.0f, -5.0f, -8.0f, -8.0f, -5.0f, 0.0f, -6.0f, 0.0f, 4.0f
+    };
+    private static final float[] TAPS_Y = {
+            -8.0f, -5.0f, 5.0f, 8.0f, 8.0f, 5.0f, -5.0f, -8.0f, -6.0f, 0.0f, 6.0f, -4.0f
+    };
+    private static final float MUL = 1.5f;
+    private static final float CENTER_WEIGHT = 20.0f;
+    private static final float WEIGHT_SUM = 32.0f;
+    private static final int HARD_LIGHT_ITERATIONS = 5;
+    private static final float SHARPEN = 1.065f;
+
+    private final int mWidth;
+    private final int mHeight;
+    // Tap offsets in pixels for this frame size.
+    private final float[] mOffsetX = new float[TAPS_X.length];
+    private final float[] mOffsetY = new float[TAPS_Y.length];
+
+    public BeautyShaderReference(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        for (int i = 0; i < TAPS_X.length; i++) {
+            mOffsetX[i] = TAPS_X[i] * MUL / 1280.0f * width;
+            mOffsetY[i] = TAPS_Y[i] * MUL / 720.0f * height;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Runs the filter over a whole frame.
+     *
+     * @param src RGBA input, width * height * 4 bytes.
+     * @param dst RGBA output, same size as src.  Must not be the same array.
+     */
+    public void process(byte[] src, byte[] dst) {
+        final int width = mWidth;
+        final int height = mHeight;
+        for (int y = 0; y < height; y++) {
+            int row = y * width * 4;
+            for (int x = 0; x < width; x++) {
+                int i = row + x * 4;
+                float r = (src[i] & 0xff) / 255.0f;
+                float g = (src[i + 1] & 0xff) / 255.0f;
+                float b = (src[i + 2] & 0xff) / 255.0f;
+
+                float sample = b * CENTER_WEIGHT;
+                for (int t = 0; t < mOffsetX.length; t++) {
+                    sample += sampleBlue(src, width, height, x + mOffsetX[t], y + mOffsetY[t]);
+                }
+                sample /= WEIGHT_SUM;
+
+                float dis = hardLight(b - sample + 0.5f, HARD_LIGHT_ITERATIONS);
+                composite(r, g, b, dis, SHARPEN, dst, i);
+            }
+        }
+    }
+
+    /**
+     * Bilinear fetch of the blue channel at pixel-space position (px, py), where integer
+     * coordinates land on texel centers.  Clamps to the edge like GL_CLAMP_TO_EDGE.
+     */
+    static float sampleBlue(byte[] src, int width, int height, float px, float py) {
+        if (px < 0) px = 0;
+        if (py < 0) py = 0;
+        if (px > width - 1) px = width - 1;
+        if (py > height - 1) py = height - 1;
+        int x0 = (int) px;
+        int y0 = (int) py;
+        int x1 = x0 < width - 1 ? x0 + 1 : x0;
+        int y1 = y0 < height - 1 ? y0 + 1 : y0;
+        float fx = px - x0;
+        float fy = py - y0;
+
+        float b00 = src[(y0 * width + x0) * 4 + 2] & 0xff;
+        float b10 = src[(y0 * width + x1) * 4 + 2] & 0xff;
+        float b01 = src[(y1 * width + x0) * 4 + 2] & 0xff;
+        float b11 = src[(y1 * width + x1) * 4 + 2] & 0xff;
+        float top = b00 + (b10 - b00) * fx;
+        float bottom = b01 + (b11 - b01) * fx;
+        return (top + (bottom - top) * fy) / 255.0f;
+    }
+
+    /**
+     * Applies the shader's hard-light curve to the high-pass value the given number of times.
+     */
+    static float hardLight(float dis, int iterations) {
+        for (int n = 0; n < iterations; n++) {
+            if (dis <= 0.5f) {
+                dis = dis * dis * 2.0f;
+            } else {
+                dis = 1.0f - ((1.0f - dis) * (1.0f - dis) * 2.0f);
+            }
+        }
+        return dis;
+    }
+
+    /**
+     * Sharpens against the high-pass mask, mixes by luma and applies the final contrast curve,
+     * then writes one RGBA pixel.
+     */
+    static void composite(float r, float g, float b, float dis, float aa, byte[] dst, int i) {
+        float sr = r * aa - dis * (aa - 1.0f);
+        float sg = g * aa - dis * (aa - 1.0f);
+        float sb = b * aa - dis * (aa - 1.0f);
+
+        float hue = sr * 0.299f + sg * 0.587f + sb * 0.114f;
+        hue = clamp(hue - 0.3f, 0.0f, 1.0f);
+        float p = (float) Math.pow(hue, 0.3);
+
+        float or = r * (1.0f - p) + sr * p;
+        float og = g * (1.0f - p) + sg * p;
+        float ob = b * (1.0f - p) + sb * p;
+
+        dst[i] = toUnorm8((or - 0.8f) * 1.06f + 0.8f);
+        dst[i + 1] = toUnorm8((og - 0.8f) * 1.06f + 0.8f);
+        dst[i + 2] = toUnorm8((ob - 0.8f) * 1.06f + 0.8f);
+        dst[i + 3] = (byte) 0xff;
+    }
+
+    static float clamp(float v, float min, float max) {
+        return v < min ? min : (v > max ? max : v);
+    }
+
+    /**
+     * Converts a float color component to an 8-bit normalized value, as GL does when writing
+     * to an RGBA8 color buffer.
+     */
+    static byte toUnorm8(float v) {
+        return (byte) Math.round(clamp(v, 0.0f, 1.0f) * 255.0f);
+    }
+}
@@ -0,0 +1,67 @@
+package com.bingbing.cameratest.gpuimage.reference;
+
+/**
+ * Error metrics between two RGBA frames of the same size.  Alpha is ignored.
+ */
+public final class FrameDiff {
+    private FrameDiff() {}     // do not instantiate
+
+    /**
+     * Returns the mean absolute difference per color component, in 8-bit units.
+     */
+    public static double meanAbsoluteError(byte[] a, byte[] b) {
+        checkSizes(a, b);
+        long sum = 0;
+        for (int i = 0; i < a.length; i += 4) {
+            sum += Math.abs((a[i] & 0xff) - (b[i] & 0xff));
+            sum += Math.abs((a[i + 1] & 0xff) - (b[i + 1] & 0xff));
+            sum += Math.abs((a[i + 2] & 0xff) - (b[i + 2] & 0xff));
+        }
+        return (double) sum / (a.length / 4 * 3);
+    }
+
+    /**
+     * Returns the largest difference of any color component, in 8-bit units.
+     */
+    public static int maxAbsoluteError(byte[] a, byte[] b) {
+        checkSizes(a, b);
+        int max = 0;
+        for (int i = 0; i < a.length; i++) {
+            if ((i & 3) == 3) {
+                continue;
+            }
+            int d = Math.abs((a[i] & 0xff) - (b[i] & 0xff));
+            if (d > max) {
+                max = d;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the peak signal-to-noise ratio in dB, or positive infinity for identical frames.
+     */
+    public static double psnr(byte[] a, byte[] b) {
+        checkSizes(a, b);
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            if ((i & 3) == 3) {
+                continue;
+            }
+            int d = (a[i] & 0xff) - (b[i] & 0xff);
+            sum += d * d;
+        }
+        double mse = sum / (a.length / 4 * 3);
+        if (mse == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return 10.0 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    private static void checkSizes(byte[] a, byte[] b) {
+        if (a.length != b.length || (a.length & 3) != 0) {
+            throw new IllegalArgumentException("frame size mismatch: " + a.length + " vs " +
+                    b.length);
+        }
+    }
+}
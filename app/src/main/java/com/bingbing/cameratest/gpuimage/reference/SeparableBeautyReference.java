@@ -0,0 +1,155 @@
+package com.bingbing.cameratest.gpuimage.reference;
+
+/**
+ * CPU reference of {@code GPUImageBeautyFilter}: a separable Gaussian blur of the blue channel
+ * at reduced resolution followed by the shader4 composite at full resolution.
+ * <p>
+ * Mirrors the GL pipeline pass for pass, including the RGBA8 quantization of the intermediate
+ * buffers and bilinear sampling of the low-resolution blur, so its output can be diffed
+ * against {@link BeautyShaderReference} (see {@link FrameDiff}).
+ * <p>
+ * Frames are tightly packed RGBA bytes.  Not thread-safe; use one instance per thread.
+ */
+public class SeparableBeautyReference {
+    // Must match BLUR_FRAGMENT_SHADER in GPUImageBeautyFilter.
+    private static final float[] WEIGHTS = {0.2042f, 0.1802f, 0.1238f, 0.0663f, 0.0276f};
+    private static final float CENTER_MIX = 0.625f;
+    private static final int HARD_LIGHT_ITERATIONS = 5;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBlurWidth;
+    private final int mBlurHeight;
+    private final float mStrength;
+    private final float mRadius;
+
+    // Intermediate buffers, blue channel only, already quantized to 8 bits.
+    private final float[] mHorizontal;
+    private final float[] mVertical;
+
+    public SeparableBeautyReference(int width, int height, int downsample, float strength,
+                                    float radius) {
+        mWidth = width;
+        mHeight = height;
+        mBlurWidth = Math.max(1, width / downsample);
+        mBlurHeight = Math.max(1, height / downsample);
+        mStrength = strength;
+        mRadius = radius;
+        mHorizontal = new float[mBlurWidth * mBlurHeight];
+        mVertical = new float[mBlurWidth * mBlurHeight];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Runs the three passes over a whole frame.
+     *
+     * @param src RGBA input, width * height * 4 bytes.
+     * @param dst RGBA output, same size as src.  Must not be the same array.
+     */
+    public void process(byte[] src, byte[] dst) {
+        horizontalPass(src);
+        verticalPass();
+        compositePass(src, dst);
+    }
+
+    /**
+     * Full-res input to low-res buffer, blurring along x.  Offsets are in full-res pixels.
+     */
+    private void horizontalPass(byte[] src) {
+        final float step = mRadius / 4.0f;
+        final float scaleX = (float) mWidth / mBlurWidth;
+        final float scaleY = (float) mHeight / mBlurHeight;
+        for (int ly = 0; ly < mBlurHeight; ly++) {
+            float py = (ly + 0.5f) * scaleY - 0.5f;
+            for (int lx = 0; lx < mBlurWidth; lx++) {
+                float px = (lx + 0.5f) * scaleX - 0.5f;
+                float sum = BeautyShaderReference.sampleBlue(src, mWidth, mHeight, px, py)
+                        * WEIGHTS[0];
+                for (int k = 1; k < WEIGHTS.length; k++) {
+                    sum += (BeautyShaderReference.sampleBlue(src, mWidth, mHeight,
+                            px + k * step, py)
+                            + BeautyShaderReference.sampleBlue(src, mWidth, mHeight,
+                            px - k * step, py)) * WEIGHTS[k];
+                }
+                mHorizontal[ly * mBlurWidth + lx] = quantize(sum);
+            }
+        }
+    }
+
+    /**
+     * Low-res to low-res, blurring along y.  The shader's step is in texture space, so it is
+     * scaled down to low-res pixels here.
+     */
+    private void verticalPass() {
+        final float step = mRadius / 4.0f * mBlurHeight / mHeight;
+        for (int ly = 0; ly < mBlurHeight; ly++) {
+            for (int lx = 0; lx < mBlurWidth; lx++) {
+                float sum = mHorizontal[ly * mBlurWidth + lx] * WEIGHTS[0];
+                for (int k = 1; k < WEIGHTS.length; k++) {
+                    sum += (samplePlane(mHorizontal, mBlurWidth, mBlurHeight, lx, ly + k * step)
+                            + samplePlane(mHorizontal, mBlurWidth, mBlurHeight, lx, ly - k * step))
+                            * WEIGHTS[k];
+                }
+                mVertical[ly * mBlurWidth + lx] = quantize(sum);
+            }
+        }
+    }
+
+    private void compositePass(byte[] src, byte[] dst) {
+        final float aa = 1.0f + 0.065f * mStrength;
+        final float scaleX = (float) mBlurWidth / mWidth;
+        final float scaleY = (float) mBlurHeight / mHeight;
+        for (int y = 0; y < mHeight; y++) {
+            float ly = (y + 0.5f) * scaleY - 0.5f;
+            int row = y * mWidth * 4;
+            for (int x = 0; x < mWidth; x++) {
+                int i = row + x * 4;
+                float r = (src[i] & 0xff) / 255.0f;
+                float g = (src[i + 1] & 0xff) / 255.0f;
+                float b = (src[i + 2] & 0xff) / 255.0f;
+
+                float blurred = samplePlane(mVertical, mBlurWidth, mBlurHeight,
+                        (x + 0.5f) * scaleX - 0.5f, ly);
+                float sample = blurred + (b - blurred) * CENTER_MIX;
+                float dis = BeautyShaderReference.hardLight(b - sample + 0.5f,
+                        HARD_LIGHT_ITERATIONS);
+                BeautyShaderReference.composite(r, g, b, dis, aa, dst, i);
+            }
+        }
+    }
+
+    /**
+     * Bilinear, clamp-to-edge fetch from a single-channel plane in pixel space.
+     */
+    private static float samplePlane(float[] plane, int width, int height, float px, float py) {
+        if (px < 0) px = 0;
+        if (py < 0) py = 0;
+        if (px > width - 1) px = width - 1;
+        if (py > height - 1) py = height - 1;
+        int x0 = (int) px;
+        int y0 = (int) py;
+        int x1 = x0 < width - 1 ? x0 + 1 : x0;
+        int y1 = y0 < height - 1 ? y0 + 1 : y0;
+        float fx = px - x0;
+        float fy = py - y0;
+
+        float v00 = plane[y0 * width + x0];
+        float v10 = plane[y0 * width + x1];
+        float v01 = plane[y1 * width + x0];
+        float v11 = plane[y1 * width + x1];
+        float top = v00 + (v10 - v00) * fx;
+        float bottom = v01 + (v11 - v01) * fx;
+        return top + (bottom - top) * fy;
+    }
+
+    private static float quantize(float v) {
+        return (BeautyShaderReference.toUnorm8(v) & 0xff) / 255.0f;
+    }
+}
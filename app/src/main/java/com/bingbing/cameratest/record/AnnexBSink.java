@@ -0,0 +1,98 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link MuxerSink} writing the video track as a raw Annex-B elementary stream (.h264 or
+ * .h265), the way the encoder produces it.  The parameter sets are repeated before every
+ * sync frame, so playback can start at any of them.  Other tracks are dropped.
+ */
+public class AnnexBSink implements MuxerSink {
+    private static final String TAG = "bingbing_annexb";
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private int mVideoTrack = -1;
+    private int mTrackCount;
+    // csd-0 and csd-1 back to back; already in Annex-B form.
+    private ByteBuffer mParameterSets;
+
+    public AnnexBSink(File outputFile) throws IOException {
+        mStream = new FileOutputStream(outputFile);
+        mChannel = mStream.getChannel();
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        int track = mTrackCount++;
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mVideoTrack < 0 && mime.startsWith("video/")) {
+            mVideoTrack = track;
+            ByteBuffer csd0 = format.getByteBuffer("csd-0");
+            ByteBuffer csd1 = format.getByteBuffer("csd-1");
+            int size = (csd0 != null ? csd0.remaining() : 0)
+                    + (csd1 != null ? csd1.remaining() : 0);
+            mParameterSets = ByteBuffer.allocateDirect(size);
+            if (csd0 != null) {
+                mParameterSets.put(csd0.duplicate());
+            }
+            if (csd1 != null) {
+                mParameterSets.put(csd1.duplicate());
+            }
+            mParameterSets.flip();
+        } else {
+            Log.w(TAG, "dropping " + mime + " track");
+        }
+        return track;
+    }
+
+    @Override
+    public void start() {
+        if (mVideoTrack < 0) {
+            Log.w(TAG, "no video track, the stream will be empty");
+        }
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (track != mVideoTrack) {
+            return;
+        }
+        try {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                writeFully(mParameterSets.duplicate());
+            }
+            writeFully(data.duplicate());
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    @Override
+    public void stop() {
+        // Nothing buffered.
+    }
+
+    @Override
+    public void release() {
+        try {
+            mStream.close();
+        } catch (IOException ioe) {
+            // nothing to do
+        }
+    }
+}
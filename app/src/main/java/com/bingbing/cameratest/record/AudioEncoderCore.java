@@ -0,0 +1,273 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes PCM from an {@link AudioSource} to AAC and writes it to a {@link SharedMuxer}, on
+ * a thread of its own so the render thread never waits on audio.
+ * <p>
+ * Presentation times are on the System.nanoTime() clock, like the Choreographer times
+ * the video frames carry, so the two tracks line up.  They are counted from the samples
+ * read, anchored to the time the first chunk was captured; if the source loses samples
+ * and falls behind the clock the anchor jumps forward.  They never go backwards.  See
+ * {@link AudioTimestamper}.
+ */
+public class AudioEncoderCore implements Runnable {
+    private static final String TAG = "bingbing_audio";
+    private static final boolean VERBOSE = false;
+
+    public static final String MIME_TYPE = "audio/mp4a-latm";   // AAC
+    public static final int DEFAULT_BIT_RATE = 128000;
+
+    private static final int TIMEOUT_USEC = 10000;
+    private static final int BYTES_PER_SAMPLE = 2;              // 16-bit PCM
+    // How long the end of stream may take to get through the encoder.
+    private static final long EOS_TIMEOUT_MS = 3000;
+
+    private final AudioSource mSource;
+    private final SharedMuxer mMuxer;
+    private final int mFrameSize;
+    private MediaCodec mEncoder;
+    private MediaCodec.BufferInfo mBufferInfo;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private int mTrackIndex = -1;
+
+    private Thread mThread;
+    private volatile boolean mStopRequested;
+    // Finished once the track is complete and everything released.
+    private final Completion mStopped = new Completion();
+
+    // Encoder thread only.
+    private final AudioTimestamper mTimestamper;
+
+
+    /**
+     * Configures the AAC encoder.  Nothing is captured until {@link #start()}.
+     */
+    public AudioEncoderCore(AudioSource source, SharedMuxer muxer) throws IOException {
+        this(source, muxer, DEFAULT_BIT_RATE);
+    }
+
+    public AudioEncoderCore(AudioSource source, SharedMuxer muxer, int bitRate)
+            throws IOException {
+        mSource = source;
+        mMuxer = muxer;
+        mFrameSize = BYTES_PER_SAMPLE * source.getChannelCount();
+        mTimestamper = new AudioTimestamper(source.getSampleRate());
+        mBufferInfo = new MediaCodec.BufferInfo();
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, source.getSampleRate(),
+                source.getChannelCount());
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        if (VERBOSE) Log.d(TAG, "format: " + format);
+
+        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder.start();
+    }
+
+    /**
+     * Starts capturing and encoding on a new thread.  Returns immediately.
+     */
+    public void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new Thread(this, "AudioEncoder");
+        mThread.start();
+    }
+
+    /**
+     * Asks the encoder thread to finish the track and shut down.  Returns immediately; the
+     * returned completion finishes once the track is done.  If the thread was never started
+     * everything is released here.
+     */
+    public Completion stop() {
+        mStopRequested = true;
+        if (mThread == null && !mStopped.isDone()) {
+            try {
+                release();
+            } finally {
+                mStopped.complete();
+            }
+        }
+        return mStopped;
+    }
+
+    @Override
+    public void run() {
+        try {
+            mSource.start();
+            while (!mStopRequested) {
+                if (!feedEncoder(false)) {
+                    break;
+                }
+                drainEncoder(false);
+            }
+            feedEncoder(true);
+            drainEncoder(true);
+        } catch (IOException ioe) {
+            Log.w(TAG, "audio capture failed, recording without sound", ioe);
+        } catch (RuntimeException re) {
+            Log.e(TAG, "audio encoder failed", re);
+            mStopped.fail(re);
+        } finally {
+            try {
+                release();
+            } finally {
+                mStopped.complete();
+            }
+        }
+        Log.d(TAG, "audio encoder thread exiting");
+    }
+
+    /**
+     * Reads one chunk from the source into an encoder input buffer, or queues the end of
+     * stream.  Returns false if the source failed.
+     */
+    private boolean feedEncoder(boolean endOfStream) {
+        int index;
+        long deadline = System.nanoTime() + EOS_TIMEOUT_MS * 1000000L;
+        while ((index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC)) < 0) {
+            if (!endOfStream) {
+                return true;    // encoder is full; drain it and come back
+            }
+            if (System.nanoTime() - deadline > 0) {
+                Log.w(TAG, "no room for the end of stream after " + EOS_TIMEOUT_MS + "ms");
+                return true;
+            }
+            // The end of stream must get in, so make room for it.
+            drainEncoder(false);
+        }
+        if (endOfStream) {
+            if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+            mEncoder.queueInputBuffer(index, 0, 0, nextPresentationTimeUs(0),
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+
+        ByteBuffer buffer = getInputBuffer(index);
+        buffer.clear();
+        int size = buffer.capacity() - buffer.capacity() % mFrameSize;
+        int read = mSource.read(buffer, size);
+        if (read < 0) {
+            Log.w(TAG, "audio source read failed: " + read);
+            mEncoder.queueInputBuffer(index, 0, 0, nextPresentationTimeUs(0), 0);
+            return false;
+        }
+        mEncoder.queueInputBuffer(index, 0, read, nextPresentationTimeUs(read), 0);
+        return true;
+    }
+
+    /**
+     * Returns the time of the first sample of a chunk of the given size that has just been
+     * read.
+     */
+    private long nextPresentationTimeUs(int bytes) {
+        return mTimestamper.next(bytes / mFrameSize, System.nanoTime() / 1000);
+    }
+
+    /**
+     * Moves all pending output to the muxer.  With endOfStream set, waits for the end of
+     * stream to come out.
+     */
+    private void drainEncoder(boolean endOfStream) {
+        long deadline = System.nanoTime() + EOS_TIMEOUT_MS * 1000000L;
+        while (true) {
+            int status = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    Log.w(TAG, "no end of stream after " + EOS_TIMEOUT_MS + "ms, giving up");
+                    return;
+                }
+            } else if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = null;
+            } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (mTrackIndex >= 0) {
+                    throw new RuntimeException("format changed twice");
+                }
+                MediaFormat format = mEncoder.getOutputFormat();
+                Log.d(TAG, "encoder output format changed: " + format);
+                mTrackIndex = mMuxer.addTrack(format);
+            } else if (status < 0) {
+                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + status);
+            } else {
+                ByteBuffer encodedData = getOutputBuffer(status);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Passed to the muxer with the output format.
+                    mBufferInfo.size = 0;
+                }
+                if (mBufferInfo.size != 0 && mTrackIndex >= 0) {
+                    encodedData.position(mBufferInfo.offset);
+                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                }
+                mEncoder.releaseOutputBuffer(status, false);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    if (VERBOSE) Log.d(TAG, "end of stream reached");
+                    return;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private ByteBuffer getInputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mEncoder.getInputBuffer(index);
+        }
+        if (mInputBuffers == null) {
+            mInputBuffers = mEncoder.getInputBuffers();
+        }
+        return mInputBuffers[index];
+    }
+
+    @SuppressWarnings("deprecation")
+    private ByteBuffer getOutputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mEncoder.getOutputBuffer(index);
+        }
+        if (mOutputBuffers == null) {
+            mOutputBuffers = mEncoder.getOutputBuffers();
+        }
+        return mOutputBuffers[index];
+    }
+
+    /**
+     * Releases the source, the encoder and our track of the muxer.  Encoder thread only,
+     * or if the thread was never started.  The track is let go of even if the source or the
+     * codec fails to stop, so the file still gets finished.
+     */
+    public void release() {
+        try {
+            mSource.stop();
+            mSource.release();
+        } finally {
+            if (mEncoder != null) {
+                try {
+                    mEncoder.stop();
+                } catch (IllegalStateException ise) {
+                    Log.w(TAG, "encoder failed to stop", ise);
+                } finally {
+                    mEncoder.release();
+                    mEncoder = null;
+                    // The last encoder to let go of the muxer finishes the file.
+                    mMuxer.releaseTrack(mTrackIndex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.bingbing.cameratest.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Supplies 16-bit PCM to {@link AudioEncoderCore}.  {@link MicrophoneSource} is the real
+ * thing; anything that can produce samples in real time (a tone generator, a file) can stand
+ * in for it.
+ * <p>
+ * All calls come from the audio encoder's thread.
+ */
+public interface AudioSource {
+
+    int getSampleRate();
+
+    int getChannelCount();
+
+    /**
+     * Starts producing samples.
+     *
+     * @throws IOException if the source can't be opened, e.g. the microphone is busy
+     */
+    void start() throws IOException;
+
+    /**
+     * Blocks until some samples are available and copies up to size bytes of them to the
+     * start of the buffer.  Samples are interleaved, native byte order.
+     *
+     * @return the number of bytes read, or a negative value on error
+     */
+    int read(ByteBuffer buffer, int size);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,61 @@
+package com.bingbing.cameratest.record;
+
+import android.util.Log;
+
+/**
+ * Gives chunks of PCM presentation times on the System.nanoTime() clock, in microseconds.
+ * <p>
+ * Times are counted from the samples read, anchored to the time the first chunk was
+ * captured, so they don't pick up the jitter of the reads.  If the source loses samples
+ * and falls more than {@link #MAX_DRIFT_USEC} behind the clock, the anchor jumps forward.
+ * Times never go backwards.
+ * <p>
+ * The clock is passed in, so this can be checked without a device or a wait.  Not
+ * thread-safe.
+ */
+public class AudioTimestamper {
+    private static final String TAG = "bingbing_audio";
+
+    /** How far the sample clock may lag the wall clock before it is pulled forward. */
+    public static final long MAX_DRIFT_USEC = 100000;
+
+    private final int mSampleRate;
+    private long mAnchorUsec = -1;
+    private long mFramesSinceAnchor;
+    private long mLastPtsUsec = -1;
+
+    public AudioTimestamper(int sampleRate) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("bad sample rate " + sampleRate);
+        }
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Returns the time of the first sample of a chunk that has just been read.
+     *
+     * @param frames  samples per channel in the chunk; 0 for an empty or end of stream buffer
+     * @param nowUsec the time the read returned
+     */
+    public long next(long frames, long nowUsec) {
+        // read() returns once the chunk has been captured, so its first sample is a chunk
+        // duration old.
+        long capturedUsec = nowUsec - frames * 1000000 / mSampleRate;
+
+        long ptsUsec = mAnchorUsec + mFramesSinceAnchor * 1000000 / mSampleRate;
+        if (mAnchorUsec < 0 || capturedUsec - ptsUsec > MAX_DRIFT_USEC) {
+            if (mAnchorUsec >= 0) {
+                Log.w(TAG, "audio fell " + (capturedUsec - ptsUsec) / 1000 + "ms behind");
+            }
+            mAnchorUsec = capturedUsec;
+            mFramesSinceAnchor = 0;
+            ptsUsec = capturedUsec;
+        }
+        if (ptsUsec <= mLastPtsUsec) {
+            ptsUsec = mLastPtsUsec + 1;
+        }
+        mFramesSinceAnchor += frames;
+        mLastPtsUsec = ptsUsec;
+        return ptsUsec;
+    }
+}
@@ -0,0 +1,117 @@
+package com.bingbing.cameratest.record;
+
+import android.util.Log;
+
+/**
+ * Picks the encoder bitrate from what the encoder actually produces.
+ * <p>
+ * Once per second of presentation time it compares the bitrate the encoder produced with the
+ * one it was given:
+ * <ul>
+ * <li>If the output fell behind, the encoder or muxer is not keeping up, so the bitrate
+ * drops by a quarter.</li>
+ * <li>If the encoder used nearly all of its budget, the scene is busy and motion is being
+ * smeared, so the bitrate goes up.</li>
+ * <li>If it used less than half, the scene is static, so the bitrate comes down to what was
+ * used plus headroom.  Encoders that don't undershoot on their own (CBR) stop wasting storage
+ * on padding.</li>
+ * </ul>
+ * Changes are clamped to [min, max] and smaller than 10% are skipped.  Under CBR the
+ * produced rate always tracks the target, so only the backlog rule applies there.
+ * <p>
+ * Not thread-safe; call from the thread that drains the encoder.
+ */
+public class BitrateController {
+    private static final String TAG = "bingbing_bitrate";
+    private static final boolean VERBOSE = false;
+
+    private static final long WINDOW_USEC = 1000000;
+    // Frames behind, see onDrain(), that count as a backlog.
+    private static final int MAX_DRAIN_BACKLOG = 4;
+    private static final float BACKLOG_DECREASE = 0.75f;
+    private static final float SATURATED = 0.9f;
+    private static final float INCREASE = 1.15f;
+    private static final float IDLE = 0.5f;
+    private static final float IDLE_HEADROOM = 1.5f;
+    private static final float MIN_CHANGE = 0.1f;
+
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private final boolean mSizeDriven;
+    private int mBitRate;
+
+    private long mWindowStartUsec = -1;
+    private long mWindowBytes;
+    private int mWindowMaxBacklog;
+
+    /**
+     * @param sizeDriven false if the encoder always produces the target rate (CBR), so only
+     *                   backlog is used.
+     */
+    public BitrateController(int initialBitRate, int minBitRate, int maxBitRate,
+                             boolean sizeDriven) {
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mSizeDriven = sizeDriven;
+        mBitRate = clamp(initialBitRate);
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Reports how far behind the output is: how many output buffers one pass of the drain
+     * loop found ready or, when the codec pushes output, how many frame intervals an output
+     * buffer trails the newest input frame.
+     */
+    public void onDrain(int buffers) {
+        mWindowMaxBacklog = Math.max(mWindowMaxBacklog, buffers);
+    }
+
+    /**
+     * Reports an encoded frame.
+     *
+     * @return the new bitrate to apply, or 0 to keep the current one
+     */
+    public int onFrameEncoded(int bytes, long presentationTimeUsec) {
+        if (mWindowStartUsec < 0) {
+            mWindowStartUsec = presentationTimeUsec;
+        }
+        long elapsed = presentationTimeUsec - mWindowStartUsec;
+        if (elapsed < WINDOW_USEC) {
+            mWindowBytes += bytes;
+            return 0;
+        }
+
+        // The frame that closes the window starts the next one.
+        long produced = mWindowBytes * 8 * 1000000 / elapsed;
+        int backlog = mWindowMaxBacklog;
+        mWindowStartUsec = presentationTimeUsec;
+        mWindowBytes = bytes;
+        mWindowMaxBacklog = 0;
+
+        long target = mBitRate;
+        if (backlog > MAX_DRAIN_BACKLOG) {
+            target = (long) (mBitRate * BACKLOG_DECREASE);
+        } else if (mSizeDriven && produced >= mBitRate * SATURATED) {
+            target = (long) (mBitRate * INCREASE);
+        } else if (mSizeDriven && produced < mBitRate * IDLE) {
+            target = (long) (produced * IDLE_HEADROOM);
+        }
+        int next = clamp(target);
+        if (VERBOSE) {
+            Log.d(TAG, "produced " + produced + "bps of " + mBitRate + ", backlog " + backlog +
+                    " -> " + next);
+        }
+        if (Math.abs(next - mBitRate) < mBitRate * MIN_CHANGE) {
+            return 0;
+        }
+        mBitRate = next;
+        return next;
+    }
+
+    private int clamp(long bitRate) {
+        return (int) Math.max(mMinBitRate, Math.min(mMaxBitRate, bitRate));
+    }
+}
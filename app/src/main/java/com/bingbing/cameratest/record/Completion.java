@@ -0,0 +1,120 @@
+package com.bingbing.cameratest.record;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells when an asynchronous recording operation, such as starting or stopping an encoder,
+ * has finished, and whether it worked.
+ * <p>
+ * A completion finishes once, with {@link #complete()} or {@link #fail(Throwable)}; later
+ * calls are ignored.  Waiting is always bounded, and listeners let threads that must never
+ * block, like the render thread, carry on when it is done instead.
+ */
+public class Completion {
+    /**
+     * Called once the operation is done, on the thread that finished it, or right away on
+     * the caller's thread if it already was.  Must not block.
+     */
+    public interface Listener {
+        void onDone(Completion completion);
+    }
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final List<Listener> mListeners = new ArrayList<Listener>();
+    private volatile Throwable mError;
+    private boolean mFinished;      // guarded by mListeners
+
+
+    /**
+     * Returns a completion that has already succeeded.
+     */
+    public static Completion completed() {
+        Completion completion = new Completion();
+        completion.complete();
+        return completion;
+    }
+
+    public void complete() {
+        finish(null);
+    }
+
+    public void fail(Throwable error) {
+        if (error == null) {
+            throw new NullPointerException("error");
+        }
+        finish(error);
+    }
+
+    /**
+     * Finishes this completion the way another one finishes.
+     */
+    public void completeWith(Completion other) {
+        other.addListener(new Listener() {
+            @Override
+            public void onDone(Completion completion) {
+                finish(completion.getError());
+            }
+        });
+    }
+
+    private void finish(Throwable error) {
+        List<Listener> listeners;
+        synchronized (mListeners) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            mError = error;
+            listeners = new ArrayList<Listener>(mListeners);
+            mListeners.clear();
+        }
+        mDone.countDown();
+        for (Listener listener : listeners) {
+            listener.onDone(this);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            if (!mFinished) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onDone(this);
+    }
+
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    /**
+     * Returns true if the operation is done and worked.
+     */
+    public boolean isSuccessful() {
+        return isDone() && mError == null;
+    }
+
+    /**
+     * Returns why the operation failed, or null.
+     */
+    public Throwable getError() {
+        return mError;
+    }
+
+    /**
+     * Waits up to the given time for the operation to finish.  Returns false on timeout;
+     * if interrupted, returns early with the interrupt flag set again.
+     */
+    public boolean await(long timeout, TimeUnit unit) {
+        try {
+            return mDone.await(timeout, unit);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return isDone();
+        }
+    }
+}
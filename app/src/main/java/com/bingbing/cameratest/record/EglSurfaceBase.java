@@ -28,6 +28,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.Executor;
 
 /**
  * Common base class for EGL surfaces.
@@ -43,6 +44,8 @@ public class EglSurfaceBase {
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
     private int mWidth = -1;
     private int mHeight = -1;
+    // Reused by saveFrame(File).
+    private ByteBuffer mPixelBuffer;
 
     protected EglSurfaceBase(EglCore eglCore) {
         mEglCore = eglCore;
@@ -164,34 +167,62 @@ public class EglSurfaceBase {
         // constructor that takes an int[] wants little-endian ARGB (blue/red swapped), the
         // Bitmap "copy pixels" method wants the same format GL provides.
         //
-        // Ideally we'd have some way to re-use the ByteBuffer, especially if we're calling
-        // here often.
-        //
         // Making this even more interesting is the upside-down nature of GL, which means
         // our output will look upside down relative to what appears on screen if the
         // typical GL conventions are used.
 
-        String filename = file.toString();
-
         int width = getWidth();
         int height = getHeight();
-        ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int size = width * height * 4;
+        if (mPixelBuffer == null || mPixelBuffer.capacity() != size) {
+            mPixelBuffer = ByteBuffer.allocateDirect(size);
+            mPixelBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buf = mPixelBuffer;
+        buf.clear();
         GLES20.glReadPixels(0, 0, width, height,
                 GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
         GlUtil.checkGlError("glReadPixels");
         buf.rewind();
 
+        writePng(buf, width, height, file);
+    }
+
+    /**
+     * Saves the EGL surface to a file without waiting for the GPU or the PNG encoder: the
+     * pixels are read back through the reader and written out on the executor.  Write
+     * errors are logged.
+     * <p>
+     * Expects that this object's EGL surface is current.
+     */
+    public void saveFrame(final File file, FrameReader reader, Executor executor) {
+        if (!mEglCore.isCurrent(mEGLSurface)) {
+            throw new RuntimeException("Expected EGL context/surface is not current");
+        }
+        reader.read(getWidth(), getHeight(), executor, new FrameReader.Callback() {
+            @Override
+            public void onFrameRead(ByteBuffer pixels, int width, int height) {
+                try {
+                    writePng(pixels, width, height, file);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "failed to save frame as '" + file + "'", ioe);
+                }
+            }
+        });
+    }
+
+    private static void writePng(ByteBuffer pixels, int width, int height, File file)
+            throws IOException {
         BufferedOutputStream bos = null;
         try {
-            bos = new BufferedOutputStream(new FileOutputStream(filename));
+            bos = new BufferedOutputStream(new FileOutputStream(file));
             Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            bmp.copyPixelsFromBuffer(buf);
+            bmp.copyPixelsFromBuffer(pixels);
             bmp.compress(Bitmap.CompressFormat.PNG, 90, bos);
             bmp.recycle();
         } finally {
             if (bos != null) bos.close();
         }
-        Log.d(TAG, "Saved " + width + "x" + height + " frame as '" + filename + "'");
+        Log.d(TAG, "Saved " + width + "x" + height + " frame as '" + file + "'");
     }
 }
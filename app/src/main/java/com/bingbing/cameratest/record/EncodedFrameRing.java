@@ -0,0 +1,315 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent encoded video frames, so the last N seconds can be saved to a file
+ * after the fact without re-encoding.
+ * <p>
+ * Frame data lives in one direct buffer allocated up front; frames are copied in back to
+ * back and wrap to the start when they don't fit at the end.  When room is needed the
+ * oldest frames are dropped a whole GOP at a time, so the buffer always starts on a sync
+ * frame and anything saved from it is decodable.  Memory use is fixed at construction.
+ * <p>
+ * Frames are added from the encoder's output thread; {@link #save(File, long)} may run
+ * concurrently on another thread.  It copies one frame at a time under the lock, so the
+ * encoder never waits for the file I/O.
+ */
+public class EncodedFrameRing {
+    private static final String TAG = "bingbing_ring";
+    private static final boolean VERBOSE = false;
+
+    private final long mMaxDurationUsec;
+    private final ByteBuffer mData;
+    private final int mSlots;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mPtsUsec;
+
+    private MediaFormat mFormat;
+    // Frames [mFirstSeq, mNextSeq) are held, frame n in slot n % mSlots.
+    private long mFirstSeq;
+    private long mNextSeq;
+    private int mTail;              // where the next frame's data goes
+    private int mDroppedFrames;
+
+    // Reused by save() to take frames out of the ring.
+    private final Object mSaveLock = new Object();
+    private ByteBuffer mScratch;
+    private final MediaCodec.BufferInfo mScratchInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param maxDurationUsec how much to keep; older whole GOPs are dropped
+     * @param dataBytes       memory for frame data, e.g. bitrate / 8 * seconds plus headroom
+     * @param maxFrames       number of frames the buffer can index, e.g. fps * seconds
+     */
+    public EncodedFrameRing(long maxDurationUsec, int dataBytes, int maxFrames) {
+        if (maxDurationUsec <= 0 || dataBytes <= 0 || maxFrames <= 0) {
+            throw new IllegalArgumentException("bad ring size " + maxDurationUsec + "us " +
+                    dataBytes + " bytes " + maxFrames + " frames");
+        }
+        mMaxDurationUsec = maxDurationUsec;
+        mData = ByteBuffer.allocateDirect(dataBytes);
+        mSlots = maxFrames;
+        mOffsets = new int[maxFrames];
+        mSizes = new int[maxFrames];
+        mFlags = new int[maxFrames];
+        mPtsUsec = new long[maxFrames];
+    }
+
+    /**
+     * Sizes a ring for the given encoder settings: data for the bitrate with 50% headroom,
+     * and slots for twice the frame rate.
+     */
+    public static EncodedFrameRing create(VideoEncoderConfig config, int seconds) {
+        long bitRate = Math.max(config.getBitRate(), config.getMaxBitRate());
+        long bytes = bitRate / 8 * seconds * 3 / 2;
+        return new EncodedFrameRing(seconds * 1000000L, (int) Math.min(bytes, Integer.MAX_VALUE),
+                config.getFrameRate() * seconds * 2);
+    }
+
+    /**
+     * Sets the format of the frames that follow, from the encoder's output format change.
+     * Frames from a previous format are dropped.
+     */
+    public synchronized void setFormat(MediaFormat format) {
+        mFormat = format;
+        clearLocked();
+    }
+
+    public synchronized void clear() {
+        clearLocked();
+    }
+
+    private void clearLocked() {
+        mFirstSeq = mNextSeq;
+        mTail = 0;
+    }
+
+    /**
+     * Copies an encoded frame in, dropping old frames as needed.  The buffer's position and
+     * limit must frame the data.
+     */
+    public synchronized void add(ByteBuffer data, MediaCodec.BufferInfo info) {
+        int size = data.remaining();
+        if (size == 0) {
+            return;
+        }
+        boolean sync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (isEmpty() && !sync) {
+            // Can't decode from here; wait for the next sync frame.
+            mDroppedFrames++;
+            return;
+        }
+        if (size > mData.capacity()) {
+            Log.w(TAG, "frame of " + size + " bytes doesn't fit, dropping everything");
+            clearLocked();
+            mDroppedFrames++;
+            return;
+        }
+
+        int offset;
+        while ((offset = findRoom(size)) < 0 || mNextSeq - mFirstSeq == mSlots) {
+            dropOldestGop();
+        }
+        if (isEmpty() && !sync) {
+            // Made room by dropping the GOP this frame belongs to.
+            mDroppedFrames++;
+            return;
+        }
+
+        ByteBuffer dst = mData.duplicate();
+        dst.clear();
+        dst.position(offset);
+        dst.put(data);
+        int slot = (int) (mNextSeq % mSlots);
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mFlags[slot] = info.flags;
+        mPtsUsec[slot] = info.presentationTimeUs;
+        mNextSeq++;
+        mTail = offset + size;
+
+        // Trim to the duration, but only while what's left still covers it.
+        long newest = info.presentationTimeUs;
+        long nextSync;
+        while ((nextSync = findSecondGop()) >= 0
+                && newest - mPtsUsec[(int) (nextSync % mSlots)] >= mMaxDurationUsec) {
+            dropOldestGop();
+        }
+    }
+
+    private boolean isEmpty() {
+        return mFirstSeq == mNextSeq;
+    }
+
+    /**
+     * Returns where a frame of the given size can go without overwriting held frames, or -1.
+     */
+    private int findRoom(int size) {
+        int capacity = mData.capacity();
+        if (isEmpty()) {
+            mTail = 0;
+            return 0;
+        }
+        int head = mOffsets[(int) (mFirstSeq % mSlots)];
+        if (mTail > head) {
+            // held data is [head, tail): free at the end, then at the start
+            if (mTail + size <= capacity) {
+                return mTail;
+            }
+            return size <= head ? 0 : -1;
+        }
+        // wrapped; held data is [head, capacity) and [0, tail)
+        return mTail + size <= head ? mTail : -1;
+    }
+
+    /**
+     * Returns the sequence number of the first sync frame after the oldest, or -1.
+     */
+    private long findSecondGop() {
+        for (long seq = mFirstSeq + 1; seq < mNextSeq; seq++) {
+            if ((mFlags[(int) (seq % mSlots)] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                return seq;
+            }
+        }
+        return -1;
+    }
+
+    private void dropOldestGop() {
+        long next = findSecondGop();
+        if (next < 0) {
+            next = mNextSeq;
+        }
+        if (VERBOSE) Log.d(TAG, "dropping " + (next - mFirstSeq) + " frames");
+        mFirstSeq = next;
+        if (isEmpty()) {
+            mTail = 0;
+        }
+    }
+
+    /**
+     * Returns the time span held, in microseconds.
+     */
+    public synchronized long getDurationUsec() {
+        if (isEmpty()) {
+            return 0;
+        }
+        return mPtsUsec[(int) ((mNextSeq - 1) % mSlots)] - mPtsUsec[(int) (mFirstSeq % mSlots)];
+    }
+
+    public synchronized int getFrameCount() {
+        return (int) (mNextSeq - mFirstSeq);
+    }
+
+    /**
+     * Returns the number of frames that could not be kept, e.g. because they preceded the
+     * first sync frame.
+     */
+    public synchronized int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Writes the held frames covering the last durationUsec, starting at a sync frame, to
+     * an .mp4 file.  Frames added while saving are not included.  Blocks for the file I/O;
+     * don't call on the render or encoder thread.
+     *
+     * @return the duration written, in microseconds
+     */
+    public long save(File outputFile, long durationUsec) throws IOException {
+        return save(new MediaMuxerSink(outputFile), durationUsec);
+    }
+
+    /**
+     * Like {@link #save(File, long)}, to any sink.  The sink is released.
+     *
+     * @throws IOException if nothing is buffered, or the encoder overwrote the frames before
+     *                     the first could be written
+     */
+    public long save(MuxerSink sink, long durationUsec) throws IOException {
+        MediaFormat format;
+        long seq;
+        long endSeq;
+        synchronized (this) {
+            if (mFormat == null || isEmpty()) {
+                sink.release();
+                throw new IOException("nothing buffered");
+            }
+            format = mFormat;
+            endSeq = mNextSeq;
+            long cutoff = mPtsUsec[(int) ((endSeq - 1) % mSlots)] - durationUsec;
+            // Latest sync frame at or before the cutoff, so we get at least durationUsec.
+            seq = mFirstSeq;
+            for (long s = mFirstSeq; s < endSeq; s++) {
+                int slot = (int) (s % mSlots);
+                if (mPtsUsec[slot] > cutoff) {
+                    break;
+                }
+                if ((mFlags[slot] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                    seq = s;
+                }
+            }
+        }
+
+        synchronized (mSaveLock) {
+            MuxerSink muxer = sink;
+            long firstPts = -1;
+            long lastPts = -1;
+            try {
+                int track = muxer.addTrack(format);
+                muxer.start();
+                for (; seq < endSeq; seq++) {
+                    if (!copyFrame(seq)) {
+                        // The encoder overtook us; the rest can't be decoded.
+                        Log.w(TAG, "frames overwritten while saving, file truncated");
+                        break;
+                    }
+                    muxer.writeSampleData(track, mScratch, mScratchInfo);
+                    if (firstPts < 0) {
+                        firstPts = mScratchInfo.presentationTimeUs;
+                    }
+                    lastPts = mScratchInfo.presentationTimeUs;
+                }
+                if (firstPts < 0) {
+                    // MediaMuxer refuses to stop an empty track, and there's nothing to keep.
+                    throw new IOException("frames overwritten before any were saved");
+                }
+                muxer.stop();
+            } finally {
+                muxer.release();
+            }
+            Log.d(TAG, "saved " + (lastPts - firstPts) / 1000 + "ms");
+            return lastPts - firstPts;
+        }
+    }
+
+    /**
+     * Copies a frame into mScratch and mScratchInfo.  Returns false if it has been dropped.
+     */
+    private synchronized boolean copyFrame(long seq) {
+        if (seq < mFirstSeq) {
+            return false;
+        }
+        int slot = (int) (seq % mSlots);
+        int size = mSizes[slot];
+        if (mScratch == null || mScratch.capacity() < size) {
+            mScratch = ByteBuffer.allocateDirect(Math.max(size, 64 * 1024));
+        }
+        ByteBuffer src = mData.duplicate();
+        src.limit(mOffsets[slot] + size);
+        src.position(mOffsets[slot]);
+        mScratch.clear();
+        mScratch.put(src);
+        mScratch.flip();
+        mScratchInfo.set(0, size, mPtsUsec[slot], mFlags[slot]);
+        return true;
+    }
+}
@@ -0,0 +1,78 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of MediaCodec that {@link VideoEncoderCore} uses, so that a fake codec can drive
+ * the drain logic on a desktop JVM.  {@link MediaCodecEncoder} is the real thing.
+ * <p>
+ * A codec works in one of two modes, chosen before configure(): synchronous, where the
+ * owner polls dequeueOutputBuffer(), or asynchronous, where output is pushed to a
+ * {@link Callback}.
+ */
+public interface EncoderCodec {
+
+    /**
+     * Receives output in asynchronous mode.  Calls arrive on a single thread chosen by the
+     * codec.
+     */
+    interface Callback {
+        /**
+         * An output buffer is ready.  Hand it back with releaseOutputBuffer().
+         */
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * Returns the capabilities for the type, or null if unknown.
+     */
+    MediaCodecInfo.CodecCapabilities getCapabilities(String mimeType);
+
+    /**
+     * Switches to asynchronous mode.  Must be called before configure().
+     */
+    void setCallback(Callback callback);
+
+    void configure(MediaFormat format);
+
+    Surface createInputSurface();
+
+    void start();
+
+    /**
+     * Synchronous mode only.  Returns a buffer index or one of the MediaCodec.INFO_ codes;
+     * INFO_OUTPUT_BUFFERS_CHANGED is handled by the codec and never returned.
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index);
+
+    void signalEndOfInputStream();
+
+    /**
+     * Changes the bitrate of a running video encoder.
+     */
+    void setVideoBitRate(int bitRate);
+
+    /**
+     * Asks a running video encoder to make the next frame a sync frame.
+     */
+    void requestSyncFrame();
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,119 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MuxerSink} writing a fragmented .mp4 file with {@link FragmentedMp4Writer}.  The
+ * file can be played while it is being written.  H.264 and AAC only.
+ */
+public class FragmentedMp4Sink implements MuxerSink {
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    private final FileOutputStream mStream;
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4Sink(File outputFile) throws IOException {
+        mStream = new FileOutputStream(outputFile);
+        mWriter = new FragmentedMp4Writer(mStream.getChannel());
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if ("video/avc".equals(mime)) {
+            ByteBuffer csd0 = format.getByteBuffer("csd-0");
+            ByteBuffer csd1 = format.getByteBuffer("csd-1");
+            return mWriter.addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    findNal(NAL_SPS, csd0, csd1), findNal(NAL_PPS, csd0, csd1));
+        } else if (AudioEncoderCore.MIME_TYPE.equals(mime)) {
+            return mWriter.addAacTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    toArray(format.getByteBuffer("csd-0")));
+        }
+        throw new IllegalArgumentException("fragmented MP4 takes AVC and AAC, not " + mime);
+    }
+
+    /**
+     * Returns the first NAL unit of the type in the Annex-B buffers, without start code.
+     */
+    private static byte[] findNal(int type, ByteBuffer... buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer == null) {
+                continue;
+            }
+            int limit = buffer.limit();
+            int start = FragmentedMp4Writer.findStartCode(buffer, buffer.position(), limit);
+            while (start >= 0) {
+                int nalStart = start + 3;
+                int next = FragmentedMp4Writer.findStartCode(buffer, nalStart, limit);
+                int nalEnd = next < 0 ? limit : next;
+                while (nalEnd > nalStart && buffer.get(nalEnd - 1) == 0) {
+                    nalEnd--;
+                }
+                if (nalEnd > nalStart && (buffer.get(nalStart) & 0x1F) == type) {
+                    byte[] nal = new byte[nalEnd - nalStart];
+                    for (int i = 0; i < nal.length; i++) {
+                        nal[i] = buffer.get(nalStart + i);
+                    }
+                    return nal;
+                }
+                start = next;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        try {
+            mWriter.writeSample(track, data, info.presentationTimeUs,
+                    (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.finish();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mStream.close();
+        } catch (IOException ioe) {
+            // nothing to do
+        }
+    }
+}
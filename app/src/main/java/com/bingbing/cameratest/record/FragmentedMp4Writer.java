@@ -0,0 +1,638 @@
+package com.bingbing.cameratest.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes H.264 and AAC to a fragmented MP4 (ISO BMFF) stream.
+ * <p>
+ * Unlike MediaMuxer, which writes the sample index at the end, the header goes out first
+ * and samples follow in self-contained moof/mdat fragments of about a second each, cut at
+ * video sync frames.  A file is playable up to its last complete fragment while it is still
+ * being written, and after a crash.
+ * <p>
+ * Samples are staged in buffers allocated per track when the track is added; nothing is
+ * allocated per sample.  Plain Java with no Android dependencies, so it runs on a desktop
+ * JVM.
+ * <p>
+ * H.264 samples may be in Annex-B form (start codes, as MediaCodec produces) or already
+ * length-prefixed.  Decode order is assumed to be presentation order, so streams with
+ * B-frames come out with the wrong timing; Android's surface encoders don't produce them
+ * unless asked to.
+ * <p>
+ * Not thread-safe.
+ */
+public class FragmentedMp4Writer {
+    // Fragments are cut at the first video sync frame after this much has been staged.
+    private static final long FRAGMENT_USEC = 1000000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    private static final int VIDEO_PAYLOAD_BYTES = 2 * 1024 * 1024;
+    private static final int AUDIO_PAYLOAD_BYTES = 256 * 1024;
+    private static final int MAX_SAMPLES = 1024;
+
+    // trun sample_flags
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;       // depends on no other
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;   // depends on others, non-sync
+
+    private final WritableByteChannel mOut;
+    private final List<Track> mTracks = new ArrayList<Track>();
+    // The track fragments are cut on: the first video track, or the first track.
+    private Track mCutTrack;
+    private ByteBuffer mHeader = ByteBuffer.allocate(64 * 1024);
+    // Per-track scratch for writeFragment(), sized at start().
+    private int[] mEmitCounts;
+    private int[] mEmitBytes;
+    private int[] mDataOffsetPositions;
+    private boolean mStarted;
+    private boolean mFinished;
+    private int mSequence;
+    private long mOriginUsec = -1;
+
+    private static class Track {
+        final int mId;
+        final boolean mVideo;
+        final int mTimescale;
+        // video
+        int mWidth;
+        int mHeight;
+        byte[] mSps;
+        byte[] mPps;
+        // audio
+        int mChannelCount;
+        byte[] mAudioSpecificConfig;
+
+        // Staged samples; their data is back to back at the start of mPayload.
+        ByteBuffer mPayload;
+        final int[] mSizes = new int[MAX_SAMPLES];
+        final int[] mFlags = new int[MAX_SAMPLES];
+        final long[] mPtsUsec = new long[MAX_SAMPLES];
+        final int[] mDurations = new int[MAX_SAMPLES];
+        int mCount;
+        long mNextDecodeTime = -1;
+        int mLastDuration;
+
+        Track(int id, boolean video, int timescale, int payloadBytes) {
+            mId = id;
+            mVideo = video;
+            mTimescale = timescale;
+            mPayload = ByteBuffer.allocateDirect(payloadBytes);
+        }
+    }
+
+    public FragmentedMp4Writer(WritableByteChannel out) {
+        mOut = out;
+    }
+
+    /**
+     * Adds an H.264 track.
+     *
+     * @param sps the sequence parameter set NAL unit, without start code
+     * @param pps the picture parameter set NAL unit, without start code
+     * @return the track index
+     */
+    public int addAvcTrack(int width, int height, byte[] sps, byte[] pps) {
+        checkNotStarted();
+        if (sps == null || sps.length < 4 || pps == null || pps.length == 0) {
+            throw new IllegalArgumentException("missing SPS/PPS");
+        }
+        Track track = new Track(mTracks.size() + 1, true, VIDEO_TIMESCALE, VIDEO_PAYLOAD_BYTES);
+        track.mWidth = width;
+        track.mHeight = height;
+        track.mSps = sps;
+        track.mPps = pps;
+        mTracks.add(track);
+        if (mCutTrack == null || !mCutTrack.mVideo) {
+            mCutTrack = track;
+        }
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Adds an AAC track.
+     *
+     * @param audioSpecificConfig the decoder config, as in MediaFormat's csd-0
+     * @return the track index
+     */
+    public int addAacTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        checkNotStarted();
+        if (audioSpecificConfig == null || audioSpecificConfig.length == 0) {
+            throw new IllegalArgumentException("missing AudioSpecificConfig");
+        }
+        Track track = new Track(mTracks.size() + 1, false, sampleRate, AUDIO_PAYLOAD_BYTES);
+        track.mChannelCount = channelCount;
+        track.mAudioSpecificConfig = audioSpecificConfig;
+        mTracks.add(track);
+        if (mCutTrack == null) {
+            mCutTrack = track;
+        }
+        return mTracks.size() - 1;
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) {
+            throw new IllegalStateException("tracks must be added before start()");
+        }
+    }
+
+    /**
+     * Writes the file header.  Call after adding the tracks.
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no tracks");
+        }
+        mStarted = true;
+        mEmitCounts = new int[mTracks.size()];
+        mEmitBytes = new int[mTracks.size()];
+        mDataOffsetPositions = new int[mTracks.size()];
+
+        ByteBuffer b = mHeader;
+        b.clear();
+        int ftyp = begin(b, "ftyp");
+        putType(b, "iso5");
+        b.putInt(512);
+        putType(b, "iso5");
+        putType(b, "iso6");
+        putType(b, "mp41");
+        end(b, ftyp);
+        writeMoov(b);
+        b.flip();
+        writeFully(b);
+    }
+
+    /**
+     * Stages a sample, writing out a fragment first if one is complete.
+     *
+     * @param data the sample; its position and limit frame it.  Not kept.
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long ptsUsec, boolean sync)
+            throws IOException {
+        if (!mStarted || mFinished) {
+            throw new IllegalStateException("not started");
+        }
+        Track track = mTracks.get(trackIndex);
+        if (mOriginUsec < 0) {
+            mOriginUsec = ptsUsec;
+        }
+
+        // Annex-B to length prefixes grows a sample by at most a byte per NAL unit.
+        int maxSize = data.remaining() + data.remaining() / 3 + 4;
+        boolean cut = track == mCutTrack && track.mCount > 0 && (sync || !track.mVideo)
+                && ptsUsec - track.mPtsUsec[0] >= FRAGMENT_USEC;
+        if (cut || track.mCount == MAX_SAMPLES || track.mPayload.remaining() < maxSize) {
+            writeFragment(track, ptsUsec);
+        }
+        if (track.mPayload.remaining() < maxSize) {
+            // A single sample bigger than the buffer; make room once.
+            ByteBuffer bigger = ByteBuffer.allocateDirect(track.mPayload.position() + maxSize);
+            track.mPayload.flip();
+            bigger.put(track.mPayload);
+            track.mPayload = bigger;
+        }
+
+        int start = track.mPayload.position();
+        if (track.mVideo) {
+            putLengthPrefixed(track.mPayload, data);
+        } else {
+            track.mPayload.put(data.duplicate());
+        }
+        int n = track.mCount++;
+        track.mSizes[n] = track.mPayload.position() - start;
+        track.mFlags[n] = sync || !track.mVideo ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        track.mPtsUsec[n] = ptsUsec;
+    }
+
+    /**
+     * Writes out everything staged.  The stream is complete afterwards; the channel is left
+     * open.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        if (mStarted) {
+            writeFragment(null, -1);
+        }
+        mFinished = true;
+    }
+
+    private long toTicks(Track track, long ptsUsec) {
+        return Math.max(0, ptsUsec - mOriginUsec) * track.mTimescale / 1000000;
+    }
+
+    /**
+     * Writes one moof/mdat pair with the staged samples.  The next sample time is known only
+     * for the track being written to, nextTrack; the other tracks keep their last sample
+     * back, since its duration isn't known yet.  With nextTrack null everything goes out.
+     */
+    private void writeFragment(Track nextTrack, long nextPtsUsec) throws IOException {
+        int[] emitCounts = mEmitCounts;
+        int[] emitBytes = mEmitBytes;
+        int total = 0;
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            int count = track.mCount;
+            emitBytes[t] = 0;
+            if (nextTrack != null && track != nextTrack && count > 0) {
+                count--;
+            }
+            for (int i = 0; i < count; i++) {
+                long duration;
+                if (i + 1 < track.mCount) {
+                    duration = toTicks(track, track.mPtsUsec[i + 1]) -
+                            toTicks(track, track.mPtsUsec[i]);
+                } else if (track == nextTrack) {
+                    duration = toTicks(track, nextPtsUsec) - toTicks(track, track.mPtsUsec[i]);
+                } else {
+                    // end of stream; repeat the last duration
+                    duration = track.mLastDuration > 0 ? track.mLastDuration
+                            : track.mVideo ? track.mTimescale / 30 : 1024;
+                }
+                track.mDurations[i] = (int) Math.max(0, duration);
+                track.mLastDuration = track.mDurations[i];
+                emitBytes[t] += track.mSizes[i];
+            }
+            emitCounts[t] = count;
+            total += emitBytes[t];
+        }
+        if (total == 0) {
+            return;
+        }
+
+        ByteBuffer b = ensureHeaderCapacity();
+        b.clear();
+        int moof = begin(b, "moof");
+        int mfhd = beginFull(b, "mfhd", 0, 0);
+        b.putInt(++mSequence);
+        end(b, mfhd);
+        int[] dataOffsetPositions = mDataOffsetPositions;
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            int count = emitCounts[t];
+            if (count == 0) {
+                continue;
+            }
+            long baseTime = track.mNextDecodeTime >= 0
+                    ? track.mNextDecodeTime : toTicks(track, track.mPtsUsec[0]);
+            int traf = begin(b, "traf");
+            int tfhd = beginFull(b, "tfhd", 0, 0x020000);       // default-base-is-moof
+            b.putInt(track.mId);
+            end(b, tfhd);
+            int tfdt = beginFull(b, "tfdt", 1, 0);
+            b.putLong(baseTime);
+            end(b, tfdt);
+            // data-offset, sample-duration, sample-size, sample-flags present
+            int trun = beginFull(b, "trun", 0, 0x000701);
+            b.putInt(count);
+            dataOffsetPositions[t] = b.position();
+            b.putInt(0);
+            long duration = 0;
+            for (int i = 0; i < count; i++) {
+                b.putInt(track.mDurations[i]);
+                b.putInt(track.mSizes[i]);
+                b.putInt(track.mFlags[i]);
+                duration += track.mDurations[i];
+            }
+            end(b, trun);
+            end(b, traf);
+            track.mNextDecodeTime = baseTime + duration;
+        }
+        end(b, moof);
+        int moofSize = b.position();
+        int dataOffset = moofSize + 8;
+        for (int t = 0; t < mTracks.size(); t++) {
+            if (emitCounts[t] > 0) {
+                b.putInt(dataOffsetPositions[t], dataOffset);
+                dataOffset += emitBytes[t];
+            }
+        }
+        b.putInt(8 + total);
+        putType(b, "mdat");
+        b.flip();
+        writeFully(b);
+
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            if (emitCounts[t] == 0) {
+                continue;
+            }
+            ByteBuffer payload = track.mPayload.duplicate();
+            payload.flip();
+            payload.limit(emitBytes[t]);
+            writeFully(payload);
+            removeStaged(track, emitCounts[t], emitBytes[t]);
+        }
+    }
+
+    private static void removeStaged(Track track, int count, int bytes) {
+        ByteBuffer payload = track.mPayload;
+        int used = payload.position();
+        payload.position(bytes);
+        payload.limit(used);
+        payload.compact();
+        int left = track.mCount - count;
+        System.arraycopy(track.mSizes, count, track.mSizes, 0, left);
+        System.arraycopy(track.mFlags, count, track.mFlags, 0, left);
+        System.arraycopy(track.mPtsUsec, count, track.mPtsUsec, 0, left);
+        track.mCount = left;
+    }
+
+    private ByteBuffer ensureHeaderCapacity() {
+        // moof: ~100 bytes per track plus 12 per sample
+        int needed = 256 + mTracks.size() * (128 + MAX_SAMPLES * 12);
+        if (mHeader.capacity() < needed) {
+            mHeader = ByteBuffer.allocate(needed);
+        }
+        return mHeader;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mOut.write(buffer);
+        }
+    }
+
+    // ----- Annex-B -----
+
+    /**
+     * Returns the index of the next 00 00 01 start code in [from, limit), or -1.
+     */
+    static int findStartCode(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((buffer.get(i + 2) & 0xFF) > 1) {
+                i += 2;         // no start code can end before i + 3
+            } else if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void putLengthPrefixed(ByteBuffer dst, ByteBuffer src) {
+        int pos = src.position();
+        int limit = src.limit();
+        int start = findStartCode(src, pos, limit);
+        if (start < 0 || start > pos + 1) {
+            // already length-prefixed
+            dst.put(src.duplicate());
+            return;
+        }
+        while (start >= 0) {
+            int nalStart = start + 3;
+            int next = findStartCode(src, nalStart, limit);
+            int nalEnd = next < 0 ? limit : next;
+            while (nalEnd > nalStart && src.get(nalEnd - 1) == 0) {
+                nalEnd--;       // zero byte of a 4-byte start code, or trailing zeros
+            }
+            dst.putInt(nalEnd - nalStart);
+            ByteBuffer nal = src.duplicate();
+            nal.limit(nalEnd);
+            nal.position(nalStart);
+            dst.put(nal);
+            start = next;
+        }
+    }
+
+    // ----- boxes -----
+
+    private void writeMoov(ByteBuffer b) {
+        int moov = begin(b, "moov");
+
+        int mvhd = beginFull(b, "mvhd", 0, 0);
+        b.putInt(0);                    // creation_time
+        b.putInt(0);                    // modification_time
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(0);                    // duration: unknown, see fragments
+        b.putInt(0x00010000);           // rate 1.0
+        b.putShort((short) 0x0100);     // volume 1.0
+        b.put(new byte[10]);            // reserved
+        putMatrix(b);
+        b.put(new byte[24]);            // pre_defined
+        b.putInt(mTracks.size() + 1);   // next_track_ID
+        end(b, mvhd);
+
+        for (Track track : mTracks) {
+            writeTrak(b, track);
+        }
+
+        int mvex = begin(b, "mvex");
+        for (Track track : mTracks) {
+            int trex = beginFull(b, "trex", 0, 0);
+            b.putInt(track.mId);
+            b.putInt(1);                // default_sample_description_index
+            b.putInt(0);                // default_sample_duration
+            b.putInt(0);                // default_sample_size
+            b.putInt(0);                // default_sample_flags
+            end(b, trex);
+        }
+        end(b, mvex);
+
+        end(b, moov);
+    }
+
+    private void writeTrak(ByteBuffer b, Track track) {
+        int trak = begin(b, "trak");
+
+        int tkhd = beginFull(b, "tkhd", 0, 0x000007);      // enabled, in movie, in preview
+        b.putInt(0);                    // creation_time
+        b.putInt(0);                    // modification_time
+        b.putInt(track.mId);
+        b.putInt(0);                    // reserved
+        b.putInt(0);                    // duration
+        b.put(new byte[8]);             // reserved
+        b.putShort((short) 0);          // layer
+        b.putShort((short) 0);          // alternate_group
+        b.putShort((short) (track.mVideo ? 0 : 0x0100));   // volume
+        b.putShort((short) 0);          // reserved
+        putMatrix(b);
+        b.putInt(track.mWidth << 16);
+        b.putInt(track.mHeight << 16);
+        end(b, tkhd);
+
+        int mdia = begin(b, "mdia");
+        int mdhd = beginFull(b, "mdhd", 0, 0);
+        b.putInt(0);                    // creation_time
+        b.putInt(0);                    // modification_time
+        b.putInt(track.mTimescale);
+        b.putInt(0);                    // duration
+        b.putShort((short) 0x55C4);     // language "und"
+        b.putShort((short) 0);          // pre_defined
+        end(b, mdhd);
+
+        int hdlr = beginFull(b, "hdlr", 0, 0);
+        b.putInt(0);                    // pre_defined
+        putType(b, track.mVideo ? "vide" : "soun");
+        b.put(new byte[12]);            // reserved
+        putCString(b, track.mVideo ? "VideoHandler" : "SoundHandler");
+        end(b, hdlr);
+
+        int minf = begin(b, "minf");
+        if (track.mVideo) {
+            int vmhd = beginFull(b, "vmhd", 0, 1);
+            b.putShort((short) 0);      // graphicsmode
+            b.put(new byte[6]);         // opcolor
+            end(b, vmhd);
+        } else {
+            int smhd = beginFull(b, "smhd", 0, 0);
+            b.putShort((short) 0);      // balance
+            b.putShort((short) 0);      // reserved
+            end(b, smhd);
+        }
+        int dinf = begin(b, "dinf");
+        int dref = beginFull(b, "dref", 0, 0);
+        b.putInt(1);                    // entry_count
+        int url = beginFull(b, "url ", 0, 1);              // media is in this file
+        end(b, url);
+        end(b, dref);
+        end(b, dinf);
+
+        int stbl = begin(b, "stbl");
+        int stsd = beginFull(b, "stsd", 0, 0);
+        b.putInt(1);                    // entry_count
+        if (track.mVideo) {
+            writeAvc1(b, track);
+        } else {
+            writeMp4a(b, track);
+        }
+        end(b, stsd);
+        // The sample tables are empty; samples are described by the fragments.
+        int stts = beginFull(b, "stts", 0, 0);
+        b.putInt(0);
+        end(b, stts);
+        int stsc = beginFull(b, "stsc", 0, 0);
+        b.putInt(0);
+        end(b, stsc);
+        int stsz = beginFull(b, "stsz", 0, 0);
+        b.putInt(0);                    // sample_size
+        b.putInt(0);                    // sample_count
+        end(b, stsz);
+        int stco = beginFull(b, "stco", 0, 0);
+        b.putInt(0);
+        end(b, stco);
+        end(b, stbl);
+        end(b, minf);
+        end(b, mdia);
+
+        end(b, trak);
+    }
+
+    private static void writeAvc1(ByteBuffer b, Track track) {
+        int avc1 = begin(b, "avc1");
+        b.put(new byte[6]);             // reserved
+        b.putShort((short) 1);          // data_reference_index
+        b.put(new byte[16]);            // pre_defined, reserved
+        b.putShort((short) track.mWidth);
+        b.putShort((short) track.mHeight);
+        b.putInt(0x00480000);           // 72 dpi
+        b.putInt(0x00480000);
+        b.putInt(0);                    // reserved
+        b.putShort((short) 1);          // frame_count
+        b.put(new byte[32]);            // compressorname
+        b.putShort((short) 0x0018);     // depth
+        b.putShort((short) -1);         // pre_defined
+
+        int avcC = begin(b, "avcC");
+        b.put((byte) 1);                // configurationVersion
+        b.put(track.mSps[1]);           // AVCProfileIndication
+        b.put(track.mSps[2]);           // profile_compatibility
+        b.put(track.mSps[3]);           // AVCLevelIndication
+        b.put((byte) 0xFF);             // 4-byte NAL lengths
+        b.put((byte) 0xE1);             // one SPS
+        b.putShort((short) track.mSps.length);
+        b.put(track.mSps);
+        b.put((byte) 1);                // one PPS
+        b.putShort((short) track.mPps.length);
+        b.put(track.mPps);
+        end(b, avcC);
+
+        end(b, avc1);
+    }
+
+    private static void writeMp4a(ByteBuffer b, Track track) {
+        int mp4a = begin(b, "mp4a");
+        b.put(new byte[6]);             // reserved
+        b.putShort((short) 1);          // data_reference_index
+        b.put(new byte[8]);             // reserved
+        b.putShort((short) track.mChannelCount);
+        b.putShort((short) 16);         // samplesize
+        b.putShort((short) 0);          // pre_defined
+        b.putShort((short) 0);          // reserved
+        b.putInt(track.mTimescale << 16);
+
+        byte[] asc = track.mAudioSpecificConfig;
+        int esds = beginFull(b, "esds", 0, 0);
+        b.put((byte) 0x03);             // ES_Descriptor
+        b.put((byte) (3 + 2 + 13 + 2 + asc.length + 3));
+        b.putShort((short) track.mId);  // ES_ID
+        b.put((byte) 0);                // flags
+        b.put((byte) 0x04);             // DecoderConfigDescriptor
+        b.put((byte) (13 + 2 + asc.length));
+        b.put((byte) 0x40);             // objectTypeIndication: MPEG-4 audio
+        b.put((byte) 0x15);             // streamType audio, upStream 0, reserved 1
+        b.put(new byte[3]);             // bufferSizeDB
+        b.putInt(0);                    // maxBitrate
+        b.putInt(0);                    // avgBitrate
+        b.put((byte) 0x05);             // DecoderSpecificInfo
+        b.put((byte) asc.length);
+        b.put(asc);
+        b.put((byte) 0x06);             // SLConfigDescriptor
+        b.put((byte) 1);
+        b.put((byte) 0x02);
+        end(b, esds);
+
+        end(b, mp4a);
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        b.putInt(0x00010000);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0x00010000);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0x40000000);
+    }
+
+    private static void putType(ByteBuffer b, String type) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte) type.charAt(i));
+        }
+    }
+
+    private static void putCString(ByteBuffer b, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            b.put((byte) s.charAt(i));
+        }
+        b.put((byte) 0);
+    }
+
+    /**
+     * Starts a box; returns its position for {@link #end(ByteBuffer, int)}.
+     */
+    private static int begin(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0);
+        putType(b, type);
+        return start;
+    }
+
+    private static int beginFull(ByteBuffer b, String type, int version, int flags) {
+        int start = begin(b, type);
+        b.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+}
@@ -0,0 +1,80 @@
+package com.bingbing.cameratest.record;
+
+/**
+ * Picks which rendered frames go to the encoder, so that a 60fps (or 90, 120...) display
+ * is recorded at the encoder's frame rate.
+ * <p>
+ * Decisions are made on presentation time, not frame count, so the recorded rate holds
+ * whatever the refresh rate is.  Accepted frames are kept on a fixed grid of slots one
+ * encoder interval apart; a frame is taken for a slot if it lands within a tolerance before
+ * it.  The tolerance is a quarter interval, capped at half the (smoothed) display frame
+ * period, which absorbs vsync jitter without letting two neighbouring display frames compete
+ * for a slot.  After a stall longer than one interval the grid restarts at the next frame
+ * rather than bursting to catch up.
+ * <p>
+ * Not thread-safe; call from the render thread.
+ */
+public class FrameDecimator {
+    private static final long ONE_SECOND_NANOS = 1000000000L;
+
+    private final long mIntervalNanos;
+    private final long mMaxToleranceNanos;
+    private long mNextNanos = -1;
+    private long mPrevNanos = -1;
+    private long mPeriodNanos;
+    private int mAcceptedFrames;
+    private int mDroppedFrames;
+
+    /**
+     * @param frameRate the rate to record at; 0 or less records every frame
+     */
+    public FrameDecimator(int frameRate) {
+        mIntervalNanos = frameRate > 0 ? ONE_SECOND_NANOS / frameRate : 0;
+        mMaxToleranceNanos = mIntervalNanos / 4;
+    }
+
+    /**
+     * Returns true if the frame with the given presentation time should be recorded.  Call
+     * once per rendered frame, in order.
+     */
+    public boolean accept(long timeStampNanos) {
+        if (mPrevNanos >= 0) {
+            long delta = timeStampNanos - mPrevNanos;
+            mPeriodNanos = mPeriodNanos == 0 ? delta : mPeriodNanos + (delta - mPeriodNanos) / 8;
+        }
+        mPrevNanos = timeStampNanos;
+        long tolerance = mPeriodNanos > 0
+                ? Math.min(mMaxToleranceNanos, mPeriodNanos / 2) : mMaxToleranceNanos;
+
+        if (mNextNanos < 0 || timeStampNanos >= mNextNanos + mIntervalNanos) {
+            // First frame, or we stalled: start a new grid here.
+            mNextNanos = timeStampNanos + mIntervalNanos;
+        } else if (timeStampNanos + tolerance >= mNextNanos) {
+            mNextNanos += mIntervalNanos;
+        } else {
+            mDroppedFrames++;
+            return false;
+        }
+        mAcceptedFrames++;
+        return true;
+    }
+
+    /**
+     * Forgets the grid, e.g. when a new recording starts.
+     */
+    public void reset() {
+        mNextNanos = -1;
+        mPrevNanos = -1;
+        mPeriodNanos = 0;
+        mAcceptedFrames = 0;
+        mDroppedFrames = 0;
+    }
+
+    public int getAcceptedFrames() {
+        return mAcceptedFrames;
+    }
+
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
@@ -0,0 +1,291 @@
+package com.bingbing.cameratest.record;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads frames back from GL without stalling the render thread on the GPU, and hands the
+ * pixels to an executor for whatever slow work follows, e.g. PNG encoding.
+ * <p>
+ * On GLES 3 a read goes into one of a ring of pixel-pack buffers and returns at once; the
+ * GPU copies the pixels when it gets to them.  {@link #poll()}, called once a frame, maps
+ * the buffers whose fence has signalled, or that are {@link #MAX_LATENCY_FRAMES} frames old,
+ * and copies them out.  The offset form of glReadPixels a pack buffer needs only appeared
+ * in the Java bindings in Android 7.0, so it is looked up at run time.  Elsewhere
+ * glReadPixels is synchronous, but reads into pooled buffers and leaves the rest to the
+ * executor.
+ * <p>
+ * Pixels are tightly packed RGBA, bottom row first.  Everything but the callbacks runs on
+ * the GL thread.
+ */
+public class FrameReader {
+    private static final String TAG = GlUtil.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** A read is mapped at the latest this many frames after it was issued. */
+    public static final int MAX_LATENCY_FRAMES = 2;
+    // Enough for every pack buffer plus a few frames being worked on, e.g. by a burst.
+    private static final int MAX_POOLED_BUFFERS = MAX_LATENCY_FRAMES + 3;
+
+    /**
+     * Receives a frame.  Runs on the executor given with the read.
+     */
+    public interface Callback {
+        /**
+         * @param pixels only valid until this returns; the buffer is then reused
+         */
+        void onFrameRead(ByteBuffer pixels, int width, int height);
+    }
+
+    // GLES30.glReadPixels(x, y, width, height, format, type, offset), API 24; null if absent.
+    private static final Method sReadPixelsToPackBuffer = findReadPixelsToPackBuffer();
+
+    private final boolean mUsePackBuffers;
+    private final Slot[] mSlots;
+    private final int[] mBufferIds;
+    // Free output buffers, shared with the executor threads.
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<ByteBuffer>();
+    private int mFrame;
+
+    private static class Slot {
+        int mSize;              // pack buffer allocation, bytes
+        long mFence;            // 0 when idle
+        int mIssuedFrame;
+        int mWidth;
+        int mHeight;
+        Executor mExecutor;
+        Callback mCallback;
+    }
+
+    /**
+     * @param glVersion the context's major version, see {@link EglCore#getGlVersion()}
+     */
+    public FrameReader(int glVersion) {
+        mUsePackBuffers = glVersion >= 3 && sReadPixelsToPackBuffer != null;
+        int slots = mUsePackBuffers ? MAX_LATENCY_FRAMES : 0;
+        mSlots = new Slot[slots];
+        mBufferIds = new int[slots];
+        if (slots > 0) {
+            GLES30.glGenBuffers(slots, mBufferIds, 0);
+            for (int i = 0; i < slots; i++) {
+                mSlots[i] = new Slot();
+            }
+        }
+        Log.d(TAG, "FrameReader: " + (mUsePackBuffers ? "pixel pack buffers" : "synchronous"));
+    }
+
+    private static Method findReadPixelsToPackBuffer() {
+        if (Build.VERSION.SDK_INT < 24) {      // Build.VERSION_CODES.N
+            return null;
+        }
+        try {
+            return GLES30.class.getMethod("glReadPixels", int.class, int.class, int.class,
+                    int.class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException nsme) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if reads are asynchronous on this device.
+     */
+    public boolean isAsync() {
+        return mUsePackBuffers;
+    }
+
+    /**
+     * Starts reading a width x height rectangle from the origin of the framebuffer bound for
+     * reading.  The callback gets the pixels on the executor, a frame or two later when
+     * asynchronous.
+     */
+    public void read(int width, int height, Executor executor, Callback callback) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad read size " + width + "x" + height);
+        }
+        if (!mUsePackBuffers) {
+            ByteBuffer pixels = acquireBuffer(width * height * 4);
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    pixels);
+            GlUtil.checkGlError("glReadPixels");
+            deliver(pixels, width, height, executor, callback);
+            return;
+        }
+
+        Slot slot = findIdleSlot();
+        if (slot == null) {
+            // More reads than buffers; wait for the oldest rather than drop one.
+            slot = oldestSlot();
+            finish(slot, true);
+        }
+        int index = indexOf(slot);
+        int size = width * height * 4;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBufferIds[index]);
+        if (slot.mSize < size) {
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null,
+                    GLES30.GL_STREAM_READ);
+            slot.mSize = size;
+        }
+        try {
+            sReadPixelsToPackBuffer.invoke(null, 0, 0, width, height, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, 0);
+        } catch (Exception e) {
+            throw new RuntimeException("glReadPixels into pack buffer failed", e);
+        } finally {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+        GlUtil.checkGlError("glReadPixels");
+        slot.mFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.mIssuedFrame = mFrame;
+        slot.mWidth = width;
+        slot.mHeight = height;
+        slot.mExecutor = executor;
+        slot.mCallback = callback;
+        if (VERBOSE) Log.d(TAG, "read " + width + "x" + height + " into slot " + index);
+    }
+
+    /**
+     * Delivers the reads that are done.  Call once a frame, e.g. after drawing it.
+     */
+    public void poll() {
+        mFrame++;
+        for (Slot slot : mSlots) {
+            if (slot.mFence != 0) {
+                finish(slot, mFrame - slot.mIssuedFrame >= MAX_LATENCY_FRAMES);
+            }
+        }
+    }
+
+    /**
+     * Maps a slot's buffer and delivers it, if its fence has signalled or wait is set.
+     */
+    private void finish(Slot slot, boolean wait) {
+        int status = GLES30.glClientWaitSync(slot.mFence,
+                wait ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0,
+                wait ? Long.MAX_VALUE : 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+            return;
+        }
+        if (status == GLES30.GL_WAIT_FAILED) {
+            Log.w(TAG, "glClientWaitSync failed, mapping anyway");
+        }
+        GLES30.glDeleteSync(slot.mFence);
+        slot.mFence = 0;
+
+        int size = slot.mWidth * slot.mHeight * 4;
+        ByteBuffer pixels = acquireBuffer(size);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBufferIds[indexOf(slot)]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, size, GLES30.GL_MAP_READ_BIT);
+        if (mapped != null) {
+            pixels.put(mapped);
+            pixels.flip();
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        Executor executor = slot.mExecutor;
+        Callback callback = slot.mCallback;
+        slot.mExecutor = null;
+        slot.mCallback = null;
+        if (mapped == null) {
+            Log.w(TAG, "glMapBufferRange failed, frame lost");
+            recycleBuffer(pixels);
+            return;
+        }
+        deliver(pixels, slot.mWidth, slot.mHeight, executor, callback);
+    }
+
+    private Slot findIdleSlot() {
+        for (Slot slot : mSlots) {
+            if (slot.mFence == 0) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private Slot oldestSlot() {
+        Slot oldest = mSlots[0];
+        for (Slot slot : mSlots) {
+            if (slot.mIssuedFrame - oldest.mIssuedFrame < 0) {
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private int indexOf(Slot slot) {
+        for (int i = 0; i < mSlots.length; i++) {
+            if (mSlots[i] == slot) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("not our slot");
+    }
+
+    private void deliver(final ByteBuffer pixels, final int width, final int height,
+                         Executor executor, final Callback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callback.onFrameRead(pixels, width, height);
+                } finally {
+                    recycleBuffer(pixels);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a pooled buffer of exactly the given size, positioned at 0.
+     */
+    private ByteBuffer acquireBuffer(int size) {
+        synchronized (mFreeBuffers) {
+            while (!mFreeBuffers.isEmpty()) {
+                ByteBuffer buffer = mFreeBuffers.poll();
+                if (buffer.capacity() >= size) {
+                    buffer.clear();
+                    buffer.limit(size);
+                    return buffer;
+                }
+                // Wrong size, e.g. after a resize; let it go.
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        synchronized (mFreeBuffers) {
+            if (mFreeBuffers.size() < MAX_POOLED_BUFFERS) {
+                mFreeBuffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Delivers outstanding reads, then frees the GL buffers.  GL thread, context current.
+     */
+    public void release() {
+        for (Slot slot : mSlots) {
+            if (slot.mFence != 0) {
+                finish(slot, true);
+            }
+        }
+        if (mBufferIds.length > 0) {
+            GLES30.glDeleteBuffers(mBufferIds.length, mBufferIds, 0);
+        }
+        synchronized (mFreeBuffers) {
+            mFreeBuffers.clear();
+        }
+    }
+}
@@ -21,6 +21,8 @@ import android.opengl.GLES30;
 import android.opengl.Matrix;
 import android.util.Log;
 
+import com.bingbing.cameratest.gpuimage.ProgramCache;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -44,11 +46,18 @@ public class GlUtil {
     private GlUtil() {}     // do not instantiate
 
     /**
-     * Creates a new program from the supplied vertex and fragment shaders.
+     * Creates a new program from the supplied vertex and fragment shaders, or reuses one from
+     * the ProgramCache.  Release it with OpenGlUtils.releaseProgram().
      *
      * @return A handle to the program, or 0 on failure.
      */
     public static int createProgram(String vertexSource, String fragmentSource) {
+        ProgramCache cache = ProgramCache.getInstance();
+        int cached = cache.acquire(vertexSource, fragmentSource);
+        if (cached != 0) {
+            return cached;
+        }
+
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -67,6 +76,7 @@ public class GlUtil {
         checkGlError("glAttachShader");
         GLES20.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
+        cache.prepareForLink(program);
         GLES20.glLinkProgram(program);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -75,6 +85,8 @@ public class GlUtil {
             Log.e(TAG, GLES20.glGetProgramInfoLog(program));
             GLES20.glDeleteProgram(program);
             program = 0;
+        } else {
+            cache.put(vertexSource, fragmentSource, program);
         }
         return program;
     }
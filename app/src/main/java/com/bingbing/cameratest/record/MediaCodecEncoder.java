@@ -0,0 +1,173 @@
+package com.bingbing.cameratest.record;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * {@link EncoderCodec} backed by a MediaCodec encoder.
+ */
+public class MediaCodecEncoder implements EncoderCodec {
+    private final MediaCodec mCodec;
+    // Pre-21 output buffers, refreshed on INFO_OUTPUT_BUFFERS_CHANGED.
+    private ByteBuffer[] mOutputBuffers;
+
+    /**
+     * Creates an encoder for the type on the calling thread.
+     */
+    public static MediaCodecEncoder create(String mimeType) throws IOException {
+        return new MediaCodecEncoder(MediaCodec.createEncoderByType(mimeType));
+    }
+
+    /**
+     * Creates an encoder on the handler's thread.  On API 21 and 22 MediaCodec delivers
+     * callbacks on the looper of the thread that created it, so this is how asynchronous
+     * output is steered to a thread of our choosing.  Blocks until the codec exists.
+     */
+    public static MediaCodecEncoder create(final String mimeType, Handler handler)
+            throws IOException {
+        FutureTask<MediaCodecEncoder> task = new FutureTask<MediaCodecEncoder>(
+                new Callable<MediaCodecEncoder>() {
+                    @Override
+                    public MediaCodecEncoder call() throws IOException {
+                        return create(mimeType);
+                    }
+                });
+        handler.post(task);
+        try {
+            return task.get();
+        } catch (InterruptedException ie) {
+            throw new IOException("interrupted creating " + mimeType + " encoder", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    private MediaCodecEncoder(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    @Override
+    public MediaCodecInfo.CodecCapabilities getCapabilities(String mimeType) {
+        return mCodec.getCodecInfo().getCapabilitiesForType(mimeType);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public void setCallback(final Callback callback) {
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // Input comes from the Surface.
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                                MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        });
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        while (true) {
+            int status = mCodec.dequeueOutputBuffer(info, timeoutUs);
+            if (status != MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                return status;
+            }
+            // not expected for an encoder
+            mOutputBuffers = null;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mCodec.getOutputBuffer(index);
+        }
+        if (mOutputBuffers == null) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void setVideoBitRate(int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+}
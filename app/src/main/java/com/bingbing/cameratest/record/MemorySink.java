@@ -0,0 +1,81 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link MuxerSink} keeping formats and samples on the heap, for inspecting what an encoder
+ * produced, e.g. in tests.  Unbounded; not for real recordings.
+ */
+public class MemorySink implements MuxerSink {
+
+    public static class Sample {
+        public final int track;
+        public final byte[] data;
+        public final long presentationTimeUs;
+        public final int flags;
+
+        Sample(int track, byte[] data, long presentationTimeUs, int flags) {
+            this.track = track;
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    private final List<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private final List<Sample> mSamples = new ArrayList<Sample>();
+    private boolean mStarted;
+    private boolean mStopped;
+
+    @Override
+    public synchronized int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() {
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int track, ByteBuffer data,
+                                             MediaCodec.BufferInfo info) {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("not started");
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        mSamples.add(new Sample(track, bytes, info.presentationTimeUs, info.flags));
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    public synchronized List<MediaFormat> getFormats() {
+        return Collections.unmodifiableList(new ArrayList<MediaFormat>(mFormats));
+    }
+
+    public synchronized List<Sample> getSamples() {
+        return Collections.unmodifiableList(new ArrayList<Sample>(mSamples));
+    }
+
+    public synchronized boolean isStopped() {
+        return mStopped;
+    }
+}
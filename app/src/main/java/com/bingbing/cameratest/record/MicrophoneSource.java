@@ -0,0 +1,84 @@
+package com.bingbing.cameratest.record;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioSource} reading the camcorder microphone through AudioRecord.  Needs the
+ * RECORD_AUDIO permission.
+ */
+public class MicrophoneSource implements AudioSource {
+    public static final int DEFAULT_SAMPLE_RATE = 44100;    // the only rate guaranteed to work
+
+    // Capture buffer, in multiples of the minimum, so a late read doesn't drop samples.
+    private static final int BUFFER_SCALE = 4;
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private AudioRecord mAudioRecord;
+
+    public MicrophoneSource() {
+        this(DEFAULT_SAMPLE_RATE, 1);
+    }
+
+    public MicrophoneSource(int sampleRate, int channelCount) {
+        if (channelCount != 1 && channelCount != 2) {
+            throw new IllegalArgumentException("bad channel count " + channelCount);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    @Override
+    public void start() throws IOException {
+        int channelConfig = mChannelCount == 1
+                ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int minSize = AudioRecord.getMinBufferSize(mSampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minSize <= 0) {
+            throw new IOException("unsupported audio format " + mSampleRate + "Hz x" +
+                    mChannelCount + ": " + minSize);
+        }
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, mSampleRate,
+                channelConfig, AudioFormat.ENCODING_PCM_16BIT, minSize * BUFFER_SCALE);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            release();
+            throw new IOException("microphone unavailable");
+        }
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        return mAudioRecord.read(buffer, size);
+    }
+
+    @Override
+    public void stop() {
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+}
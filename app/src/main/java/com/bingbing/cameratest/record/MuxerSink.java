@@ -0,0 +1,46 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where encoded samples end up: the part of MediaMuxer that {@link SharedMuxer} and
+ * {@link EncodedFrameRing} use, so the container can be swapped.
+ * <p>
+ * Implementations: {@link MediaMuxerSink} (MP4 through MediaMuxer),
+ * {@link FragmentedMp4Sink} (fragmented MP4, readable while recording),
+ * {@link AnnexBSink} (raw H.264 elementary stream) and {@link MemorySink} (kept in memory).
+ * <p>
+ * Same life cycle as MediaMuxer: add the tracks, start(), write samples, stop(), release().
+ * Not thread-safe; SharedMuxer serializes access.
+ */
+public interface MuxerSink {
+
+    /**
+     * Creates the sink for each segment of a recording.
+     */
+    interface Factory {
+        MuxerSink create(int segment) throws IOException;
+    }
+
+    /**
+     * Adds a track with a codec output format, csd buffers included.
+     *
+     * @return the track index
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    /**
+     * Writes a sample.  The buffer's position and limit frame it; it is not kept.
+     */
+    void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info);
+
+    void stop();
+
+    void release();
+}
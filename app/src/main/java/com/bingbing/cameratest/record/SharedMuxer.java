@@ -0,0 +1,308 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A muxer shared by several encoders, one track each.  Writes to a {@link MuxerSink},
+ * MediaMuxer unless told otherwise.
+ * <p>
+ * A muxer can only be started once every track has been added, and an encoder only
+ * knows its track format after it has produced some output.  So the muxer starts when the
+ * last expected track arrives; samples written before that are copied and held back, up to
+ * a limit.  It stops when the last owner releases its track.
+ * <p>
+ * With segment limits set, the recording is split into files of bounded length, so that a
+ * crash loses at most the segment being written; MediaMuxer only writes the index of a
+ * file when it is stopped.  A segment is cut at the first video sync frame after a limit
+ * is reached, by finishing the file and starting a new one with the same tracks.  The
+ * encoders carry on untouched; the video encoder should ask for a sync frame as soon as
+ * {@link #isSegmentDue()} turns true rather than wait for the next GOP.
+ * <p>
+ * Thread-safe; each encoder writes from its own thread.
+ */
+public class SharedMuxer {
+    private static final String TAG = "bingbing_muxer";
+    private static final boolean VERBOSE = false;
+
+    // Samples held back while waiting for the other tracks.  Audio produces ~43 a second.
+    private static final int MAX_PENDING_SAMPLES = 256;
+
+    private final MuxerSink.Factory mFactory;
+    private final long mMaxSegmentUsec;
+    private final long mMaxSegmentBytes;
+    private MuxerSink mMuxer;
+    private final List<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private int mExpectedTracks;
+    private int mAddedTracks;
+    private int mOwners;
+    private boolean mStarted;
+    private final List<PendingSample> mPending = new ArrayList<PendingSample>();
+    private int mDroppedSamples;
+
+    // Segments are cut on this track, the first video track; -1 if none.
+    private int mCutTrack = -1;
+    private long mLastCutPtsUsec;
+    private int mSegmentIndex;
+    private long mSegmentStartUsec = -1;
+    private long mSegmentBytes;
+    // Samples written to the current sink; MediaMuxer refuses to stop an empty file.
+    private int mSegmentSamples;
+
+    private static class PendingSample {
+        final int mTrack;
+        final ByteBuffer mData;
+        final MediaCodec.BufferInfo mInfo;
+
+        PendingSample(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+            mTrack = track;
+            mData = data;
+            mInfo = info;
+        }
+    }
+
+    /**
+     * @param trackCount the number of encoders that will share the muxer.  Each must call
+     *                   {@link #releaseTrack(int)} once when done.
+     */
+    public SharedMuxer(File outputFile, int trackCount) throws IOException {
+        this(outputFile, trackCount, 0, 0);
+    }
+
+    /**
+     * Writes segments of at most about the given duration or size, whichever comes first;
+     * 0 leaves a limit off.  With either limit set the files are named after outputFile
+     * with a sequence number, see {@link #getSegmentFile(File, int)}.
+     */
+    public SharedMuxer(File outputFile, int trackCount, long maxSegmentUsec,
+                       long maxSegmentBytes) throws IOException {
+        this(createFileFactory(outputFile, maxSegmentUsec > 0 || maxSegmentBytes > 0),
+                trackCount, maxSegmentUsec, maxSegmentBytes);
+    }
+
+    /**
+     * Writes to sinks from the factory, one per segment.
+     */
+    public SharedMuxer(MuxerSink.Factory factory, int trackCount, long maxSegmentUsec,
+                       long maxSegmentBytes) throws IOException {
+        if (trackCount <= 0) {
+            throw new IllegalArgumentException("bad track count " + trackCount);
+        }
+        if (maxSegmentUsec < 0 || maxSegmentBytes < 0) {
+            throw new IllegalArgumentException("bad segment limits " + maxSegmentUsec + "us " +
+                    maxSegmentBytes + " bytes");
+        }
+        mFactory = factory;
+        mMaxSegmentUsec = maxSegmentUsec;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMuxer = factory.create(0);
+        mExpectedTracks = trackCount;
+        mOwners = trackCount;
+    }
+
+    private static MuxerSink.Factory createFileFactory(final File outputFile,
+                                                       final boolean segmented) {
+        return new MuxerSink.Factory() {
+            @Override
+            public MuxerSink create(int segment) throws IOException {
+                return new MediaMuxerSink(segmented
+                        ? getSegmentFile(outputFile, segment) : outputFile);
+            }
+        };
+    }
+
+    /**
+     * Returns the file a segment of a recording is written to: outputFile with a sequence
+     * number, e.g. movie-001.mp4, movie-002.mp4.
+     */
+    public static File getSegmentFile(File outputFile, int segment) {
+        String name = outputFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        return new File(outputFile.getParentFile(),
+                String.format(Locale.US, "%s-%03d%s", base, segment + 1, ext));
+    }
+
+    /**
+     * Adds a track; starts the muxer if it was the last one expected.
+     *
+     * @return the track index to write samples to
+     */
+    public synchronized int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("muxer already started");
+        }
+        int track = mMuxer.addTrack(format);
+        mFormats.add(format);
+        if (mCutTrack < 0 && format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+            mCutTrack = track;
+        }
+        mAddedTracks++;
+        maybeStart();
+        return track;
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Writes an encoded sample, or holds a copy of it until the muxer starts.  The buffer's
+     * position and limit must frame the sample.
+     */
+    public synchronized void writeSampleData(int track, ByteBuffer data,
+                                             MediaCodec.BufferInfo info) {
+        if (mStarted) {
+            writeStarted(track, data, info);
+            return;
+        }
+        if (mPending.size() >= MAX_PENDING_SAMPLES) {
+            if (mDroppedSamples++ == 0) {
+                Log.w(TAG, "still waiting for " + (mExpectedTracks - mAddedTracks) +
+                        " track(s), dropping samples");
+            }
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(data.remaining());
+        copy.put(data);
+        copy.flip();
+        MediaCodec.BufferInfo infoCopy = new MediaCodec.BufferInfo();
+        infoCopy.set(0, info.size, info.presentationTimeUs, info.flags);
+        mPending.add(new PendingSample(track, copy, infoCopy));
+    }
+
+    /**
+     * Returns true if the current segment is over its limits and will end at the next video
+     * sync frame.
+     */
+    public synchronized boolean isSegmentDue() {
+        return isSegmentDue(mLastCutPtsUsec);
+    }
+
+    public synchronized int getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    private boolean isSegmentDue(long ptsUsec) {
+        if (mSegmentStartUsec < 0) {
+            return false;
+        }
+        return (mMaxSegmentUsec > 0 && ptsUsec - mSegmentStartUsec >= mMaxSegmentUsec)
+                || (mMaxSegmentBytes > 0 && mSegmentBytes >= mMaxSegmentBytes);
+    }
+
+    private void writeStarted(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (track == mCutTrack) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0
+                    && isSegmentDue(info.presentationTimeUs)) {
+                nextSegment();
+            }
+            if (mSegmentStartUsec < 0) {
+                mSegmentStartUsec = info.presentationTimeUs;
+            }
+            mLastCutPtsUsec = info.presentationTimeUs;
+        }
+        mMuxer.writeSampleData(track, data, info);
+        mSegmentBytes += info.size;
+        mSegmentSamples++;
+    }
+
+    /**
+     * Finishes the current file and carries on in a new one.  If the new file can't be
+     * opened, the current one keeps growing.
+     */
+    private void nextSegment() {
+        MuxerSink next;
+        try {
+            next = mFactory.create(mSegmentIndex + 1);
+        } catch (IOException ioe) {
+            Log.e(TAG, "can't open segment " + (mSegmentIndex + 1) + ", continuing in " +
+                    mSegmentIndex, ioe);
+            mSegmentStartUsec = -1;
+            mSegmentBytes = 0;
+            return;
+        }
+        for (int i = 0; i < mFormats.size(); i++) {
+            if (next.addTrack(mFormats.get(i)) != i) {
+                throw new RuntimeException("track order changed");
+            }
+        }
+        next.start();
+
+        finishSink();
+        Log.d(TAG, "finished segment " + mSegmentIndex + ", " + mSegmentBytes + " bytes");
+        mMuxer = next;
+        mSegmentIndex++;
+        mSegmentStartUsec = -1;
+        mSegmentBytes = 0;
+        mSegmentSamples = 0;
+    }
+
+    /**
+     * Tells the muxer an owner is done.  Pass -1 if it never added its track, so the muxer
+     * stops waiting for it.  The file is finished when the last owner is done.
+     */
+    public synchronized void releaseTrack(int track) {
+        if (mOwners == 0) {
+            throw new IllegalStateException("all tracks already released");
+        }
+        if (track < 0 && !mStarted) {
+            mExpectedTracks--;
+            maybeStart();
+        }
+        if (--mOwners == 0) {
+            if (!mStarted) {
+                Log.w(TAG, "no track was added, nothing recorded");
+                mMuxer.release();
+            } else {
+                finishSink();
+            }
+            mMuxer = null;
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Stops and releases the current sink.  A sink that got no samples is only released;
+     * MediaMuxer throws from stop() on an empty file, which would otherwise take down the
+     * encoder thread releasing its track.
+     */
+    private void finishSink() {
+        try {
+            if (mSegmentSamples > 0) {
+                mMuxer.stop();
+            } else {
+                Log.w(TAG, "segment " + mSegmentIndex + " is empty, not finishing it");
+            }
+        } catch (IllegalStateException ise) {
+            Log.e(TAG, "muxer failed to stop, segment " + mSegmentIndex + " is lost", ise);
+        } finally {
+            mMuxer.release();
+        }
+    }
+
+    private void maybeStart() {
+        if (mAddedTracks < mExpectedTracks || mAddedTracks == 0) {
+            return;
+        }
+        mMuxer.start();
+        mStarted = true;
+        if (VERBOSE) Log.d(TAG, "started, flushing " + mPending.size() + " samples");
+        for (PendingSample sample : mPending) {
+            writeStarted(sample.mTrack, sample.mData, sample.mInfo);
+        }
+        mPending.clear();
+        if (mDroppedSamples > 0) {
+            Log.w(TAG, mDroppedSamples + " samples dropped before start");
+        }
+    }
+}
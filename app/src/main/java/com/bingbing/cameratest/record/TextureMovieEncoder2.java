@@ -49,11 +49,29 @@ public class TextureMovieEncoder2 implements Runnable {
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
 
+    /** Frames that may be waiting in the encoder before more are skipped. */
+    public static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 3;
+
     // ----- accessed exclusively by encoder thread -----
     private VideoEncoderCore mVideoEncoder;
+    // The core drains itself from codec callbacks, so frames need no wakeup.
+    private final boolean mAsync;
+
+    // ----- accessed exclusively by the producer thread -----
+    // Presentation times (us) of frames swapped into the input surface but not yet seen on
+    // the encoder's output, oldest at mInFlightHead.  The capacity is the limit.
+    private long[] mInFlightPts = new long[DEFAULT_MAX_FRAMES_IN_FLIGHT];
+    private int mInFlightHead;
+    private int mInFlightCount;
+    private int mSkippedFrames;
 
     // ----- accessed by multiple threads -----
+    // Only getLastOutputPtsUsec() and onFrameQueued() are called from the producer thread.
+    private final VideoEncoderCore mEncoderCore;
     private volatile EncoderHandler mHandler;
+    // Finished once the movie is complete and the encoder released.
+    private final Completion mStopped = new Completion();
+    private boolean mStopRequested;                 // guarded by mReadyFence
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
@@ -72,6 +90,8 @@ public class TextureMovieEncoder2 implements Runnable {
         Log.d(TAG, "Encoder: startRecording()");
 
         mVideoEncoder = encoderCore;
+        mEncoderCore = encoderCore;
+        mAsync = encoderCore.isAsync();
 
         synchronized (mReadyFence) {
             if (mRunning) {
@@ -93,16 +113,26 @@ public class TextureMovieEncoder2 implements Runnable {
     /**
      * Tells the video recorder to stop recording.  (Call from non-encoder thread.)
      * <p>
-     * Returns immediately; the encoder/muxer may not yet be finished creating the movie.
-     * <p>
-     * TODO: have the encoder thread invoke a callback on the UI thread just before it shuts down
-     * so we can provide reasonable status UI (and let the caller know that movie encoding
-     * has completed).
+     * Returns immediately; the encoder/muxer may not yet be finished creating the movie.  The
+     * returned completion finishes when it is, or fails if the encoder did.  Calling this
+     * again returns the same completion.
      */
-    public void stopRecording() {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
+    public Completion stopRecording() {
+        synchronized (mReadyFence) {
+            if (mStopRequested) {
+                return mStopped;
+            }
+            mStopRequested = true;
+            if (mHandler == null) {
+                Log.w(TAG, "stopRecording: encoder thread not running");
+                mStopped.complete();
+                return mStopped;
+            }
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
+        }
         // We don't know when these will actually finish (or even start).  We don't want to
         // delay the UI thread though, so we return immediately.
+        return mStopped;
     }
 
     /**
@@ -118,9 +148,13 @@ public class TextureMovieEncoder2 implements Runnable {
      * Tells the video recorder that a new frame is arriving soon.  (Call from non-encoder thread.)
      * <p>
      * This function sends a message and returns immediately.  This is fine -- the purpose is
-     * to wake the encoder thread up to do work so the producer side doesn't block.
+     * to wake the encoder thread up to do work so the producer side doesn't block.  An
+     * asynchronous encoder core drains itself, so there is nothing to wake up for.
      */
     public void frameAvailableSoon() {
+        if (mAsync) {
+            return;
+        }
         synchronized (mReadyFence) {
             if (!mReady) {
                 return;
@@ -130,6 +164,77 @@ public class TextureMovieEncoder2 implements Runnable {
         mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE));
     }
 
+    /**
+     * Sets how many frames may be in the encoder, swapped in but not yet out, before
+     * {@link #tryBeginFrame(long)} starts skipping.  (Call from the producer thread.)
+     */
+    public void setMaxFramesInFlight(int maxFrames) {
+        if (maxFrames <= 0) {
+            throw new IllegalArgumentException("bad in-flight limit " + maxFrames);
+        }
+        long[] pts = new long[maxFrames];
+        int count = Math.min(mInFlightCount, maxFrames);
+        for (int i = 0; i < count; i++) {
+            pts[i] = mInFlightPts[(mInFlightHead + mInFlightCount - count + i)
+                    % mInFlightPts.length];
+        }
+        mInFlightPts = pts;
+        mInFlightHead = 0;
+        mInFlightCount = count;
+    }
+
+    /**
+     * Asks whether a frame with the given time can go to the input surface.  (Call from the
+     * producer thread, right before drawing and swapping it.)
+     * <p>
+     * Once the encoder is holding the maximum number of frames, the input surface has no
+     * free buffer left and eglSwapBuffers() would block the producer until one is encoded;
+     * the frame is skipped instead, counted, and false returned.  The encoder is still woken
+     * to drain, so frames keep coming out of it.  A frame counts as out once the encoder has
+     * put out one with the same or a later time, so frames the encoder drops itself don't
+     * stay counted.
+     */
+    public boolean tryBeginFrame(long timeStampNanos) {
+        retireEncodedFrames();
+        if (mInFlightCount == mInFlightPts.length) {
+            if (mSkippedFrames++ == 0) {
+                Log.w(TAG, "encoder is " + mInFlightCount + " frames behind, skipping frames");
+            }
+            // A synchronous core only puts out frames when drained, and nothing else asks
+            // for a drain while frames are skipped; without this none would retire again.
+            frameAvailableSoon();
+            return false;
+        }
+        long ptsUsec = timeStampNanos / 1000;
+        mInFlightPts[(mInFlightHead + mInFlightCount) % mInFlightPts.length] = ptsUsec;
+        mInFlightCount++;
+        mEncoderCore.onFrameQueued(ptsUsec);
+        return true;
+    }
+
+    /**
+     * Returns the frames submitted that the encoder hasn't put out yet.  (Producer thread.)
+     */
+    public int getFramesInFlight() {
+        retireEncodedFrames();
+        return mInFlightCount;
+    }
+
+    private void retireEncodedFrames() {
+        long lastOutUsec = mEncoderCore.getLastOutputPtsUsec();
+        while (mInFlightCount > 0 && mInFlightPts[mInFlightHead] <= lastOutUsec) {
+            mInFlightHead = (mInFlightHead + 1) % mInFlightPts.length;
+            mInFlightCount--;
+        }
+    }
+
+    /**
+     * Returns the frames {@link #tryBeginFrame(long)} turned away.  (Producer thread.)
+     */
+    public int getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
     /**
      * Encoder thread entry point.  Establishes Looper/Handler and waits for messages.
      * <p>
@@ -202,7 +307,17 @@ public class TextureMovieEncoder2 implements Runnable {
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
-        mVideoEncoder.drainEncoder(true);
-        mVideoEncoder.release();
+        try {
+            try {
+                mVideoEncoder.drainEncoder(true);
+            } finally {
+                mVideoEncoder.release();
+            }
+        } catch (RuntimeException re) {
+            Log.e(TAG, "encoder failed while stopping", re);
+            mStopped.fail(re);
+        } finally {
+            mStopped.complete();
+        }
     }
 }
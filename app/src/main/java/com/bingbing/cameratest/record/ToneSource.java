@@ -0,0 +1,91 @@
+package com.bingbing.cameratest.record;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link AudioSource} generating a sine tone, or silence, in place of a microphone.  Reads
+ * are paced like a capture device: one returns once the wall clock has caught up with the
+ * last sample it hands out.  Useful for driving {@link AudioEncoderCore} in tests and on
+ * devices without a microphone.
+ */
+public class ToneSource implements AudioSource {
+    // Half of full scale, so the tone doesn't clip after encoding.
+    private static final double AMPLITUDE = Short.MAX_VALUE / 2;
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final double mFrequencyHz;
+    private long mStartNanos = -1;
+    private long mFramesRead;
+
+    /**
+     * @param frequencyHz pitch of the tone, or 0 for silence
+     */
+    public ToneSource(int sampleRate, int channelCount, double frequencyHz) {
+        if (sampleRate <= 0 || channelCount <= 0 || frequencyHz < 0) {
+            throw new IllegalArgumentException("bad tone " + frequencyHz + "Hz at " +
+                    sampleRate + "Hz x" + channelCount);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mFrequencyHz = frequencyHz;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    @Override
+    public void start() {
+        mStartNanos = System.nanoTime();
+        mFramesRead = 0;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        if (mStartNanos < 0) {
+            return -1;      // not started
+        }
+        int frameSize = 2 * mChannelCount;
+        int frames = size / frameSize;
+
+        long dueNanos = mStartNanos + (mFramesRead + frames) * 1000000000L / mSampleRate;
+        long waitNanos;
+        while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+
+        ByteBuffer out = buffer.duplicate().order(ByteOrder.nativeOrder());
+        out.clear();
+        double step = 2 * Math.PI * mFrequencyHz / mSampleRate;
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (AMPLITUDE * Math.sin(step * (mFramesRead + i)));
+            for (int c = 0; c < mChannelCount; c++) {
+                out.putShort(sample);
+            }
+        }
+        mFramesRead += frames;
+        return frames * frameSize;
+    }
+
+    @Override
+    public void stop() {
+        mStartNanos = -1;
+    }
+
+    @Override
+    public void release() {
+    }
+}
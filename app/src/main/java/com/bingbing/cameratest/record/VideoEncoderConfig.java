@@ -0,0 +1,263 @@
+package com.bingbing.cameratest.record;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Settings for {@link VideoEncoderCore}: codec, profile/level, rate control, frame rate, GOP
+ * and the range the bitrate may adapt within at runtime.
+ * <p>
+ * Settings the device's encoder does not support are dropped with a warning rather than
+ * failing configure(), since the defaults of every encoder are usable.
+ */
+public class VideoEncoderConfig {
+    private static final String TAG = "bingbing";
+
+    // Same values as MediaCodecInfo.EncoderCapabilities, which needs API 21.
+    public static final int BITRATE_MODE_DEFAULT = -1;
+    public static final int BITRATE_MODE_CQ = 0;
+    public static final int BITRATE_MODE_VBR = 1;
+    public static final int BITRATE_MODE_CBR = 2;
+
+    public static final String DEFAULT_MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
+    public static final int DEFAULT_BIT_RATE = 4000000;            // 4Mbps
+    public static final int DEFAULT_FRAME_RATE = 30;               // 30fps
+    public static final int DEFAULT_IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+
+    private String mMimeType = DEFAULT_MIME_TYPE;
+    private int mWidth;
+    private int mHeight;
+    private int mProfile;
+    private int mLevel;
+    private int mBitRateMode = BITRATE_MODE_DEFAULT;
+    private int mBitRate = DEFAULT_BIT_RATE;
+    private int mMinBitRate;
+    private int mMaxBitRate;
+    private int mFrameRate = DEFAULT_FRAME_RATE;
+    private int mIFrameInterval = DEFAULT_IFRAME_INTERVAL;
+    private boolean mAsyncOutput = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+    public VideoEncoderConfig(int width, int height) {
+        setSize(width, height);
+    }
+
+    public VideoEncoderConfig(VideoEncoderConfig other) {
+        mMimeType = other.mMimeType;
+        mWidth = other.mWidth;
+        mHeight = other.mHeight;
+        mProfile = other.mProfile;
+        mLevel = other.mLevel;
+        mBitRateMode = other.mBitRateMode;
+        mBitRate = other.mBitRate;
+        mMinBitRate = other.mMinBitRate;
+        mMaxBitRate = other.mMaxBitRate;
+        mFrameRate = other.mFrameRate;
+        mIFrameInterval = other.mIFrameInterval;
+        mAsyncOutput = other.mAsyncOutput;
+    }
+
+    /**
+     * Sets the frame size.  Some encoders explode on widths that aren't a multiple of 16.
+     */
+    public void setSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Sets the codec, e.g. "video/avc" or "video/hevc".
+     */
+    public void setMimeType(String mimeType) {
+        mMimeType = mimeType;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * Sets the profile and level, as MediaCodecInfo.CodecProfileLevel constants.  0 leaves
+     * them to the encoder.  Needs API 21 for the profile and 23 for the level.
+     */
+    public void setProfileLevel(int profile, int level) {
+        mProfile = profile;
+        mLevel = level;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Sets the rate control mode, one of the BITRATE_MODE_ constants.  Needs API 21.
+     */
+    public void setBitRateMode(int mode) {
+        mBitRateMode = mode;
+    }
+
+    public int getBitRateMode() {
+        return mBitRateMode;
+    }
+
+    /**
+     * Sets the target bitrate, in bits per second.  Ignored in CQ mode.
+     */
+    public void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Lets the bitrate follow the content between min and max, see {@link BitrateController}.
+     * Pass 0 for both to keep it fixed, the default.
+     */
+    public void setAdaptiveBitRate(int minBitRate, int maxBitRate) {
+        if (minBitRate < 0 || maxBitRate < minBitRate) {
+            throw new IllegalArgumentException("bad range " + minBitRate + ".." + maxBitRate);
+        }
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+    }
+
+    public int getMinBitRate() {
+        return mMinBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return mMaxBitRate;
+    }
+
+    /**
+     * Returns true if the bitrate is adjusted at runtime.
+     */
+    public boolean isAdaptive() {
+        return mMaxBitRate > 0 && mBitRateMode != BITRATE_MODE_CQ;
+    }
+
+    public void setFrameRate(int frameRate) {
+        mFrameRate = frameRate;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * Sets the GOP length, in seconds between sync frames.
+     */
+    public void setIFrameInterval(int seconds) {
+        mIFrameInterval = seconds;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    /**
+     * Chooses between having encoded output pushed to the muxer by MediaCodec callbacks as
+     * soon as it is ready, and polling for it once per frame.  Push needs API 21 and is the
+     * default there; {@link VideoEncoderCore} polls a MediaCodec on older releases whatever
+     * is set here.
+     */
+    public void setAsyncOutput(boolean async) {
+        mAsyncOutput = async;
+    }
+
+    public boolean isAsyncOutput() {
+        return mAsyncOutput;
+    }
+
+    /**
+     * Returns the format to configure an encoder with, leaving out what it does not support.
+     *
+     * @param caps the encoder's capabilities, or null to trust the settings
+     */
+    MediaFormat createFormat(MediaCodecInfo.CodecCapabilities caps) {
+        // What createVideoFormat() does, but a plain constructor also works in JVM tests.
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, mMimeType);
+        format.setInteger(MediaFormat.KEY_WIDTH, mWidth);
+        format.setInteger(MediaFormat.KEY_HEIGHT, mHeight);
+
+        // Set some properties.  Failing to specify some of these can cause the MediaCodec
+        // configure() call to throw an unhelpful exception.
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            setBitRateMode(format, caps);
+            setProfileLevel(format, caps);
+        } else if (mBitRateMode != BITRATE_MODE_DEFAULT || mProfile != 0) {
+            Log.w(TAG, "bitrate mode and profile need API 21, ignored");
+        }
+        return format;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void setBitRateMode(MediaFormat format, MediaCodecInfo.CodecCapabilities caps) {
+        if (mBitRateMode == BITRATE_MODE_DEFAULT) {
+            return;
+        }
+        if (caps != null && !caps.getEncoderCapabilities().isBitrateModeSupported(mBitRateMode)) {
+            Log.w(TAG, "bitrate mode " + mBitRateMode + " not supported, ignored");
+            return;
+        }
+        format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitRateMode);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void setProfileLevel(MediaFormat format, MediaCodecInfo.CodecCapabilities caps) {
+        if (mProfile == 0) {
+            return;
+        }
+        if (caps != null && !supportsProfileLevel(caps)) {
+            Log.w(TAG, "profile " + mProfile + " level " + mLevel + " not supported, ignored");
+            return;
+        }
+        format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+        // KEY_LEVEL is ignored before API 23, and only valid with a profile.
+        if (mLevel != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            format.setInteger(MediaFormat.KEY_LEVEL, mLevel);
+        }
+    }
+
+    private boolean supportsProfileLevel(MediaCodecInfo.CodecCapabilities caps) {
+        for (MediaCodecInfo.CodecProfileLevel supported : caps.profileLevels) {
+            if (supported.profile == mProfile && (mLevel == 0 || supported.level >= mLevel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "VideoEncoderConfig[" + mMimeType + " " + mWidth + "x" + mHeight + " " +
+                mBitRate + "bps mode=" + mBitRateMode + " " + mFrameRate + "fps gop=" +
+                mIFrameInterval + "s" + (mAsyncOutput ? " async" : "") + "]";
+    }
+}
@@ -17,15 +17,18 @@
 package com.bingbing.cameratest.record;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class wraps up the core components used for surface-input video encoding.
@@ -34,6 +37,10 @@ import java.nio.ByteBuffer;
  * time stamp, and always call drainEncoder() before swapBuffers() to ensure that the
  * producer side doesn't get backed up.
  * <p>
+ * With {@link VideoEncoderConfig#isAsyncOutput()} set, the codec pushes output buffers to the
+ * muxer from its own callback thread as soon as they are ready, and drainEncoder() only
+ * matters at end of stream.
+ * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
  */
@@ -41,55 +48,132 @@ public class VideoEncoderCore {
     private static final String TAG = "bingbing";
     private static final boolean VERBOSE = false;
 
-    // TODO: these ought to be configurable as well
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    // How long drainEncoder(true) waits for the end of stream.
+    private static final long EOS_TIMEOUT_MS = 3000;
 
+    private final VideoEncoderConfig mConfig;
+    // Null unless the config asks for an adaptive bitrate.  Output thread only.
+    private final BitrateController mBitrateController;
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
-    private MediaCodec mEncoder;
+    private SharedMuxer mMuxer;
+    // Set instead of mMuxer when output is kept in memory for a later save.
+    private EncodedFrameRing mFrameRing;
+    private EncoderCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
     private int mTrackIndex;
-    private boolean mMuxerStarted;
+    // Set once we've asked for a sync frame to end a segment on.  Output thread only.
+    private boolean mSyncFrameRequested;
+    // Latest presentation time seen on the output, for the producer's in-flight count.
+    private volatile long mLastOutputPtsUsec = -1;
+    // Latest presentation time queued to the input surface, for the backlog.
+    private volatile long mLastInputPtsUsec = -1;
+
+    // ----- asynchronous mode -----
+    private final boolean mAsync;
+    private HandlerThread mCallbackThread;
+    private final CountDownLatch mEndOfStream = new CountDownLatch(1);
+    // Guards the codec and muxer against release() while a callback is writing.
+    private final Object mOutputLock = new Object();
+    // Set by release(); late callbacks must not touch the codec.  Guarded by mOutputLock.
+    private boolean mReleased;
 
 
     /**
-     * Configures encoder and muxer state, and prepares the input Surface.
+     * Configures encoder and muxer state for an AVC stream at the given bitrate, and prepares
+     * the input Surface.
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
+        this(withBitRate(new VideoEncoderConfig(width, height), bitRate), outputFile);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     */
+    public VideoEncoderCore(VideoEncoderConfig config, File outputFile) throws IOException {
+        this(config, null, new SharedMuxer(outputFile, 1));
+    }
+
+    /**
+     * Configures the encoder to write its track to a muxer shared with other encoders, e.g.
+     * an {@link AudioEncoderCore}, and prepares the input Surface.
+     */
+    public VideoEncoderCore(VideoEncoderConfig config, SharedMuxer muxer) throws IOException {
+        this(config, null, muxer);
+    }
+
+    /**
+     * Configures the encoder to keep its output in a ring buffer instead of writing a file,
+     * and prepares the input Surface.  See {@link EncodedFrameRing#save(File, long)}.
+     */
+    public VideoEncoderCore(VideoEncoderConfig config, EncodedFrameRing frameRing)
+            throws IOException {
+        this(config, null, null, frameRing);
+    }
+
+    /**
+     * Configures the given codec and muxer state, and prepares the input Surface.
+     *
+     * @param encoder an unconfigured codec, or null to create a MediaCodec encoder.  In
+     *                asynchronous mode its callbacks must arrive on one thread.
+     */
+    public VideoEncoderCore(VideoEncoderConfig config, EncoderCodec encoder, SharedMuxer muxer)
+            throws IOException {
+        this(config, encoder, muxer, null);
+    }
+
+    // Package-private so tests can drive a fake codec into a ring.
+    VideoEncoderCore(VideoEncoderConfig config, EncoderCodec encoder, SharedMuxer muxer,
+                     EncodedFrameRing frameRing) throws IOException {
+        mConfig = new VideoEncoderConfig(config);
+        // MediaCodec can only push output from API 21; a codec passed in must support it.
+        mAsync = mConfig.isAsyncOutput()
+                && (encoder != null || Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
         mBufferInfo = new MediaCodec.BufferInfo();
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        if (mConfig.isAdaptive()) {
+            mBitrateController = new BitrateController(mConfig.getBitRate(),
+                    mConfig.getMinBitRate(), mConfig.getMaxBitRate(),
+                    mConfig.getBitRateMode() != VideoEncoderConfig.BITRATE_MODE_CBR);
+        } else {
+            mBitrateController = null;
+        }
 
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-        if (VERBOSE) Log.d(TAG, "format: " + format);
+        // We can't add the video track to the muxer here, because our MediaFormat doesn't
+        // have the Magic Goodies.  These can only be obtained from the encoder after it has
+        // started processing data.  The muxer starts once every encoder sharing it has
+        // added its track.
+        mMuxer = muxer;
+        mFrameRing = frameRing;
+        mTrackIndex = -1;
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        if (encoder == null) {
+            if (mAsync) {
+                mCallbackThread = new HandlerThread("VideoEncoderCore");
+                mCallbackThread.start();
+                encoder = MediaCodecEncoder.create(mConfig.getMimeType(),
+                        new Handler(mCallbackThread.getLooper()));
+            } else {
+                encoder = MediaCodecEncoder.create(mConfig.getMimeType());
+            }
+        }
+        mEncoder = encoder;
+        if (mAsync) {
+            mEncoder.setCallback(new OutputCallback());
+        }
+        MediaFormat format = mConfig.createFormat(
+                mEncoder.getCapabilities(mConfig.getMimeType()));
+        if (VERBOSE) Log.d(TAG, "format: " + format);
+        mEncoder.configure(format);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
+    }
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
-        //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-
-        mTrackIndex = -1;
-        mMuxerStarted = false;
+    private static VideoEncoderConfig withBitRate(VideoEncoderConfig config, int bitRate) {
+        config.setBitRate(bitRate);
+        return config;
     }
 
     /**
@@ -99,22 +183,71 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    public VideoEncoderConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Returns the latest presentation time the encoder has put out, or -1.  Any thread.
+     */
+    public long getLastOutputPtsUsec() {
+        return mLastOutputPtsUsec;
+    }
+
+    /**
+     * Reports the presentation time of a frame about to be swapped into the input surface.
+     * Any thread.  In asynchronous mode there is no drain loop to find a backlog of output
+     * buffers, so the adaptive bitrate measures how far the output trails this instead.
+     */
+    public void onFrameQueued(long ptsUsec) {
+        mLastInputPtsUsec = ptsUsec;
+    }
+
+    /**
+     * Returns true if output is pushed by the codec rather than pulled by drainEncoder().
+     */
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * Changes the target bitrate of the running encoder.  Takes effect within a few frames.
+     */
+    public void setBitRate(int bitRate) {
+        Log.d(TAG, "bitrate -> " + bitRate);
+        mEncoder.setVideoBitRate(bitRate);
+    }
+
     /**
-     * Releases encoder resources.
+     * Releases encoder resources.  Our muxer track is let go of even if the codec fails to
+     * stop, so the file still gets finished.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        synchronized (mOutputLock) {
+            // Waits out a callback in progress; later ones return without touching the codec,
+            // which may still deliver after an EOS timeout.
+            mReleased = true;
+        }
+        if (mCallbackThread != null) {
+            mCallbackThread.quit();
+            mCallbackThread = null;
+        }
         if (mEncoder != null) {
-            mEncoder.stop();
+            try {
+                mEncoder.stop();
+            } catch (IllegalStateException ise) {
+                Log.w(TAG, "encoder failed to stop", ise);
+            }
             mEncoder.release();
             mEncoder = null;
         }
-        if (mMuxer != null) {
-            // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
-            //       of frames submitted, and don't call stop() if we haven't written anything.
-            mMuxer.stop();
-            mMuxer.release();
-            mMuxer = null;
+        synchronized (mOutputLock) {
+            if (mMuxer != null) {
+                // The last encoder to let go of the muxer finishes the file.
+                mMuxer.releaseTrack(mTrackIndex);
+                mMuxer = null;
+            }
         }
     }
 
@@ -125,8 +258,11 @@ public class VideoEncoderCore {
      * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
      * Calling this with endOfStream set should be done once, right before stopping the muxer.
      * <p>
-     * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  We're
-     * not recording audio.
+     * In asynchronous mode output is already on its way, so this does nothing unless
+     * endOfStream is set, in which case it sends EOS and waits for the callbacks to see it.
+     * <p>
+     * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream), plus
+     * whatever tracks other encoders sharing it add.
      */
     public void drainEncoder(boolean endOfStream) {
         final int TIMEOUT_USEC = 10000;
@@ -137,76 +273,192 @@ public class VideoEncoderCore {
             mEncoder.signalEndOfInputStream();
         }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+        if (mAsync) {
+            if (endOfStream) {
+                awaitEndOfStream();
+            }
+            return;
+        }
+
+        int drained = 0;
+        long eosDeadline = System.nanoTime() + EOS_TIMEOUT_MS * 1000000L;
         while (true) {
             int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
                 if (!endOfStream) {
+                    if (mBitrateController != null) {
+                        mBitrateController.onDrain(drained);
+                    }
                     break;      // out of while
+                } else if (System.nanoTime() - eosDeadline > 0) {
+                    Log.w(TAG, "no end of stream after " + EOS_TIMEOUT_MS + "ms, giving up");
+                    break;
                 } else {
                     if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
                 }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                handleOutputFormatChanged(mEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
                 // let's ignore it
             } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
+                drained++;
+                if (handleOutputBuffer(encoderStatus, mBufferInfo)) {
+                    if (!endOfStream) {
+                        Log.w(TAG, "reached end of stream unexpectedly");
+                    } else {
+                        if (VERBOSE) Log.d(TAG, "end of stream reached");
+                    }
+                    break;      // out of while
                 }
+            }
+        }
+    }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
+    private void awaitEndOfStream() {
+        try {
+            if (!mEndOfStream.await(EOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "no end of stream after " + EOS_TIMEOUT_MS + "ms, giving up");
+            }
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "interrupted waiting for end of stream");
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
+    private void handleOutputFormatChanged(MediaFormat newFormat) {
+        synchronized (mOutputLock) {
+            if (mTrackIndex >= 0) {
+                throw new RuntimeException("format changed twice");
+            }
+            Log.d(TAG, "encoder output format changed: " + newFormat);
 
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+            // now that we have the Magic Goodies, add our track
+            if (mFrameRing != null) {
+                mFrameRing.setFormat(newFormat);
+                mTrackIndex = 0;
+            } else {
+                mTrackIndex = mMuxer.addTrack(newFormat);
+            }
+        }
+    }
 
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
+    /**
+     * Writes one output buffer to the muxer and hands it back to the codec.
+     *
+     * @return true if it carried the end of stream
+     */
+    private boolean handleOutputBuffer(int index, MediaCodec.BufferInfo info) {
+        ByteBuffer encodedData = mEncoder.getOutputBuffer(index);
+        if (encodedData == null) {
+            throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+        }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            info.size = 0;
+        }
+
+        if (info.size != 0) {
+            if (info.presentationTimeUs > mLastOutputPtsUsec) {
+                mLastOutputPtsUsec = info.presentationTimeUs;
+            }
+            synchronized (mOutputLock) {
+                if (mTrackIndex < 0) {
+                    throw new RuntimeException("no output format yet");
                 }
 
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
+                // adjust the ByteBuffer values to match BufferInfo (not needed?)
+                encodedData.position(info.offset);
+                encodedData.limit(info.offset + info.size);
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!endOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                        if (VERBOSE) Log.d(TAG, "end of stream reached");
-                    }
-                    break;      // out of while
+                if (mFrameRing != null) {
+                    mFrameRing.add(encodedData, info);
+                } else if (mMuxer != null) {
+                    writeToMuxer(encodedData, info);
+                }
+                if (VERBOSE) {
+                    Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" +
+                            info.presentationTimeUs);
                 }
             }
+            if (mBitrateController != null) {
+                if (mAsync) {
+                    mBitrateController.onDrain(getBacklogFrames(info.presentationTimeUs));
+                }
+                int bitRate = mBitrateController.onFrameEncoded(info.size,
+                        info.presentationTimeUs);
+                if (bitRate != 0) {
+                    setBitRate(bitRate);
+                }
+            }
+        }
+
+        mEncoder.releaseOutputBuffer(index);
+        return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    /**
+     * Returns how many frame intervals the output at ptsUsec trails the latest input.
+     */
+    private int getBacklogFrames(long ptsUsec) {
+        long lagUsec = mLastInputPtsUsec - ptsUsec;
+        if (lagUsec <= 0) {
+            return 0;
+        }
+        return (int) (lagUsec * mConfig.getFrameRate() / 1000000);
+    }
+
+    private void writeToMuxer(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+        if (mMuxer.isSegmentDue()) {
+            // Don't wait up to a whole GOP for the cut.
+            if (!mSyncFrameRequested) {
+                if (VERBOSE) Log.d(TAG, "segment due, requesting sync frame");
+                mEncoder.requestSyncFrame();
+                mSyncFrameRequested = true;
+            }
+        } else {
+            mSyncFrameRequested = false;
+        }
+    }
+
+    /**
+     * Receives output in asynchronous mode, on the codec's callback thread.
+     */
+    private class OutputCallback implements EncoderCodec.Callback {
+        @Override
+        public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+            synchronized (mOutputLock) {
+                if (mReleased) {
+                    return;     // released after an EOS timeout
+                }
+                if (handleOutputBuffer(index, info)) {
+                    if (VERBOSE) Log.d(TAG, "end of stream reached");
+                    mEndOfStream.countDown();
+                }
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            synchronized (mOutputLock) {
+                if (!mReleased) {
+                    handleOutputFormatChanged(format);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            Log.e(TAG, "encoder error", e);
+            // Don't leave drainEncoder(true) waiting for an end of stream that won't come.
+            mEndOfStream.countDown();
         }
     }
 }
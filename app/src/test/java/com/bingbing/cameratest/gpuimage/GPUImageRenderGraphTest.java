@@ -0,0 +1,147 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks which way up {@link GPUImageRenderGraph} samples intermediate results and where its
+ * output node draws, with {@link RecordingGlBackend}.
+ */
+public class GPUImageRenderGraphTest {
+    private static final int TEXTURE = 7;
+    private static final int CALLER_FRAMEBUFFER = 42;
+
+    private static final float[] FLIPPED =
+            TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+
+    private RecordingGlBackend mGl;
+    private final FloatBuffer mCube = FloatBuffer.wrap(GPUImageRenderer.CUBE);
+    private final FloatBuffer mTextureCoords =
+            FloatBuffer.wrap(TextureRotationUtil.TEXTURE_NO_ROTATION);
+
+    /**
+     * Remembers the coordinates it was last drawn with and the framebuffer it drew into.
+     */
+    private static class ProbeFilter extends GPUImageFilter {
+        float[] mCoords;
+        int mFramebuffer;
+
+        @Override
+        public void onDraw(int textureId, FloatBuffer cubeBuffer, FloatBuffer textureBuffer,
+                           long timeStampNanos) {
+            mCoords = copy(textureBuffer);
+            mFramebuffer = ((RecordingGlBackend) mGl).getCurrentFramebuffer();
+            super.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+        }
+    }
+
+    private static class ProbeBlendFilter extends GPUImageTwoInputFilter {
+        float[] mCoords;
+        float[] mSecondCoords;
+
+        ProbeBlendFilter() {
+            super(NO_FILTER_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void setSecondInputTexture(int texture, FloatBuffer textureBuffer) {
+            mSecondCoords = copy(textureBuffer);
+            super.setSecondInputTexture(texture, textureBuffer);
+        }
+
+        @Override
+        public void onDraw(int textureId, FloatBuffer cubeBuffer, FloatBuffer textureBuffer,
+                           long timeStampNanos) {
+            mCoords = copy(textureBuffer);
+            super.onDraw(textureId, cubeBuffer, textureBuffer, timeStampNanos);
+        }
+    }
+
+    private static float[] copy(FloatBuffer buffer) {
+        float[] coords = new float[buffer.capacity()];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = buffer.get(i);
+        }
+        return coords;
+    }
+
+    @Before
+    public void setUp() {
+        mGl = new RecordingGlBackend();
+    }
+
+    @After
+    public void tearDown() {
+        RenderTargetPool.getInstance().clear();
+    }
+
+    private void prepare(GPUImageRenderGraph graph) {
+        graph.setGlBackend(mGl);
+        graph.init();
+        graph.onOutputSizeChanged(64, 64);
+    }
+
+    private void drawFrame(GPUImageRenderGraph graph) {
+        mGl.beginFrame();
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, CALLER_FRAMEBUFFER);
+        graph.onDraw(TEXTURE, mCube, mTextureCoords, 0);
+        mGl.endFrame();
+    }
+
+    @Test
+    public void intermediateResultsAreSampledFlipped() {
+        GPUImageRenderGraph graph = new GPUImageRenderGraph();
+        ProbeFilter first = new ProbeFilter();
+        ProbeFilter second = new ProbeFilter();
+        GPUImageRenderGraph.Node node = graph.addNode(first, graph.getInput());
+        graph.setOutput(graph.addNode(second, node));
+        prepare(graph);
+
+        drawFrame(graph);
+
+        // The input is sampled as the caller asked; drawing it into a target turned it upside
+        // down, which the next pass undoes.
+        assertArrayEquals(TextureRotationUtil.TEXTURE_NO_ROTATION, first.mCoords, 0);
+        assertArrayEquals(FLIPPED, second.mCoords, 0);
+    }
+
+    @Test
+    public void blendSeesBothInputsTheSameWayUp() {
+        GPUImageRenderGraph graph = new GPUImageRenderGraph();
+        ProbeFilter blur = new ProbeFilter();
+        ProbeBlendFilter blend = new ProbeBlendFilter();
+        GPUImageRenderGraph.Node branch = graph.addNode(blur, graph.getInput());
+        GPUImageRenderGraph.Node direct = graph.addNode(new ProbeFilter(), graph.getInput());
+        graph.setOutput(graph.addNode(blend, direct, branch));
+        prepare(graph);
+
+        drawFrame(graph);
+
+        assertArrayEquals(FLIPPED, blend.mCoords, 0);
+        assertArrayEquals(FLIPPED, blend.mSecondCoords, 0);
+    }
+
+    @Test
+    public void outputDrawsIntoCallersFramebufferOnFirstDraw() {
+        GPUImageRenderGraph graph = new GPUImageRenderGraph();
+        ProbeFilter output = new ProbeFilter();
+        GPUImageRenderGraph.Node node = graph.addNode(new GPUImageFilter(), graph.getInput());
+        graph.setOutput(graph.addNode(output, node));
+        prepare(graph);
+        int misses = RenderTargetPool.getInstance().getMissCount();
+
+        // Scheduling creates the intermediate target in the middle of this draw.
+        drawFrame(graph);
+
+        assertEquals(misses + 1, RenderTargetPool.getInstance().getMissCount());
+        assertEquals(CALLER_FRAMEBUFFER, output.mFramebuffer);
+    }
+}
@@ -0,0 +1,126 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-frame GL call budgets of the filter chain, counted by {@link RecordingGlBackend}.
+ */
+public class RecordingGlBackendTest {
+    private static final int TEXTURE = 7;
+
+    private RecordingGlBackend mGl;
+    private final FloatBuffer mCube = FloatBuffer.wrap(GPUImageRenderer.CUBE);
+    private final FloatBuffer mTextureCoords =
+            FloatBuffer.wrap(TextureRotationUtil.TEXTURE_NO_ROTATION);
+
+    @Before
+    public void setUp() {
+        mGl = new RecordingGlBackend();
+    }
+
+    private GPUImageFilterGroup newGroup(GPUImageFilter... filters) {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.setGlBackend(mGl);
+        for (GPUImageFilter filter : filters) {
+            group.addFilter(filter);
+        }
+        group.init();
+        group.onOutputSizeChanged(64, 64);
+        return group;
+    }
+
+    private RecordingGlBackend.FrameStats drawFrame(GPUImageFilterGroup group) {
+        mGl.beginFrame();
+        group.onDraw(TEXTURE, mCube, mTextureCoords, 0);
+        mGl.endFrame();
+        return mGl.getLastFrameStats();
+    }
+
+    @Test
+    public void threePassChainBudget() {
+        GPUImageFilterGroup group = newGroup(new GPUImageFilter(), new GPUImageFilter(),
+                new GPUImageFilter());
+        RecordingGlBackend.FrameStats stats = drawFrame(group);
+
+        assertEquals(3, stats.drawCalls);
+        assertEquals(3, stats.programBinds);
+        // Each pass binds its input and unbinds it again.
+        assertEquals(6, stats.textureBinds);
+        // Two intermediate targets, then the caller's framebuffer for the last pass.
+        assertEquals(3, stats.framebufferBinds);
+        assertEquals(0, stats.resourceCalls);
+        assertEquals(2, group.getFramebufferCount());
+    }
+
+    @Test
+    public void budgetIsStableAcrossFrames() {
+        GPUImageFilterGroup group = newGroup(new GPUImageFilter(), new GPUImageFilter());
+        RecordingGlBackend.FrameStats first = new RecordingGlBackend.FrameStats();
+        first.set(drawFrame(group));
+        RecordingGlBackend.FrameStats second = drawFrame(group);
+
+        assertEquals(first.toString(), second.toString());
+        assertEquals(2, mGl.getFrameCount());
+    }
+
+    @Test
+    public void pointwiseFiltersFuseIntoOnePass() {
+        GPUImageFilterGroup group = newGroup(new GPUImageFilter(), new GPUImageGammaFilter(),
+                new GPUImageGammaFilter());
+        drawFrame(group);      // compiles the fused pass
+        RecordingGlBackend.FrameStats stats = drawFrame(group);
+
+        assertEquals(2, stats.drawCalls);
+        assertEquals(2, stats.programBinds);
+    }
+
+    @Test
+    public void fusionCanBeTurnedOffOnASizedGroup() {
+        GPUImageFilterGroup group = newGroup(new GPUImageFilter(), new GPUImageGammaFilter(),
+                new GPUImageGammaFilter());
+        drawFrame(group);
+
+        // Adds a pass, which needs a target of its own.
+        group.setFusePointwiseFilters(false);
+        RecordingGlBackend.FrameStats stats = drawFrame(group);
+
+        assertEquals(3, stats.drawCalls);
+        assertEquals(2, group.getFramebufferCount());
+    }
+
+    @Test
+    public void lastPassDrawsIntoCallersFramebuffer() {
+        GPUImageFilterGroup group = newGroup(new GPUImageFilter(), new GPUImageFilter(),
+                new GPUImageFilter());
+        mGl.beginFrame();
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 42);
+        mGl.setRecordCalls(true);
+        group.onDraw(TEXTURE, mCube, mTextureCoords, 0);
+
+        List<String> calls = mGl.getCalls();
+        int lastDraw = lastIndexOf(calls, "glDrawArrays");
+        int lastBind = lastIndexOf(calls, "glBindFramebuffer");
+        assertTrue(lastBind >= 0 && lastBind < lastDraw);
+        assertEquals("glBindFramebuffer(42)", calls.get(lastBind));
+        assertEquals(42, mGl.getCurrentFramebuffer());
+        mGl.endFrame();
+    }
+
+    private static int lastIndexOf(List<String> calls, String name) {
+        for (int i = calls.size() - 1; i >= 0; i--) {
+            if (calls.get(i).startsWith(name + "(")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,54 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link RenderTargetPool} leaves the caller's bindings alone when it has to
+ * create a target in the middle of a draw.
+ */
+public class RenderTargetPoolTest {
+    private final RenderTargetPool mPool = RenderTargetPool.getInstance();
+
+    @After
+    public void tearDown() {
+        mPool.clear();
+    }
+
+    private void checkBindingsSurviveCreate(GlBackend gl) {
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 42);
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, 7);
+        int misses = mPool.getMissCount();
+
+        RenderTarget target = mPool.acquire(gl, 17, 19);
+
+        assertEquals(misses + 1, mPool.getMissCount());
+        int[] binding = new int[1];
+        gl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, binding, 0);
+        assertEquals(42, binding[0]);
+        gl.glGetIntegerv(GLES20.GL_TEXTURE_BINDING_2D, binding, 0);
+        assertEquals(7, binding[0]);
+        mPool.release(gl, target);
+    }
+
+    @Test
+    public void createRestoresBindings() {
+        checkBindingsSurviveCreate(new RecordingGlBackend());
+    }
+
+    @Test
+    public void createRestoresBindingsThroughStateCache() {
+        RecordingGlBackend recording = new RecordingGlBackend();
+        StateCachingGlBackend gl = new StateCachingGlBackend(recording);
+        gl.beginFrame();
+        checkBindingsSurviveCreate(gl);
+        gl.endFrame();
+
+        assertEquals(42, recording.getCurrentFramebuffer());
+    }
+}
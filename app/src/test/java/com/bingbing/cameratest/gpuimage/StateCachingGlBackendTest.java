@@ -0,0 +1,116 @@
+package com.bingbing.cameratest.gpuimage;
+
+import android.opengl.GLES20;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link StateCachingGlBackend} drops redundant calls before they reach the
+ * driver, here a {@link RecordingGlBackend}.
+ */
+public class StateCachingGlBackendTest {
+    private RecordingGlBackend mRecording;
+    private StateCachingGlBackend mGl;
+
+    @Before
+    public void setUp() {
+        mRecording = new RecordingGlBackend();
+        mGl = new StateCachingGlBackend(mRecording);
+    }
+
+    @Test
+    public void redundantProgramBindsAreElided() {
+        mGl.beginFrame();
+        mGl.glUseProgram(5);
+        mGl.glUseProgram(5);
+        mGl.glUseProgram(5);
+        mGl.endFrame();
+
+        assertEquals(1, mRecording.getLastFrameStats().programBinds);
+        assertTrue(mGl.getLastFrameElidedCalls() >= 2);
+    }
+
+    @Test
+    public void redundantFramebufferBindsAreElided() {
+        mGl.beginFrame();
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 3);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 3);
+        int[] binding = new int[1];
+        mGl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, binding, 0);
+        mGl.endFrame();
+
+        assertEquals(3, binding[0]);
+        assertEquals(1, mRecording.getLastFrameStats().framebufferBinds);
+    }
+
+    @Test
+    public void framebufferBindingIsKnownInTheNextFrame() {
+        mGl.beginFrame();
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 3);
+        mGl.endFrame();
+
+        mGl.beginFrame();
+        mRecording.setRecordCalls(true);
+        int[] binding = new int[1];
+        mGl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, binding, 0);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 3);
+        mGl.endFrame();
+
+        assertEquals(3, binding[0]);
+        // Neither the query nor the bind reached the driver.
+        assertTrue(mRecording.getCalls().isEmpty());
+    }
+
+    @Test
+    public void rebindingTheSameTextureIsElided() {
+        mGl.beginFrame();
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 9);
+        mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        // Unbind and bind again, as consecutive passes do; nothing changes in between.
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 9);
+        mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        mGl.endFrame();
+
+        assertEquals(2, mRecording.getLastFrameStats().drawCalls);
+        assertEquals(1, mRecording.getLastFrameStats().textureBinds);
+    }
+
+    @Test
+    public void filterChainCostsFewerCallsThanUncached() {
+        int uncached = drawChain(mRecording);
+        int cached = drawChain(mGl);
+
+        assertTrue("cached " + cached + " vs uncached " + uncached, cached < uncached);
+        assertTrue(mGl.getLastFrameElidedCalls() > 0);
+    }
+
+    /**
+     * Draws a second frame of a three-pass chain through gl; returns the driver calls made.
+     */
+    private int drawChain(GlBackend gl) {
+        GPUImageFilterGroup group = new GPUImageFilterGroup();
+        group.setGlBackend(gl);
+        group.addFilter(new GPUImageFilter());
+        group.addFilter(new GPUImageFilter());
+        group.addFilter(new GPUImageFilter());
+        group.init();
+        group.onOutputSizeChanged(64, 64);
+        FloatBuffer cube = FloatBuffer.wrap(GPUImageRenderer.CUBE);
+        FloatBuffer coords = FloatBuffer.wrap(TextureRotationUtil.TEXTURE_NO_ROTATION);
+        for (int i = 0; i < 2; i++) {
+            gl.beginFrame();
+            group.onDraw(7, cube, coords, i);
+            gl.endFrame();
+        }
+        group.destroy();
+        return mRecording.getLastFrameStats().totalCalls;
+    }
+}
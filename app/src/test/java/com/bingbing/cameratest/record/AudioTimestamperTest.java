@@ -0,0 +1,102 @@
+package com.bingbing.cameratest.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the audio presentation times: anchoring, the drift clamp and monotonicity, with a
+ * made-up clock and then with a {@link ToneSource} in real time.
+ */
+public class AudioTimestamperTest {
+    private static final int SAMPLE_RATE = 48000;
+    // 10ms of samples.
+    private static final int CHUNK_FRAMES = 480;
+    private static final long CHUNK_USEC = 10000;
+
+    @Test
+    public void firstChunkIsAnchoredToItsCaptureTime() {
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE);
+
+        assertEquals(1000000 - CHUNK_USEC, timestamper.next(CHUNK_FRAMES, 1000000));
+    }
+
+    @Test
+    public void timesFollowTheSamplesNotTheReads() {
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE);
+        long[] readUsec = {1000000, 1013000, 1018000, 1031000};
+
+        for (int i = 0; i < readUsec.length; i++) {
+            assertEquals(990000 + i * CHUNK_USEC, timestamper.next(CHUNK_FRAMES, readUsec[i]));
+        }
+    }
+
+    @Test
+    public void driftWithinTheLimitIsKept() {
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE);
+        timestamper.next(CHUNK_FRAMES, 1000000);
+
+        // Captured 90ms later than the samples say.
+        long late = AudioTimestamper.MAX_DRIFT_USEC - 10000;
+        assertEquals(1000000, timestamper.next(CHUNK_FRAMES, 1000000 + CHUNK_USEC + late));
+    }
+
+    @Test
+    public void driftPastTheLimitMovesTheAnchor() {
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE);
+        timestamper.next(CHUNK_FRAMES, 1000000);
+
+        // The source lost 110ms of samples.
+        long late = AudioTimestamper.MAX_DRIFT_USEC + 10000;
+        long now = 1000000 + CHUNK_USEC + late;
+        assertEquals(now - CHUNK_USEC, timestamper.next(CHUNK_FRAMES, now));
+        // Counted from the new anchor.
+        assertEquals(now, timestamper.next(CHUNK_FRAMES, now + CHUNK_USEC));
+    }
+
+    @Test
+    public void timesNeverGoBackwards() {
+        AudioTimestamper timestamper = new AudioTimestamper(SAMPLE_RATE);
+        long first = timestamper.next(CHUNK_FRAMES, 1000000);
+
+        // Empty buffers, e.g. the end of stream, don't advance the sample count.
+        long second = timestamper.next(0, 1000000);
+        long third = timestamper.next(0, 1000000);
+
+        assertEquals(first + CHUNK_USEC, second);
+        assertTrue(third > second);
+    }
+
+    @Test
+    public void toneSourceGetsEvenlySpacedTimes() {
+        int sampleRate = 8000;
+        int frames = 400;       // 50ms
+        ToneSource source = new ToneSource(sampleRate, 1, 440);
+        AudioTimestamper timestamper = new AudioTimestamper(sampleRate);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frames * 2);
+
+        source.start();
+        long start = System.nanoTime();
+        long last = -1;
+        boolean sound = false;
+        for (int i = 0; i < 5; i++) {
+            int read = source.read(buffer, buffer.capacity());
+            long pts = timestamper.next(read / 2, System.nanoTime() / 1000);
+            assertEquals(frames * 2, read);
+            if (last >= 0) {
+                assertEquals(50000, pts - last);
+            }
+            last = pts;
+            sound |= buffer.getShort(2) != 0;
+        }
+
+        // Paced like a microphone.
+        assertTrue(System.nanoTime() - start >= 250 * 1000000L - 1000000L);
+        assertTrue(sound);
+        source.stop();
+        source.release();
+    }
+}
@@ -0,0 +1,238 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An {@link EncoderCodec} that puts out whatever the test queues with
+ * {@link #queueOutput(long, int, int)}, and throws IllegalStateException like MediaCodec
+ * when a buffer is used after it was handed back or the codec after it was stopped.
+ * <p>
+ * In asynchronous mode queued output is delivered to the callback right away, on the
+ * calling thread; the output format is reported before the first buffer in both modes.
+ */
+class FakeEncoderCodec implements EncoderCodec {
+    private Callback mCallback;
+    private final MediaFormat mOutputFormat = new MediaFormat();
+    private boolean mFormatReported;
+
+    // Every buffer ever queued, by index.
+    private final List<ByteBuffer> mBuffers = new ArrayList<ByteBuffer>();
+    private final List<MediaCodec.BufferInfo> mInfos = new ArrayList<MediaCodec.BufferInfo>();
+    // Synchronous mode: queued but not dequeued yet.
+    private final ArrayDeque<Integer> mReady = new ArrayDeque<Integer>();
+    // Handed to the owner and not released yet.
+    private final Set<Integer> mOwned = new HashSet<Integer>();
+    private long mLastPtsUsec;
+
+    private boolean mConfigured;
+    private boolean mStarted;
+    private boolean mStopped;
+    private boolean mReleased;
+    private boolean mEndOfInputStream;
+    private boolean mStopFailure;
+    private int mBitRate;
+
+    /**
+     * Makes the encoder produce a buffer of size bytes.
+     *
+     * @param flags MediaCodec.BUFFER_FLAG_ values
+     */
+    public void queueOutput(long ptsUsec, int size, int flags) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // Set the fields directly; BufferInfo.set() is a stub on the JVM.
+        info.offset = 0;
+        info.size = size;
+        info.presentationTimeUs = ptsUsec;
+        info.flags = flags;
+        int index = mBuffers.size();
+        mBuffers.add(ByteBuffer.allocate(Math.max(size, 1)));
+        mInfos.add(info);
+        mLastPtsUsec = ptsUsec;
+        if (mCallback == null) {
+            mReady.add(index);
+            return;
+        }
+        // Like MediaCodec, a callback may still arrive after the owner stopped the codec.
+        if (!mFormatReported) {
+            mFormatReported = true;
+            mCallback.onOutputFormatChanged(mOutputFormat);
+        }
+        mOwned.add(index);
+        mCallback.onOutputBufferAvailable(index, copyOf(info));
+    }
+
+    /**
+     * Makes stop() throw, as MediaCodec does after an error.
+     */
+    public void setStopFailure(boolean fail) {
+        mStopFailure = fail;
+    }
+
+    /**
+     * Returns the buffers given to the owner and not released yet.
+     */
+    public int getOwnedBuffers() {
+        return mOwned.size();
+    }
+
+    public boolean isEndOfInputStream() {
+        return mEndOfInputStream;
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+
+    public boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Returns the last bitrate set on the running encoder, or 0.
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    private static MediaCodec.BufferInfo copyOf(MediaCodec.BufferInfo info) {
+        MediaCodec.BufferInfo copy = new MediaCodec.BufferInfo();
+        copy.offset = info.offset;
+        copy.size = info.size;
+        copy.presentationTimeUs = info.presentationTimeUs;
+        copy.flags = info.flags;
+        return copy;
+    }
+
+    private void checkStarted() {
+        if (!mStarted) {
+            throw new IllegalStateException("codec not started");
+        }
+    }
+
+    private void checkOwned(int index) {
+        if (!mOwned.contains(index)) {
+            throw new IllegalStateException("buffer " + index + " not owned by the client");
+        }
+    }
+
+    @Override
+    public MediaCodecInfo.CodecCapabilities getCapabilities(String mimeType) {
+        return null;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        if (mConfigured) {
+            throw new IllegalStateException("setCallback after configure");
+        }
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        mConfigured = true;
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        if (!mConfigured || mStarted) {
+            throw new IllegalStateException("createInputSurface outside configured state");
+        }
+        return null;
+    }
+
+    @Override
+    public void start() {
+        if (!mConfigured) {
+            throw new IllegalStateException("start before configure");
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        checkStarted();
+        if (mCallback != null) {
+            throw new IllegalStateException("dequeueOutputBuffer in asynchronous mode");
+        }
+        if (mReady.isEmpty()) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        int index = mReady.poll();
+        MediaCodec.BufferInfo queued = mInfos.get(index);
+        info.offset = queued.offset;
+        info.size = queued.size;
+        info.presentationTimeUs = queued.presentationTimeUs;
+        info.flags = queued.flags;
+        mOwned.add(index);
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        checkStarted();
+        checkOwned(index);
+        return mBuffers.get(index).duplicate();
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        checkStarted();
+        return mOutputFormat;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        checkStarted();
+        checkOwned(index);
+        mOwned.remove(index);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        checkStarted();
+        mEndOfInputStream = true;
+        queueOutput(mLastPtsUsec, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Override
+    public void setVideoBitRate(int bitRate) {
+        checkStarted();
+        mBitRate = bitRate;
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        checkStarted();
+    }
+
+    @Override
+    public void stop() {
+        if (mStopFailure) {
+            throw new IllegalStateException("stop failed");
+        }
+        checkStarted();
+        mStarted = false;
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+        mStarted = false;
+        mReleased = true;
+    }
+}
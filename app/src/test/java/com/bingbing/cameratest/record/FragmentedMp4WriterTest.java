@@ -0,0 +1,204 @@
+package com.bingbing.cameratest.record;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes a short H.264 stream with {@link FragmentedMp4Writer} into memory and walks the
+ * boxes it produced.
+ */
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1E, (byte) 0xAB, 0x40, 0x50};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x38, (byte) 0x80};
+    private static final long FRAME_USEC = 40000;       // 25fps
+    private static final int PAYLOAD_BYTES = 100;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private ByteArrayOutputStream mBytes;
+    private FragmentedMp4Writer mWriter;
+
+    @Before
+    public void setUp() {
+        mBytes = new ByteArrayOutputStream();
+        mWriter = new FragmentedMp4Writer(Channels.newChannel(mBytes));
+    }
+
+    /**
+     * Returns an Annex-B frame: a 3-byte start code and a NAL unit of PAYLOAD_BYTES.
+     */
+    private static ByteBuffer frame(boolean sync) {
+        ByteBuffer frame = ByteBuffer.allocate(3 + PAYLOAD_BYTES);
+        frame.put((byte) 0).put((byte) 0).put((byte) 1);
+        frame.put((byte) (sync ? 0x65 : 0x41));
+        while (frame.hasRemaining()) {
+            frame.put((byte) 0x55);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Writes 40 frames, a sync frame every second, and finishes: one fragment cut at the
+     * second sync frame, and the rest.
+     */
+    private ByteBuffer writeStream() throws IOException {
+        int track = mWriter.addAvcTrack(320, 240, SPS, PPS);
+        mWriter.start();
+        for (int i = 0; i < 40; i++) {
+            mWriter.writeSample(track, frame(i % 25 == 0), i * FRAME_USEC, i % 25 == 0);
+        }
+        mWriter.finish();
+        return ByteBuffer.wrap(mBytes.toByteArray());
+    }
+
+    private static String typeAt(ByteBuffer b, int box) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) b.get(box + 4 + i);
+        }
+        return new String(type);
+    }
+
+    /**
+     * Returns the offsets of the boxes in [start, end).
+     */
+    private static List<Integer> boxes(ByteBuffer b, int start, int end) {
+        List<Integer> boxes = new ArrayList<Integer>();
+        int box = start;
+        while (box < end) {
+            int size = b.getInt(box);
+            assertTrue("bad box size " + size + " at " + box, size >= 8 && box + size <= end);
+            boxes.add(box);
+            box += size;
+        }
+        assertEquals(end, box);
+        return boxes;
+    }
+
+    /**
+     * Returns the offset of the first child of the container box with the type, or -1.
+     */
+    private static int child(ByteBuffer b, int container, String type) {
+        for (int box : boxes(b, container + 8, container + b.getInt(container))) {
+            if (typeAt(b, box).equals(type)) {
+                return box;
+            }
+        }
+        return -1;
+    }
+
+    private static List<Integer> topLevel(ByteBuffer b, String type) {
+        List<Integer> found = new ArrayList<Integer>();
+        for (int box : boxes(b, 0, b.limit())) {
+            if (typeAt(b, box).equals(type)) {
+                found.add(box);
+            }
+        }
+        return found;
+    }
+
+    private static int trun(ByteBuffer b, int moof) {
+        return child(b, child(b, moof, "traf"), "trun");
+    }
+
+    @Test
+    public void headerComesFirstThenFragments() throws IOException {
+        ByteBuffer b = writeStream();
+
+        List<String> types = new ArrayList<String>();
+        for (int box : boxes(b, 0, b.limit())) {
+            types.add(typeAt(b, box));
+        }
+        List<String> expected = new ArrayList<String>();
+        for (String type : new String[]{"ftyp", "moov", "moof", "mdat", "moof", "mdat"}) {
+            expected.add(type);
+        }
+        assertEquals(expected, types);
+
+        int moov = topLevel(b, "moov").get(0);
+        assertTrue(child(b, moov, "mvhd") >= 0);
+        assertTrue(child(b, moov, "trak") >= 0);
+        assertTrue(child(b, moov, "mvex") >= 0);
+    }
+
+    @Test
+    public void fragmentSequenceNumbersCountUp() throws IOException {
+        ByteBuffer b = writeStream();
+
+        List<Integer> moofs = topLevel(b, "moof");
+        for (int i = 0; i < moofs.size(); i++) {
+            int mfhd = child(b, moofs.get(i), "mfhd");
+            assertEquals(i + 1, b.getInt(mfhd + 12));
+        }
+    }
+
+    @Test
+    public void trunDescribesTheSamples() throws IOException {
+        ByteBuffer b = writeStream();
+
+        List<Integer> moofs = topLevel(b, "moof");
+        int[] expectedCounts = {25, 15};
+        for (int f = 0; f < moofs.size(); f++) {
+            int trun = trun(b, moofs.get(f));
+            int count = b.getInt(trun + 12);
+            assertEquals(expectedCounts[f], count);
+            for (int i = 0; i < count; i++) {
+                int entry = trun + 20 + i * 12;
+                // The start code became a 4-byte length.
+                assertEquals(4 + PAYLOAD_BYTES, b.getInt(entry + 4));
+                assertEquals(i == 0 ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC,
+                        b.getInt(entry + 8));
+            }
+        }
+    }
+
+    @Test
+    public void dataOffsetPointsIntoTheMdat() throws IOException {
+        ByteBuffer b = writeStream();
+
+        List<Integer> moofs = topLevel(b, "moof");
+        List<Integer> mdats = topLevel(b, "mdat");
+        for (int f = 0; f < moofs.size(); f++) {
+            int moof = moofs.get(f);
+            int mdat = mdats.get(f);
+            int trun = trun(b, moof);
+            int dataOffset = b.getInt(trun + 16);
+            // Relative to the moof, past the mdat header.
+            assertEquals(mdat + 8, moof + dataOffset);
+            int count = b.getInt(trun + 12);
+            assertEquals(8 + count * (4 + PAYLOAD_BYTES), b.getInt(mdat));
+            assertEquals(PAYLOAD_BYTES, b.getInt(mdat + 8));
+        }
+    }
+
+    @Test
+    public void decodeTimesAreContinuous() throws IOException {
+        ByteBuffer b = writeStream();
+
+        List<Integer> moofs = topLevel(b, "moof");
+        int firstTraf = child(b, moofs.get(0), "traf");
+        int secondTraf = child(b, moofs.get(1), "traf");
+        long firstBase = b.getLong(child(b, firstTraf, "tfdt") + 12);
+        long secondBase = b.getLong(child(b, secondTraf, "tfdt") + 12);
+        int trun = child(b, firstTraf, "trun");
+        long duration = 0;
+        for (int i = 0; i < b.getInt(trun + 12); i++) {
+            duration += b.getInt(trun + 20 + i * 12);
+        }
+
+        assertEquals(0, firstBase);
+        assertEquals(firstBase + duration, secondBase);
+    }
+}
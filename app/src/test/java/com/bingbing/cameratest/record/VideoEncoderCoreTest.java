@@ -0,0 +1,174 @@
+package com.bingbing.cameratest.record;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link VideoEncoderCore} with a {@link FakeEncoderCodec}, writing into an
+ * {@link EncodedFrameRing}, in both output modes.
+ */
+public class VideoEncoderCoreTest {
+    private static final long FRAME_USEC = 1000000 / VideoEncoderConfig.DEFAULT_FRAME_RATE;
+    private static final int FRAME_BYTES = 1000;
+
+    private FakeEncoderCodec mCodec;
+    private EncodedFrameRing mRing;
+    private VideoEncoderConfig mConfig;
+
+    @Before
+    public void setUp() {
+        mCodec = new FakeEncoderCodec();
+        mRing = new EncodedFrameRing(10000000, 1 << 20, 600);
+        mConfig = new VideoEncoderConfig(640, 480);
+    }
+
+    private VideoEncoderCore createCore(boolean async) throws IOException {
+        mConfig.setAsyncOutput(async);
+        return new VideoEncoderCore(mConfig, mCodec, null, mRing);
+    }
+
+    private void queueFrames(int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            mCodec.queueOutput(i * FRAME_USEC, FRAME_BYTES,
+                    i == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        }
+    }
+
+    @Test
+    public void syncDrainWritesQueuedFrames() throws IOException {
+        VideoEncoderCore core = createCore(false);
+        assertFalse(core.isAsync());
+        queueFrames(0, 3);
+
+        core.drainEncoder(false);
+
+        assertEquals(3, mRing.getFrameCount());
+        assertEquals(0, mCodec.getOwnedBuffers());
+        assertEquals(2 * FRAME_USEC, core.getLastOutputPtsUsec());
+    }
+
+    @Test
+    public void syncDrainSkipsCodecConfig() throws IOException {
+        VideoEncoderCore core = createCore(false);
+        mCodec.queueOutput(0, 20, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        queueFrames(0, 1);
+
+        core.drainEncoder(false);
+
+        assertEquals(1, mRing.getFrameCount());
+        assertEquals(0, mCodec.getOwnedBuffers());
+    }
+
+    @Test
+    public void syncEndOfStreamDrainsTheRest() throws IOException {
+        VideoEncoderCore core = createCore(false);
+        queueFrames(0, 2);
+        core.drainEncoder(false);
+        queueFrames(2, 2);
+
+        core.drainEncoder(true);
+
+        assertTrue(mCodec.isEndOfInputStream());
+        assertEquals(4, mRing.getFrameCount());
+        assertEquals(0, mCodec.getOwnedBuffers());
+    }
+
+    @Test
+    public void asyncCallbacksWriteFrames() throws IOException {
+        VideoEncoderCore core = createCore(true);
+        assertTrue(core.isAsync());
+
+        queueFrames(0, 3);
+        // Nothing to pull; the fake throws if drainEncoder() tries.
+        core.drainEncoder(false);
+
+        assertEquals(3, mRing.getFrameCount());
+        assertEquals(0, mCodec.getOwnedBuffers());
+        assertEquals(2 * FRAME_USEC, core.getLastOutputPtsUsec());
+    }
+
+    @Test
+    public void asyncEndOfStreamReturnsOnceSeen() throws IOException {
+        VideoEncoderCore core = createCore(true);
+        queueFrames(0, 2);
+
+        long start = System.nanoTime();
+        core.drainEncoder(true);
+
+        // Well under the timeout drainEncoder() gives up after.
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        assertTrue(mCodec.isEndOfInputStream());
+        assertEquals(2, mRing.getFrameCount());
+    }
+
+    @Test
+    public void releaseStopsAndReleasesCodec() throws IOException {
+        VideoEncoderCore core = createCore(false);
+        queueFrames(0, 1);
+        core.drainEncoder(true);
+
+        core.release();
+
+        assertTrue(mCodec.isStopped());
+        assertTrue(mCodec.isReleased());
+    }
+
+    @Test
+    public void releaseSurvivesStopFailure() throws IOException {
+        VideoEncoderCore core = createCore(false);
+        mCodec.setStopFailure(true);
+
+        core.release();
+
+        assertTrue(mCodec.isReleased());
+    }
+
+    @Test
+    public void lateCallbackAfterReleaseIsIgnored() throws IOException {
+        VideoEncoderCore core = createCore(true);
+        queueFrames(0, 1);
+        core.release();
+
+        // The fake throws if the core touches the stopped codec.
+        queueFrames(1, 1);
+
+        assertEquals(1, mRing.getFrameCount());
+    }
+
+    @Test
+    public void asyncBacklogLowersBitrate() throws IOException {
+        mConfig.setBitRateMode(VideoEncoderConfig.BITRATE_MODE_CBR);
+        mConfig.setAdaptiveBitRate(1000000, 8000000);
+        VideoEncoderCore core = createCore(true);
+
+        // Output trails the input by ten frames, for over a second.
+        for (int i = 0; i < 40; i++) {
+            core.onFrameQueued((i + 10) * FRAME_USEC);
+            queueFrames(i, 1);
+        }
+
+        assertEquals(VideoEncoderConfig.DEFAULT_BIT_RATE * 3 / 4, mCodec.getBitRate());
+    }
+
+    @Test
+    public void asyncWithoutBacklogKeepsBitrate() throws IOException {
+        mConfig.setBitRateMode(VideoEncoderConfig.BITRATE_MODE_CBR);
+        mConfig.setAdaptiveBitRate(1000000, 8000000);
+        VideoEncoderCore core = createCore(true);
+
+        for (int i = 0; i < 40; i++) {
+            core.onFrameQueued((i + 1) * FRAME_USEC);
+            queueFrames(i, 1);
+        }
+
+        assertEquals(0, mCodec.getBitRate());
+    }
+}
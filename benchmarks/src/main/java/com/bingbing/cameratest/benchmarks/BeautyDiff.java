@@ -0,0 +1,40 @@
+package com.bingbing.cameratest.benchmarks;
+
+import com.bingbing.cameratest.gpuimage.reference.BeautyShaderReference;
+import com.bingbing.cameratest.gpuimage.reference.FrameDiff;
+import com.bingbing.cameratest.gpuimage.reference.SeparableBeautyReference;
+
+/**
+ * Prints how far the separable beauty filter drifts from shader4 on the synthetic frames.
+ * Run with "./gradlew :benchmarks:beautyDiff".
+ */
+public class BeautyDiff {
+    private static final int[][] SIZES = {
+            {Frames.WIDTH_720P, Frames.HEIGHT_720P},
+            {Frames.WIDTH_1080P, Frames.HEIGHT_1080P},
+    };
+    private static final int[] DOWNSAMPLES = {2, 4};
+
+    public static void main(String[] args) {
+        float radius = args.length > 0 ? Float.parseFloat(args[0]) : 12.0f;
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] src = Frames.skinFrame(width, height, 0x5eed);
+            byte[] expected = new byte[src.length];
+            byte[] actual = new byte[src.length];
+            new BeautyShaderReference(width, height).process(src, expected);
+
+            for (int downsample : DOWNSAMPLES) {
+                new SeparableBeautyReference(width, height, downsample, 1.0f, radius)
+                        .process(src, actual);
+                System.out.println(String.format("%dx%d /%d radius %.1f: " +
+                                "mean %.3f, max %d, PSNR %.2f dB",
+                        width, height, downsample, radius,
+                        FrameDiff.meanAbsoluteError(expected, actual),
+                        FrameDiff.maxAbsoluteError(expected, actual),
+                        FrameDiff.psnr(expected, actual)));
+            }
+        }
+    }
+}
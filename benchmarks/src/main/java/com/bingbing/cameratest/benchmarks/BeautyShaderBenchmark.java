@@ -0,0 +1,75 @@
+package com.bingbing.cameratest.benchmarks;
+
+import com.bingbing.cameratest.gpuimage.reference.BeautyShaderReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU reference of the beauty shader over full frames.
+ * <p>
+ * Each invocation filters one frame; OperationsPerInvocation is the pixel count, so the
+ * reported score is ns/pixel.  Run with the GC profiler (the default for the jmh task) to
+ * see allocation per pixel, which should stay at zero.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BeautyShaderBenchmark {
+    private static final long SEED = 0x5eed;
+
+    @State(Scope.Thread)
+    public static class Frame720p {
+        BeautyShaderReference filter;
+        byte[] src;
+        byte[] dst;
+
+        @Setup
+        public void setUp() {
+            filter = new BeautyShaderReference(Frames.WIDTH_720P, Frames.HEIGHT_720P);
+            src = Frames.skinFrame(Frames.WIDTH_720P, Frames.HEIGHT_720P, SEED);
+            dst = new byte[src.length];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Frame1080p {
+        BeautyShaderReference filter;
+        byte[] src;
+        byte[] dst;
+
+        @Setup
+        public void setUp() {
+            filter = new BeautyShaderReference(Frames.WIDTH_1080P, Frames.HEIGHT_1080P);
+            src = Frames.skinFrame(Frames.WIDTH_1080P, Frames.HEIGHT_1080P, SEED);
+            dst = new byte[src.length];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.WIDTH_720P * Frames.HEIGHT_720P)
+    public byte[] shader4_720p(Frame720p frame) {
+        frame.filter.process(frame.src, frame.dst);
+        return frame.dst;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.WIDTH_1080P * Frames.HEIGHT_1080P)
+    public byte[] shader4_1080p(Frame1080p frame) {
+        frame.filter.process(frame.src, frame.dst);
+        return frame.dst;
+    }
+}
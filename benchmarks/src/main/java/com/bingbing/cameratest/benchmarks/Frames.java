@@ -0,0 +1,42 @@
+package com.bingbing.cameratest.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Synthetic test frames for the benchmarks.
+ */
+final class Frames {
+    public static final int WIDTH_720P = 1280;
+    public static final int HEIGHT_720P = 720;
+    public static final int WIDTH_1080P = 1920;
+    public static final int HEIGHT_1080P = 1080;
+
+    private Frames() {}     // do not instantiate
+
+    /**
+     * Returns a tightly packed RGBA frame that looks vaguely like a face under indoor light:
+     * a smooth skin-toned gradient with fine sensor-like noise on top.  The same seed always
+     * produces the same frame, so runs are comparable.
+     */
+    public static byte[] skinFrame(int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[] frame = new byte[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float shade = 0.75f + 0.25f * (float) Math.sin(x * Math.PI / width) *
+                        (float) Math.cos((y - height / 2) * Math.PI / (2 * height));
+                int noise = random.nextInt(17) - 8;
+                int i = (y * width + x) * 4;
+                frame[i] = clamp((int) (224 * shade) + noise);
+                frame[i + 1] = clamp((int) (172 * shade) + noise);
+                frame[i + 2] = clamp((int) (150 * shade) + noise);
+                frame[i + 3] = (byte) 0xff;
+            }
+        }
+        return frame;
+    }
+
+    private static byte clamp(int v) {
+        return (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+    }
+}
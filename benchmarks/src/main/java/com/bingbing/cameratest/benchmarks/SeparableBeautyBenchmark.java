@@ -0,0 +1,81 @@
+package com.bingbing.cameratest.benchmarks;
+
+import com.bingbing.cameratest.gpuimage.reference.SeparableBeautyReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU reference of the separable, downsampled beauty filter.  Scores are
+ * ns/pixel of the full-resolution output, directly comparable to BeautyShaderBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SeparableBeautyBenchmark {
+    private static final long SEED = 0x5eed;
+
+    @State(Scope.Thread)
+    public static class Frame720p {
+        @Param({"2", "4"})
+        int downsample;
+
+        SeparableBeautyReference filter;
+        byte[] src;
+        byte[] dst;
+
+        @Setup
+        public void setUp() {
+            filter = new SeparableBeautyReference(Frames.WIDTH_720P, Frames.HEIGHT_720P,
+                    downsample, 1.0f, 12.0f);
+            src = Frames.skinFrame(Frames.WIDTH_720P, Frames.HEIGHT_720P, SEED);
+            dst = new byte[src.length];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Frame1080p {
+        @Param({"2", "4"})
+        int downsample;
+
+        SeparableBeautyReference filter;
+        byte[] src;
+        byte[] dst;
+
+        @Setup
+        public void setUp() {
+            filter = new SeparableBeautyReference(Frames.WIDTH_1080P, Frames.HEIGHT_1080P,
+                    downsample, 1.0f, 12.0f);
+            src = Frames.skinFrame(Frames.WIDTH_1080P, Frames.HEIGHT_1080P, SEED);
+            dst = new byte[src.length];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.WIDTH_720P * Frames.HEIGHT_720P)
+    public byte[] separable_720p(Frame720p frame) {
+        frame.filter.process(frame.src, frame.dst);
+        return frame.dst;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.WIDTH_1080P * Frames.HEIGHT_1080P)
+    public byte[] separable_1080p(Frame1080p frame) {
+        frame.filter.process(frame.src, frame.dst);
+        return frame.dst;
+    }
+}